@@ -31,6 +31,7 @@ import org.cristalise.kernel.lookup.AgentPath;
 import org.cristalise.kernel.lookup.InvalidAgentPathException;
 import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.utils.Logger;
 import org.cristalise.kernel.utils.SoftCache;
 import org.omg.PortableServer.POA;
@@ -68,13 +69,12 @@ public class CorbaServer {
             throw new CannotManageException("Error initialising POA");
         }
 
-        new Thread(new Runnable() {
+        KernelExecutors.execute(KernelExecutors.SERVICE, "ORB Invoker", new Runnable() {
             @Override
 			public void run() {
-                Thread.currentThread().setName("ORB Invoker");
                 Gateway.getORB().run();
             }
-        }).start();
+        });
     }
 
     public void close() {
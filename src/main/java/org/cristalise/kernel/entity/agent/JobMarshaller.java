@@ -0,0 +1,258 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.agent;
+
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.Transition;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.TransitionOutcome;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.TransitionScript;
+import org.cristalise.kernel.lookup.InvalidItemPathException;
+import org.cristalise.kernel.utils.KeyValuePair;
+import org.cristalise.kernel.utils.StaxMarshaller;
+
+/**
+ * StAX form of the Job mapping in JobListMap.xml, with the Transition,
+ * TransitionOutcome and TransitionScript mappings of StateMachineMap.xml and
+ * the KeyValuePair mapping of KeyValuePairMap.xml
+ */
+public class JobMarshaller extends StaxMarshaller<Job> {
+
+	@Override
+	public Class<Job> getMappedClass() {
+		return Job.class;
+	}
+
+	@Override
+	public String getRootElement() {
+		return "Job";
+	}
+
+	@Override
+	public void write(Job job, StringBuilder out) throws InvalidDataException {
+		write(job, "Job", out);
+	}
+
+	void write(Job job, String element, StringBuilder out) throws InvalidDataException {
+		if (job.getItemPath() == null)
+			throw new InvalidDataException("Job has no ItemPath");
+		out.append('<').append(element);
+		appendAttribute(out, "Id", job.getId());
+		appendAttribute(out, "ItemUUID", job.getItemUUID());
+		appendAttribute(out, "StepName", job.getStepName());
+		appendAttribute(out, "StepType", job.getStepType());
+		appendAttribute(out, "StepPath", job.getStepPath());
+		appendAttribute(out, "AgentUUID", job.getAgentUUID());
+		appendAttribute(out, "OriginState", job.getOriginStateName());
+		appendAttribute(out, "TargetState", job.getTargetStateName());
+		appendAttribute(out, "AgentRole", job.getAgentRole());
+		out.append('>');
+		Transition trans = job.getTransition();
+		if (trans != null) writeTransition(trans, out);
+		KeyValuePair[] pairs = job.getKeyValuePairs();
+		if (pairs.length == 0)
+			out.append("<ActProps/>");
+		else {
+			out.append("<ActProps>");
+			for (KeyValuePair pair : pairs) writeKeyValuePair(pair, out);
+			out.append("</ActProps>");
+		}
+		out.append("</").append(element).append('>');
+	}
+
+	static void writeTransition(Transition trans, StringBuilder out) throws InvalidDataException {
+		// Castor would add an xsi:type for subclasses
+		if (trans.getClass() != Transition.class)
+			throw new InvalidDataException("Transition subclass "+trans.getClass().getName()+" must be handled by Castor");
+		out.append("<Transition");
+		appendAttribute(out, "id", trans.getId());
+		appendAttribute(out, "name", trans.getName());
+		appendAttribute(out, "origin", trans.getOriginStateId());
+		appendAttribute(out, "target", trans.getTargetStateId());
+		appendAttribute(out, "enablingProperty", trans.getEnabledProp());
+		appendAttribute(out, "roleOverride", trans.getRoleOverride());
+		appendAttribute(out, "reservation", trans.getReservation());
+		TransitionOutcome outcome = trans.getOutcome();
+		TransitionScript script = trans.getScript();
+		if (outcome == null && script == null) {
+			out.append("/>");
+			return;
+		}
+		out.append('>');
+		if (outcome != null) {
+			out.append("<Outcome");
+			appendAttribute(out, "name", outcome.getSchemaName());
+			appendAttribute(out, "version", outcome.getSchemaVersion());
+			appendAttribute(out, "required", outcome.isRequired());
+			out.append("/>");
+		}
+		if (script != null) {
+			out.append("<Script");
+			appendAttribute(out, "name", script.getScriptName());
+			appendAttribute(out, "version", script.getScriptVersion());
+			out.append("/>");
+		}
+		out.append("</Transition>");
+	}
+
+	static void writeKeyValuePair(KeyValuePair pair, StringBuilder out) throws InvalidDataException {
+		out.append("<KeyValuePair");
+		appendAttribute(out, "Key", pair.getKey());
+		appendAttribute(out, "isAbstract", pair.isAbstract());
+		appendAttribute(out, "Integer", pair.getIntegerValue());
+		appendAttribute(out, "String", pair.getStringValue());
+		appendAttribute(out, "Float", pair.getFloatValue());
+		appendAttribute(out, "Boolean", pair.getBooleanValue());
+		out.append("/>");
+	}
+
+	@Override
+	public Job read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		Job job = new Job();
+		job.setId(getInt(reader, "Id", 0));
+		try {
+			String itemUUID = getString(reader, "ItemUUID");
+			if (itemUUID != null) job.setItemUUID(itemUUID);
+		} catch (InvalidItemPathException ex) {
+			throw new InvalidDataException(ex.getMessage());
+		}
+		job.setStepName(getString(reader, "StepName"));
+		job.setStepType(getString(reader, "StepType"));
+		job.setStepPath(getString(reader, "StepPath"));
+		String agentUUID = getString(reader, "AgentUUID");
+		if (agentUUID != null) job.setAgentUUID(agentUUID);
+		job.setOriginStateName(getString(reader, "OriginState"));
+		job.setTargetStateName(getString(reader, "TargetState"));
+		job.setAgentRole(getString(reader, "AgentRole"));
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if ("Transition".equals(reader.getLocalName()))
+				job.setTransition(readTransition(reader));
+			else {
+				checkElement(reader, "ActProps");
+				ArrayList<KeyValuePair> pairs = new ArrayList<KeyValuePair>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+					pairs.add(readKeyValuePair(reader));
+				job.setKeyValuePairs(pairs.toArray(new KeyValuePair[pairs.size()]));
+			}
+		}
+		return job;
+	}
+
+	static Transition readTransition(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		Transition trans = new Transition();
+		trans.setId(getInt(reader, "id", 0));
+		trans.setName(getString(reader, "name"));
+		trans.setOriginStateId(getInt(reader, "origin", 0));
+		trans.setTargetStateId(getInt(reader, "target", 0));
+		trans.setEnabledProp(getString(reader, "enablingProperty"));
+		trans.setRoleOverride(getString(reader, "roleOverride"));
+		trans.setReservation(getString(reader, "reservation"));
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if ("Outcome".equals(reader.getLocalName())) {
+				TransitionOutcome outcome = new TransitionOutcome();
+				outcome.setSchemaName(getString(reader, "name"));
+				outcome.setSchemaVersion(getString(reader, "version"));
+				Boolean required = getBoolean(reader, "required");
+				if (required != null) outcome.setRequired(required);
+				trans.setOutcome(outcome);
+			}
+			else {
+				checkElement(reader, "Script");
+				TransitionScript script = new TransitionScript();
+				script.setScriptName(getString(reader, "name"));
+				script.setScriptVersion(getString(reader, "version"));
+				trans.setScript(script);
+			}
+			skipEmptyElement(reader);
+		}
+		return trans;
+	}
+
+	static KeyValuePair readKeyValuePair(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		checkElement(reader, "KeyValuePair");
+		KeyValuePair pair = new KeyValuePair();
+		pair.setKey(getString(reader, "Key"));
+		Boolean isAbstract = getBoolean(reader, "isAbstract");
+		if (isAbstract != null) pair.setAbstract(isAbstract);
+		Integer intValue = getInteger(reader, "Integer");
+		if (intValue != null) pair.setIntegerValue(intValue);
+		String stringValue = getString(reader, "String");
+		if (stringValue != null) pair.setStringValue(stringValue);
+		String floatValue = getString(reader, "Float");
+		if (floatValue != null)
+			try {
+				pair.setFloatValue(Double.valueOf(floatValue.trim()));
+			} catch (NumberFormatException ex) {
+				throw new InvalidDataException("Attribute Float is not a number: "+floatValue);
+			}
+		Boolean boolValue = getBoolean(reader, "Boolean");
+		if (boolValue != null) pair.setBooleanValue(boolValue);
+		skipEmptyElement(reader);
+		return pair;
+	}
+
+	/**
+	 * StAX form of the JobArrayList mapping in JobListMap.xml. Its Jobs are
+	 * bound to elements named JobArrayList as well.
+	 */
+	public static class ListMarshaller extends StaxMarshaller<JobArrayList> {
+
+		JobMarshaller jobMarshaller = new JobMarshaller();
+
+		@Override
+		public Class<JobArrayList> getMappedClass() {
+			return JobArrayList.class;
+		}
+
+		@Override
+		public String getRootElement() {
+			return "JobArrayList";
+		}
+
+		@Override
+		public void write(JobArrayList jobs, StringBuilder out) throws InvalidDataException {
+			if (jobs.list.isEmpty()) {
+				out.append("<JobArrayList/>");
+				return;
+			}
+			out.append("<JobArrayList>");
+			for (Job job : jobs.list)
+				jobMarshaller.write(job, "JobArrayList", out);
+			out.append("</JobArrayList>");
+		}
+
+		@Override
+		public JobArrayList read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+			JobArrayList jobs = new JobArrayList();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				checkElement(reader, "JobArrayList");
+				jobs.list.add(jobMarshaller.read(reader));
+			}
+			return jobs;
+		}
+	}
+}
@@ -22,8 +22,10 @@ package org.cristalise.kernel.entity.proxy;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import org.cristalise.kernel.collection.Collection;
 import org.cristalise.kernel.collection.CollectionArrayList;
@@ -39,13 +41,17 @@ import org.cristalise.kernel.entity.Item;
 import org.cristalise.kernel.entity.ItemHelper;
 import org.cristalise.kernel.entity.agent.Job;
 import org.cristalise.kernel.entity.agent.JobArrayList;
+import org.cristalise.kernel.events.Event;
+import org.cristalise.kernel.events.History;
 import org.cristalise.kernel.lifecycle.instance.CompositeActivity;
 import org.cristalise.kernel.lifecycle.instance.Workflow;
 import org.cristalise.kernel.lookup.AgentPath;
 import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.persistency.ClusterStorage;
 import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.persistency.outcome.ViewpointHistory;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.property.Property;
 import org.cristalise.kernel.property.PropertyArrayList;
 import org.cristalise.kernel.utils.CastorXMLUtility;
@@ -70,6 +76,11 @@ public class ItemProxy
     protected org.omg.CORBA.Object  mIOR;
     private final HashMap<MemberSubscription<?>, ProxyObserver<?>>
     								mSubscriptions;
+    // the same subscriptions, indexed by interest for notify()
+    private final MemberSubscriptionTrie mSubscriptionIndex = new MemberSubscriptionTrie();
+    // subscribe() sweeps out phantoms when the subscriptions reach this size
+    private static final int REAP_THRESHOLD = 64;
+    private int mReapThreshold = REAP_THRESHOLD;
     
    /**************************************************************************
     *  
@@ -255,6 +266,58 @@ public class ItemProxy
     public Viewpoint getViewpoint(String schemaName, String viewName) throws ObjectNotFoundException {
     	return (Viewpoint)getObject(ClusterStorage.VIEWPOINT+"/"+schemaName+"/"+viewName);
     }
+
+    /** Gets the named viewpoint as it was at the given date. Its Outcome is that which the view showed at the time.
+     * <p>
+     * Uses the ViewpointHistory recorded when 'History.indexEvents' is set, searching its archived chunks for older dates.
+     * For views written before that, it falls back to the latest event at that date that wrote the view, found through the
+     * event index, which does not account for views moved by WriteViewpoint.
+     * 
+     * @param schemaName Outcome schema name
+     * @param viewName Viewpoint name
+     * @param date the point in time to look at
+     * @return a Viewpoint object, which is not stored
+     * @throws ObjectNotFoundException if the view did not exist at that date
+     */
+    public Viewpoint getViewpointAt(String schemaName, String viewName, Date date) throws ObjectNotFoundException {
+    	String historyPath = ClusterStorage.EVENTINDEX+"/"+ClusterStorage.VIEWPOINT+"/"+schemaName+"/"+viewName;
+    	ViewpointHistory viewHistory = null;
+    	try {
+    		viewHistory = (ViewpointHistory)getObject(historyPath);
+    	} catch (ObjectNotFoundException ex) {
+    		Logger.msg(5, "ItemProxy.getViewpointAt() - no history recorded for "+schemaName+"/"+viewName+" in "+mItemPath);
+    	}
+
+    	long time = date.getTime();
+    	if (viewHistory != null && time < viewHistory.getStartTime()) {
+    		// find the last archived chunk starting before the date
+    		ViewpointHistory found = null;
+    		int low = 0, high = viewHistory.getArchivedChunks()-1;
+    		while (low <= high) {
+    			int mid = (low + high) >>> 1;
+    			ViewpointHistory chunk = (ViewpointHistory)getObject(historyPath+"/"+mid);
+    			if (chunk.getStartTime() <= time) {
+    				found = chunk;
+    				low = mid + 1;
+    			}
+    			else
+    				high = mid - 1;
+    		}
+    		viewHistory = found;
+    	}
+
+    	Viewpoint view = null;
+    	if (viewHistory != null)
+    		view = viewHistory.getViewpointAt(mItemPath, time);
+    	else {
+    		Event ev = ((History)getObject(ClusterStorage.HISTORY)).getLastEventForView(schemaName, viewName, date);
+    		if (ev != null)
+    			view = new Viewpoint(mItemPath, schemaName, viewName, ev.getSchemaVersion()==null?0:ev.getSchemaVersion(), ev.getID());
+    	}
+    	if (view == null)
+    		throw new ObjectNotFoundException("Viewpoint "+schemaName+"/"+viewName+" did not exist in "+mItemPath+" at "+date);
+    	return view;
+    }
     
     /** Tries to find a job with the given name for the given Agent in
      * the workflow.
@@ -378,9 +441,16 @@ public class ItemProxy
     	
     	newSub.setSubject(this);
     	synchronized (this){
+            if (!mSubscriptions.containsKey(newSub))
+                mSubscriptionIndex.add(newSub);
             mSubscriptions.put( newSub, newSub.getObserver() );
+            if (mSubscriptions.size() >= mReapThreshold) {
+                reapPhantoms();
+                // double the threshold, so the sweeps cost constant time per subscription
+                mReapThreshold = Math.max(REAP_THRESHOLD, mSubscriptions.size() * 2);
+            }
         }
-        new Thread(newSub).start();
+        KernelExecutors.get(KernelExecutors.MEMBER_SUBSCRIPTION).execute(newSub);
         Logger.msg(7, "Subscribed "+newSub.getObserver().getClass().getName()+" for "+newSub.interest);
     }
 
@@ -391,8 +461,30 @@ public class ItemProxy
                 MemberSubscription<?> thisSub = e.next();
                 if (mSubscriptions.get( thisSub ) == observer) {
                     e.remove();
+                    mSubscriptionIndex.remove(thisSub);
                     Logger.msg(7, "Unsubscribed "+observer.getClass().getName());
                 }
+                else if (thisSub.getObserver() == null) { // phantom
+                    e.remove();
+                    mSubscriptionIndex.remove(thisSub);
+                    Logger.msg(4, "Removing phantom subscription to "+thisSub.interest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the subscriptions whose observers have been collected, which
+     * notify() would otherwise only find when a change they match arrives.
+     * Called with the proxy locked.
+     */
+    private void reapPhantoms() {
+        for (Iterator<MemberSubscription<?>> e = mSubscriptions.keySet().iterator(); e.hasNext();) {
+            MemberSubscription<?> thisSub = e.next();
+            if (thisSub.getObserver() == null) {
+                e.remove();
+                mSubscriptionIndex.remove(thisSub);
+                Logger.msg(4, "Removing phantom subscription to "+thisSub.interest);
             }
         }
     }
@@ -416,11 +508,11 @@ public class ItemProxy
         synchronized (this){
             if (Gateway.getProxyServer()== null || !message.getServer().equals(Gateway.getProxyServer().getServerName()))
                 Gateway.getStorage().clearCache(mItemPath, message.getPath());
-            for (Iterator<MemberSubscription<?>> e = mSubscriptions.keySet().iterator(); e.hasNext();) {
-                MemberSubscription<?> newSub = e.next();
+            for (MemberSubscription<?> newSub : mSubscriptionIndex.match(message.getPath())) {
                 if (newSub.getObserver() == null) { // phantom
                     Logger.msg(4, "Removing phantom subscription to "+newSub.interest);
-                    e.remove();
+                    mSubscriptions.remove(newSub);
+                    mSubscriptionIndex.remove(newSub);
                 }
                 else
                     newSub.update(message.getPath(), message.getState());
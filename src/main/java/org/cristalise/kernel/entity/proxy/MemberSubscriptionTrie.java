@@ -0,0 +1,105 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of the {@link MemberSubscription}s of one {@link ItemProxy}, by
+ * interest. A change to a path concerns every subscription whose interest is
+ * a prefix of the path, which the trie finds by walking down the characters of
+ * the path once, in time proportional to the length of the path and the
+ * number of subscriptions found rather than the number held. Interests are
+ * compared character by character, like {@link MemberSubscription#isRelevant(String)}.
+ * <p>
+ * Not synchronized: the ItemProxy guards it.
+ */
+public class MemberSubscriptionTrie {
+
+    final Node root = new Node();
+    int size = 0;
+
+    static class Node {
+        HashMap<Character, Node> children;
+        ArrayList<MemberSubscription<?>> subscriptions;
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (subscriptions == null || subscriptions.isEmpty());
+        }
+    }
+
+    public void add(MemberSubscription<?> sub) {
+        Node node = root;
+        for (int i = 0; i < sub.interest.length(); i++) {
+            Character c = sub.interest.charAt(i);
+            if (node.children == null) node.children = new HashMap<Character, Node>(4);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.subscriptions == null) node.subscriptions = new ArrayList<MemberSubscription<?>>(1);
+        node.subscriptions.add(sub);
+        size++;
+    }
+
+    /**
+     * Removes the subscription, and any branch of the trie left empty
+     * @return false if it was not in the trie
+     */
+    public boolean remove(MemberSubscription<?> sub) {
+        String interest = sub.interest;
+        Node[] nodes = new Node[interest.length()+1];
+        nodes[0] = root;
+        for (int i = 0; i < interest.length(); i++) {
+            nodes[i+1] = nodes[i].children == null ? null : nodes[i].children.get(interest.charAt(i));
+            if (nodes[i+1] == null) return false;
+        }
+        Node node = nodes[interest.length()];
+        if (node.subscriptions == null || !node.subscriptions.remove(sub)) return false;
+        size--;
+        for (int i = interest.length(); i > 0 && nodes[i].isEmpty(); i--)
+            nodes[i-1].children.remove(interest.charAt(i-1));
+        return true;
+    }
+
+    /**
+     * @return the subscriptions whose interest is a prefix of the path, shortest interest first
+     */
+    public List<MemberSubscription<?>> match(String path) {
+        ArrayList<MemberSubscription<?>> found = new ArrayList<MemberSubscription<?>>();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.subscriptions != null) found.addAll(node.subscriptions);
+            if (i == path.length() || node.children == null) break;
+            node = node.children.get(path.charAt(i));
+        }
+        return found;
+    }
+
+    public int size() {
+        return size;
+    }
+}
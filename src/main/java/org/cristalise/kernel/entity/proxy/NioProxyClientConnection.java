@@ -0,0 +1,275 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Non-blocking counterpart of {@link ProxyClientConnection}. It speaks the same
+ * newline terminated text protocol, but owns no thread: reads and writes are
+ * driven by the {@link NioProxyListener} I/O worker the channel is registered
+ * with. Outgoing messages are queued by the caller and flushed by the worker,
+ * so a slow client never blocks the ProxyServer delivery thread.
+ */
+public class NioProxyClientConnection implements ProxyClient {
+
+    static final int MAX_LINE = 8192;
+    static final int BATCH_SIZE = 32 * 1024;
+    static final int BATCH_MESSAGES = 1024;
+    static int clientId = -1;
+
+    final int thisClientId;
+    final ProxyServer server;
+    final SocketChannel channel;
+    final NioProxyListener.IOWorker worker;
+    final String remote;
+    SelectionKey key;
+
+    final ProxyClientQueue outQueue = new ProxyClientQueue();
+    final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    ByteBuffer pending = null;
+    // set by the worker once the binary framing acknowledgement has been written
+    ProxyFrameCodec.Encoder encoder = null;
+    boolean binaryRequested = false;
+
+    // partial input line
+    byte[] line = new byte[128];
+    int lineLength = 0;
+    volatile boolean closed = false;
+    volatile boolean overflowed = false;
+
+    NioProxyClientConnection(ProxyServer server, SocketChannel channel, NioProxyListener.IOWorker worker) {
+        synchronized (NioProxyClientConnection.class) {
+            thisClientId = ++clientId;
+        }
+        this.server = server;
+        this.channel = channel;
+        this.worker = worker;
+        this.remote = String.valueOf(channel.socket().getRemoteSocketAddress());
+        Logger.msg(1, "Proxy Client Connection "+thisClientId+" connect from "+remote);
+    }
+
+    /**
+     * Called by the I/O worker with freshly read bytes. Splits them into lines
+     * and processes each complete one.
+     */
+    void received(ByteBuffer data) {
+        while (data.hasRemaining() && !closed) {
+            byte b = data.get();
+            if (b == '\n' || b == '\r') {
+                if (lineLength > 0) {
+                    String input = decode(line, lineLength);
+                    lineLength = 0;
+                    Logger.msg(9, "NioProxyClientConnection "+thisClientId+" - received "+input);
+                    try {
+                        processMessage(new ProxyMessage(input));
+                    } catch (InvalidDataException ex) {
+                        Logger.error("NioProxyClientConnection "+thisClientId+" - Invalid proxy message: "+input);
+                    } catch (IOException ex) {
+                        Logger.error("NioProxyClientConnection "+thisClientId+" - Invalid proxy message: "+input);
+                    }
+                }
+            }
+            else {
+                if (lineLength == MAX_LINE) {
+                    Logger.error("NioProxyClientConnection "+thisClientId+" - Line too long. Disconnecting.");
+                    close();
+                    return;
+                }
+                if (lineLength == line.length)
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private void processMessage(ProxyMessage message) {
+
+        // proxy disconnection
+        if (message.getPath().equals(ProxyMessage.BYEPATH)) {
+            Logger.msg(7, "NioProxyClientConnection "+thisClientId+" disconnecting");
+            close();
+        }
+
+        // proxy checking connection
+        else if (message.getPath().equals(ProxyMessage.PINGPATH))
+            enqueue(ProxyMessage.pingMessage);
+
+        // client asks for binary frames: acknowledge in text, then switch
+        else if (message.getPath().equals(ProxyMessage.BINARYPATH)) {
+            if (!binaryRequested && Gateway.getProperties().getBoolean("ItemServer.Proxy.binary", true)) {
+                Logger.msg(7, "NioProxyClientConnection "+thisClientId+" switching to binary frames");
+                binaryRequested = true;
+                enqueue(ProxyMessage.binaryMessage);
+            }
+        }
+
+        // new subscription to entity changes
+        else if (message.getPath().equals(ProxyMessage.ADDPATH)) {
+            Logger.msg(7, "NioProxyClientConnection "+thisClientId+" subscribed to "+message.getItemPath());
+            server.subscribe(this, message.getItemPath());
+        }
+
+        // remove of subscription to entity changes
+        else if (message.getPath().equals(ProxyMessage.DELPATH)) {
+            server.unsubscribe(this, message.getItemPath());
+            Logger.msg(7, "NioProxyClientConnection "+thisClientId+" unsubscribed from "+message.getItemPath());
+        }
+
+        else // unknown message
+            Logger.error("NioProxyClientConnection "+thisClientId+" - Unknown message type: "+message);
+    }
+
+    /**
+     * The ProxyServer only calls this for messages the client subscribed to
+     */
+    @Override
+    public void sendMessage(ProxyMessage message) {
+        if (closed) return;
+        enqueue(message);
+    }
+
+    void enqueue(ProxyMessage message) {
+        // a client over its queue limit is dropped on the worker thread, as we may be inside the server's delivery loop
+        if (!outQueue.offer(message)) overflowed = true;
+        if (writeScheduled.compareAndSet(false, true))
+            worker.scheduleWrite(this);
+    }
+
+    /**
+     * Writes as much of the outgoing queue as the socket accepts. Only ever
+     * called on the worker thread. Registers for OP_WRITE if the socket buffer
+     * filled up, and drops that interest again once the queue is drained.
+     */
+    void flush() {
+        writeScheduled.set(false);
+        if (closed || key == null || !key.isValid()) return;
+        if (overflowed) {
+            close();
+            return;
+        }
+        try {
+            while (true) {
+                if (pending == null) pending = nextBatch();
+                if (pending == null) break;
+                channel.write(pending);
+                if (pending.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pending = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            Logger.msg(1, "NioProxyClientConnection "+thisClientId+" - Error writing to socket: "+ex.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Encodes as many queued messages as fit in one write, as one binary frame
+     * once the client has been switched to them.
+     */
+    private ByteBuffer nextBatch() {
+        ProxyMessage message = outQueue.poll();
+        if (message == null) return null;
+        if (encoder != null) {
+            ArrayList<ProxyMessage> batch = new ArrayList<ProxyMessage>();
+            do {
+                batch.add(message);
+            } while (batch.size() < BATCH_MESSAGES && (message = outQueue.poll()) != null);
+            return encoder.encode(batch);
+        }
+        StringBuilder batch = new StringBuilder();
+        do {
+            batch.append(message).append('\n');
+            if (message == ProxyMessage.binaryMessage) { // everything after the acknowledgement is framed
+                encoder = new ProxyFrameCodec.Encoder();
+                break;
+            }
+        } while (batch.length() < BATCH_SIZE && (message = outQueue.poll()) != null);
+        return encode(batch.toString());
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outQueue.size();
+    }
+
+    @Override
+    public void shutdown() {
+        Logger.msg("NioProxyClientConnection "+thisClientId+" closing.");
+        close();
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("NioProxyClientConnection "+thisClientId+" - Could not close socket.");
+        }
+        outQueue.close();
+        pending = null;
+        server.unRegisterProxyClient(this);
+        Logger.msg(1, "NioProxyClientConnection "+thisClientId+" closed.");
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return thisClientId+": "+remote+(closed?" (closed)":"");
+    }
+
+    static ByteBuffer encode(String lines) {
+        try {
+            return ByteBuffer.wrap(lines.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) { // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String decode(byte[] data, int length) {
+        try {
+            return new String(data, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Selector based listener for the {@link ProxyServer}, replacing the
+ * thread-per-client {@link org.cristalise.kernel.utils.server.SimpleTCPIPServer}.
+ * One thread accepts connections and hands them round-robin to a small, fixed
+ * set of {@link IOWorker}s, each of which multiplexes its share of the clients
+ * over a single Selector. Both run on the Service pool of
+ * {@link KernelExecutors}. The wire protocol is unchanged, so existing
+ * {@link ProxyServerConnection} clients connect as before.
+ */
+public class NioProxyListener implements Runnable {
+
+    final ProxyServer server;
+    final int maxClients;
+    final IOWorker[] workers;
+    ServerSocketChannel serverChannel;
+    int port;
+    volatile boolean keepListening = true;
+    int nextWorker = 0;
+
+    public NioProxyListener(ProxyServer server, int port, int ioThreads, int maxClients) throws IOException {
+        this.server = server;
+        this.maxClients = maxClients;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        this.port = serverChannel.socket().getLocalPort();
+        workers = new IOWorker[Math.max(1, ioThreads)];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new IOWorker(i);
+    }
+
+    public void startListening() {
+        for (IOWorker worker : workers)
+            KernelExecutors.execute(KernelExecutors.SERVICE, "Proxy Server I/O "+worker.id+" on port "+port, worker);
+        KernelExecutors.execute(KernelExecutors.SERVICE, "Proxy Server acceptor on port "+port, this);
+        Logger.msg("NioProxyListener: Listening on port "+port+" with "+workers.length+" I/O threads");
+    }
+
+    @Override
+    public void run() {
+        while (keepListening) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException ex) { // stopListening() closed the server channel
+                break;
+            } catch (IOException ex) {
+                Logger.error("NioProxyListener: Error accepting connection on port "+port);
+                Logger.error(ex);
+                continue;
+            }
+            if (server.getClientCount() >= maxClients) {
+                Logger.warning("NioProxyListener: "+maxClients+" proxy clients already connected. Refusing connection from "+
+                        channel.socket().getRemoteSocketAddress());
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IOWorker worker = workers[nextWorker++ % workers.length];
+                // the worker registers the client with the server once its channel has a key
+                worker.register(new NioProxyClientConnection(server, channel, worker));
+            } catch (IOException ex) {
+                Logger.error("NioProxyListener: Could not set up connection");
+                Logger.error(ex);
+                closeQuietly(channel);
+            }
+        }
+        Logger.msg("NioProxyListener: Server closed on port "+port);
+    }
+
+    public void stopListening() {
+        Logger.msg("NioProxyListener: Closing server on port "+port);
+        keepListening = false;
+        closeQuietly(serverChannel);
+        for (IOWorker worker : workers)
+            worker.shutdown();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Services the channels of one share of the clients. Registrations and
+     * write requests from other threads are queued and the selector woken,
+     * as SelectionKeys may only be safely manipulated from this thread.
+     */
+    class IOWorker implements Runnable {
+
+        final int id;
+        final Selector selector;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        final ConcurrentLinkedQueue<NioProxyClientConnection> newClients = new ConcurrentLinkedQueue<NioProxyClientConnection>();
+        final ConcurrentLinkedQueue<NioProxyClientConnection> writeRequests = new ConcurrentLinkedQueue<NioProxyClientConnection>();
+        volatile boolean running = true;
+
+        IOWorker(int id) throws IOException {
+            this.id = id;
+            selector = Selector.open();
+        }
+
+        void register(NioProxyClientConnection client) {
+            newClients.add(client);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(NioProxyClientConnection client) {
+            writeRequests.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    NioProxyClientConnection client;
+                    while ((client = newClients.poll()) != null)
+                        accept(client);
+                    while ((client = writeRequests.poll()) != null) {
+                        try {
+                            client.flush();
+                        } catch (RuntimeException ex) {
+                            drop(client, ex);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        client = (NioProxyClientConnection)key.attachment();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isReadable()) read(client);
+                            if (key.isValid() && key.isWritable()) client.flush();
+                        } catch (RuntimeException ex) { // e.g. CancelledKeyException: lose the client, not the worker
+                            drop(client, ex);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException ex) {
+            } catch (IOException ex) {
+                Logger.error("NioProxyListener: I/O worker "+id+" failed");
+                Logger.error(ex);
+            }
+            // close whatever is still connected
+            ArrayList<NioProxyClientConnection> remaining = new ArrayList<NioProxyClientConnection>();
+            try {
+                for (SelectionKey key : selector.keys())
+                    remaining.add((NioProxyClientConnection)key.attachment());
+            } catch (ClosedSelectorException ex) { }
+            for (NioProxyClientConnection client : remaining)
+                client.close();
+            closeQuietly(selector);
+        }
+
+        /**
+         * Registers the channel with the selector, and only then the client with
+         * the server, so it is never sent messages before it has a key.
+         */
+        private void accept(NioProxyClientConnection client) {
+            try {
+                client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+            } catch (ClosedChannelException ex) {
+                client.close();
+                return;
+            }
+            server.registerProxyClient(client);
+            if (client.isClosed()) server.unRegisterProxyClient(client); // closed while registering
+        }
+
+        private void drop(NioProxyClientConnection client, RuntimeException ex) {
+            Logger.error("NioProxyListener: I/O worker "+id+" dropping client "+client);
+            Logger.error(ex);
+            client.close();
+        }
+
+        private void read(NioProxyClientConnection client) {
+            readBuffer.clear();
+            int count;
+            try {
+                count = client.channel.read(readBuffer);
+            } catch (IOException ex) {
+                count = -1;
+            }
+            if (count < 0) {
+                client.close();
+                return;
+            }
+            readBuffer.flip();
+            client.received(readBuffer);
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+/**
+ * A remote proxy client connected to this server's {@link ProxyServer}. The
+ * server hands every queued {@link ProxyMessage} to each registered client,
+ * which decides whether its subscriptions make it relevant.
+ */
+public interface ProxyClient {
+
+    public void sendMessage(ProxyMessage message);
+
+    public void shutdown();
+
+    /** @return the number of messages waiting to be written to the client */
+    public int getQueueDepth();
+}
@@ -27,12 +27,10 @@ import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.cristalise.kernel.common.InvalidDataException;
-import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.utils.Logger;
 import org.cristalise.kernel.utils.server.SocketHandler;
 
@@ -46,20 +44,24 @@ import org.cristalise.kernel.utils.server.SocketHandler;
  * All rights reserved.
  **************************************************************************/
 
-public class ProxyClientConnection implements SocketHandler {
+public class ProxyClientConnection implements SocketHandler, ProxyClient {
 
 	Socket clientSocket = null;
     static int clientId = -1;
     int thisClientId;
-    ArrayList<ItemPath> subscribedItems;
+    ProxyServer server;
     PrintWriter response;
     BufferedReader request;
     boolean closing = false;
+    ProxyClientQueue outQueue;
+    volatile boolean overflowed = false;
 
     public ProxyClientConnection() {
         super();
         thisClientId = ++clientId;
-        Gateway.getProxyServer().registerProxyClient(this);
+        server = Gateway.getProxyServer();
+        outQueue = new ProxyClientQueue();
+        server.registerProxyClient(this);
         Logger.msg(1, "Proxy Client Connection Handler "+thisClientId+" ready.");
     }
 
@@ -81,7 +83,7 @@ public class ProxyClientConnection implements SocketHandler {
             newSocket.setSoTimeout(500);
             clientSocket = newSocket;
             response = new PrintWriter(clientSocket.getOutputStream(), true);
-            subscribedItems = new ArrayList<ItemPath>();
+            overflowed = false;
         } catch (SocketException ex) {
             Logger.msg("Could not set socket timeout:");
             Logger.error(ex);
@@ -100,6 +102,7 @@ public class ProxyClientConnection implements SocketHandler {
 	public void run() {
         Thread.currentThread().setName("Proxy Client Connection: "+clientSocket.getInetAddress());
         Logger.msg(7, "ProxyClientConnection "+thisClientId+" - Setting up proxy client connection with "+clientSocket.getInetAddress());
+        startWriter(clientSocket, response);
         try {
             request = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
             String input = null;
@@ -124,6 +127,28 @@ public class ProxyClientConnection implements SocketHandler {
         Logger.msg(1, "ProxyClientConnection "+thisClientId+" closed.");
     }
 
+    /**
+     * Writes queued messages to the client, so a client that does not read
+     * only fills its own queue instead of blocking the ProxyServer.
+     */
+    private void startWriter(final Socket socket, final PrintWriter out) {
+        KernelExecutors.execute(KernelExecutors.CONNECTION, "Proxy Client Writer: "+socket.getInetAddress(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (clientSocket == socket) {
+                        if (overflowed) {
+                            closeSocket();
+                            break;
+                        }
+                        ProxyMessage message = outQueue.take(500);
+                        if (message != null && clientSocket == socket) out.println(message);
+                    }
+                } catch (InterruptedException ex) { }
+            }
+        });
+    }
+
     private void processMessage(ProxyMessage message) throws InvalidDataException {
 
         // proxy disconnection
@@ -134,21 +159,21 @@ public class ProxyClientConnection implements SocketHandler {
 
         // proxy checking connection
         else if (message.getPath().equals(ProxyMessage.PINGPATH))
-        response.println(ProxyMessage.pingMessage);
+            sendMessage(ProxyMessage.pingMessage);
+
+        // binary frames are only offered by the NIO listener. Not answering keeps the client on text.
+        else if (message.getPath().equals(ProxyMessage.BINARYPATH))
+            Logger.msg(7, "ProxyClientConnection "+thisClientId+" - binary frames not supported");
 
         // new subscription to entity changes
         else if (message.getPath().equals(ProxyMessage.ADDPATH)) {
             Logger.msg(7, "ProxyClientConnection "+thisClientId+" subscribed to "+message.getItemPath());
-            synchronized (subscribedItems) {
-            	subscribedItems.add(message.getItemPath());
-            }
+            server.subscribe(this, message.getItemPath());
         }
 
         // remove of subscription to entity changes
         else if (message.getPath().equals(ProxyMessage.DELPATH)) {
-            synchronized (subscribedItems) {
-            	subscribedItems.remove(message.getItemPath());
-            }
+            server.unsubscribe(this, message.getItemPath());
             Logger.msg(7, "ProxyClientConnection "+thisClientId+" unsubscribed from "+message.getItemPath());
         }
 
@@ -157,19 +182,20 @@ public class ProxyClientConnection implements SocketHandler {
 
     }
 
-    public synchronized void sendMessage(ProxyMessage message) {
+    /**
+     * Not synchronized: the ProxyServer calls this while holding its client
+     * lock, which closeSocket() needs to drop the subscriptions. An overflow
+     * that requires disconnection is acted on by the writer thread.
+     */
+    @Override
+    public void sendMessage(ProxyMessage message) {
         if (clientSocket==null) return; // idle
-        boolean relevant = message.getItemPath() == null;
-        synchronized (subscribedItems) {
-            for (Iterator<ItemPath> iter = subscribedItems.iterator(); iter.hasNext() && !relevant;) {
-                ItemPath thisKey = iter.next();
-                if (thisKey.equals(message.getItemPath()))
-                    relevant = true;
-            }
-        }
-        if (!relevant) return; // not for our client
+        if (!outQueue.offer(message)) overflowed = true;
+    }
 
-        response.println(message);
+    @Override
+    public int getQueueDepth() {
+        return outQueue.size();
     }
 
     @Override
@@ -197,9 +223,8 @@ public class ProxyClientConnection implements SocketHandler {
             Logger.error("ProxyClientConnection "+thisClientId+" - Could not close socket.");
             Logger.error(e);
         }
-        synchronized (subscribedItems) {
-        	subscribedItems = null;
-        }
+        server.unsubscribeAll(this);
+        outQueue.clear();
 
         clientSocket = null;
 
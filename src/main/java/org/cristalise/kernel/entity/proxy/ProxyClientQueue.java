@@ -0,0 +1,213 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Bounded queue of messages waiting to be written to one proxy client. When
+ * the client does not read fast enough for the queue to stay below its
+ * capacity, the configured {@link OverflowPolicy} decides what is given up.
+ * <p>
+ * Capacity and policy are read from ItemServer.Proxy.queueLimit (default
+ * 10000) and ItemServer.Proxy.overflowPolicy (default RESYNC).
+ */
+public class ProxyClientQueue {
+
+    public enum OverflowPolicy {
+        /**
+         * Stop queueing and only remember which Item clusters and domain paths
+         * changed. Once the client has drained its queue it is sent one refresh
+         * per changed cluster (e.g. "uuid:Property"), which makes its proxies
+         * clear their caches and reload.
+         */
+        RESYNC,
+        /**
+         * Collapse the queue in place to one message per Item cluster or
+         * domain path, replacing repeated cluster changes by a refresh of the
+         * cluster. If that frees no space, fall back to RESYNC.
+         */
+        COALESCE,
+        /**
+         * Disconnect the client. It reconnects and resubscribes on its own.
+         */
+        DISCONNECT
+    }
+
+    final int capacity;
+    final OverflowPolicy policy;
+    final ArrayDeque<ProxyMessage> queue = new ArrayDeque<ProxyMessage>();
+    // changes not queued while resyncing, by coalescing key
+    final LinkedHashMap<String, ProxyMessage> dirty = new LinkedHashMap<String, ProxyMessage>();
+    boolean resyncing = false;
+    boolean closed = false;
+
+    public ProxyClientQueue() {
+        this(Gateway.getProperties().getInt("ItemServer.Proxy.queueLimit", 10000),
+             OverflowPolicy.valueOf(Gateway.getProperties().getString("ItemServer.Proxy.overflowPolicy", OverflowPolicy.RESYNC.name())));
+    }
+
+    public ProxyClientQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a message for the client.
+     *
+     * @return false if the queue overflowed and the DISCONNECT policy
+     * requires the client to be dropped
+     */
+    public synchronized boolean offer(ProxyMessage message) {
+        if (closed) return true;
+        if (resyncing) {
+            markDirty(message);
+            return true;
+        }
+        if (queue.size() >= capacity) {
+            KernelStats.proxy.recordOverflow();
+            if (policy == OverflowPolicy.DISCONNECT) {
+                Logger.warning("ProxyClientQueue - client queue full with "+queue.size()+" messages. Disconnecting.");
+                KernelStats.proxy.recordSlowClientDisconnected();
+                clear();
+                return false;
+            }
+            if (policy == OverflowPolicy.COALESCE) {
+                coalesce();
+                if (queue.size() < capacity) return enqueue(message);
+            }
+            // RESYNC, or COALESCE when nothing could be merged
+            Logger.msg(3, "ProxyClientQueue - client queue full with "+queue.size()+" messages. Switching to resync.");
+            KernelStats.proxy.recordDropped(queue.size());
+            resyncing = true;
+            for (ProxyMessage queued : queue) markDirty(queued);
+            queue.clear();
+            markDirty(message);
+            return true;
+        }
+        return enqueue(message);
+    }
+
+    private boolean enqueue(ProxyMessage message) {
+        queue.add(message);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return the next message to send, or null if there is none. Pending
+     * refreshes are released once the queue has been drained.
+     */
+    public synchronized ProxyMessage poll() {
+        if (queue.isEmpty() && resyncing) releaseDirty();
+        return queue.poll();
+    }
+
+    /**
+     * Waits up to the given time for a message.
+     */
+    public synchronized ProxyMessage take(long timeout) throws InterruptedException {
+        ProxyMessage next = poll();
+        if (next == null && !closed) {
+            wait(timeout);
+            next = poll();
+        }
+        return next;
+    }
+
+    private void releaseDirty() {
+        for (Iterator<ProxyMessage> iter = dirty.values().iterator(); iter.hasNext() && queue.size() < capacity;) {
+            queue.add(iter.next());
+            iter.remove();
+        }
+        if (dirty.isEmpty()) resyncing = false;
+    }
+
+    private void markDirty(ProxyMessage message) {
+        String key = getCoalescingKey(message);
+        ProxyMessage previous = dirty.remove(key);
+        if (previous != null) KernelStats.proxy.recordCoalesced(1);
+        // re-insert so the change keeps its latest position
+        dirty.put(key, message.getItemPath() == null ? message : getRefresh(message));
+    }
+
+    private void coalesce() {
+        LinkedHashMap<String, ProxyMessage> merged = new LinkedHashMap<String, ProxyMessage>();
+        for (ProxyMessage queued : queue) {
+            String key = getCoalescingKey(queued);
+            ProxyMessage previous = merged.remove(key);
+            if (previous != null && queued.getItemPath() != null)
+                queued = getRefresh(queued);
+            merged.put(key, queued);
+        }
+        int saved = queue.size() - merged.size();
+        if (saved > 0) {
+            KernelStats.proxy.recordCoalesced(saved);
+            queue.clear();
+            queue.addAll(merged.values());
+        }
+    }
+
+    /**
+     * Item changes are merged per Item cluster, domain tree changes per path
+     */
+    static String getCoalescingKey(ProxyMessage message) {
+        ItemPath item = message.getItemPath();
+        if (item == null) return "tree:"+message.getPath();
+        return item.getUUID()+":"+getCluster(message.getPath());
+    }
+
+    static ProxyMessage getRefresh(ProxyMessage message) {
+        return new ProxyMessage(message.getItemPath(), getCluster(message.getPath()), ProxyMessage.ADDED);
+    }
+
+    static String getCluster(String path) {
+        int slash = path.indexOf('/');
+        return slash == -1 ? path : path.substring(0, slash);
+    }
+
+    public synchronized int size() {
+        return queue.size() + dirty.size();
+    }
+
+    public synchronized boolean isResyncing() {
+        return resyncing;
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+        dirty.clear();
+        resyncing = false;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        clear();
+        notifyAll();
+    }
+}
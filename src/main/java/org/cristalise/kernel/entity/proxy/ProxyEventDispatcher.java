@@ -0,0 +1,196 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Runs proxy notifications off the server connection's socket thread. Tasks
+ * for the same key (the ItemPath of the message) run one after the other in
+ * the order they were dispatched, while tasks for different keys run in
+ * parallel on the given pool. The number of waiting tasks is bounded: when the
+ * limit is reached {@link #dispatch(Object, Runnable)} blocks, which slows the
+ * reading of the connection instead of buffering without limit.
+ * <p>
+ * Tasks never run on the dispatching thread. A key whose work the pool
+ * rejects is re-queued, and taken up by the next pool thread to finish a key.
+ */
+public class ProxyEventDispatcher {
+
+    static final int FAIRNESS_BATCH = 64;
+
+    final Executor executor;
+    final Semaphore capacity;
+    final int limit;
+    volatile boolean shutdown = false;
+    // per key queues of waiting tasks, present while the key has work. Guarded by itself.
+    final HashMap<Object, KeyQueue> queues = new HashMap<Object, KeyQueue>();
+    // keys with work that the pool rejected, waiting for a free pool thread. Guarded by queues.
+    final ArrayDeque<KeyQueue> rejected = new ArrayDeque<KeyQueue>();
+
+    /**
+     * @param executor runs the tasks. It should reject rather than run tasks in the caller.
+     * @param limit the most tasks that may be waiting or running
+     */
+    public ProxyEventDispatcher(Executor executor, int limit) {
+        this.executor = executor;
+        this.limit = limit;
+        capacity = new Semaphore(limit);
+    }
+
+    /**
+     * Queues the task behind any others waiting for the same key
+     */
+    public void dispatch(Object key, Runnable task) throws InterruptedException {
+        if (shutdown) return;
+        capacity.acquire();
+        Task queued = new Task(task);
+        KeyQueue start = null;
+        synchronized (queues) {
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                start = new KeyQueue(key);
+                queues.put(key, start);
+                queue = start;
+            }
+            queue.tasks.add(queued);
+            // retry a rejected key, in case no pool thread was left to take it up
+            if (start == null) start = rejected.poll();
+        }
+        // never submit under the lock, the pool may block or run the task in this thread
+        if (start != null) submit(start);
+    }
+
+    /**
+     * Hands the key to the pool, or re-queues it if the pool is full. If the
+     * pool is shut down, the waiting keys are dropped so their permits are
+     * released and dispatch() cannot block on them.
+     */
+    void submit(KeyQueue queue) {
+        try {
+            executor.execute(queue);
+        } catch (RejectedExecutionException ex) {
+            boolean stopped = shutdown || (executor instanceof ExecutorService && ((ExecutorService)executor).isShutdown());
+            synchronized (queues) {
+                if (!stopped) {
+                    Logger.msg(5, "ProxyEventDispatcher - pool full, re-queueing "+queue.key);
+                    rejected.add(queue);
+                    return;
+                }
+                Logger.warning("ProxyEventDispatcher - pool is shut down, dropping the events of "+(rejected.size()+1)+" keys");
+                drop(queue);
+                for (KeyQueue waiting = rejected.poll(); waiting != null; waiting = rejected.poll())
+                    drop(waiting);
+            }
+        }
+    }
+
+    /**
+     * Releases the permits of the key's tasks and forgets it. Called under the lock.
+     */
+    private void drop(KeyQueue queue) {
+        capacity.release(queue.tasks.size());
+        queue.tasks.clear();
+        queues.remove(queue.key);
+    }
+
+    /** @return the number of dispatched tasks that have not finished yet */
+    public int getQueueDepth() {
+        return limit - capacity.availablePermits();
+    }
+
+    /**
+     * Drops the waiting tasks and ignores any dispatched later. The pool belongs to the caller.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    static class Task {
+        final Runnable runnable;
+        final long queued = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Drains the tasks of one key. Only one KeyQueue runs per key, which
+     * removes itself from the map once it finds no more work. The pool thread
+     * then carries on with any key the pool rejected.
+     */
+    class KeyQueue implements Runnable {
+        final Object key;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (KeyQueue next = this; next != null; next = next.drain());
+        }
+
+        /**
+         * @return the rejected key this thread should drain next, if any
+         */
+        KeyQueue drain() {
+            for (int done = 0; done < FAIRNESS_BATCH; done++) {
+                Task next;
+                synchronized (queues) {
+                    next = tasks.poll();
+                    if (shutdown) {
+                        for (; next != null; next = tasks.poll())
+                            capacity.release();
+                    }
+                    if (next == null) {
+                        queues.remove(key);
+                        return rejected.poll();
+                    }
+                }
+                KernelStats.proxy.recordDispatch(System.nanoTime() - next.queued);
+                try {
+                    next.runnable.run();
+                } catch (Throwable ex) {
+                    Logger.error("ProxyEventDispatcher - Error dispatching proxy event for "+key);
+                    Logger.error(ex);
+                } finally {
+                    capacity.release();
+                }
+            }
+            // give the other keys a turn
+            submit(this);
+            synchronized (queues) {
+                return rejected.poll();
+            }
+        }
+    }
+}
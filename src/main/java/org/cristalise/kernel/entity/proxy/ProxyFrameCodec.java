@@ -0,0 +1,183 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.SystemKey;
+import org.cristalise.kernel.lookup.ItemPath;
+
+/**
+ * Binary framing of proxy messages, negotiated per connection in place of the
+ * text lines of {@link ProxyMessage#toString()}. A client asks for it by
+ * sending the line "tree:binary"; a server supporting it answers with the same
+ * line and from then on writes frames. Servers that don't ignore the request,
+ * so the client stays on the text protocol.
+ * <p>
+ * A frame is a 4 byte length followed by a batch of records:
+ * <ul>
+ * <li>DEFINE: varint code, UTF path prefix - adds an entry to the connection's path table
+ * <li>ITEM_ADDED/ITEM_DELETED: 16 byte UUID, varint prefix code, UTF last path segment
+ * <li>TREE_ADDED/TREE_DELETED: UTF domain path
+ * </ul>
+ * Item paths are split before their last segment, so the prefixes interned in
+ * the table ("Property", "AuditTrail", "ViewPoint/Schema"...) stay few while
+ * event ids and names are sent literally.
+ */
+public class ProxyFrameCodec {
+
+    static final byte DEFINE = 0;
+    static final byte ITEM_ADDED = 1;
+    static final byte ITEM_DELETED = 2;
+    static final byte TREE_ADDED = 3;
+    static final byte TREE_DELETED = 4;
+
+    /** prefix code 0 means the segment holds the whole path */
+    static final int NO_PREFIX = 0;
+    static final int MAX_CODES = 4096;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * Writes frames for one connection, remembering which prefixes it has defined
+     */
+    public static class Encoder {
+        final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+
+        public ByteBuffer encode(List<ProxyMessage> messages) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + messages.size() * 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(0); // length placeholder
+                for (ProxyMessage message : messages) write(message, out);
+                out.flush();
+            } catch (IOException e) { // not thrown by ByteArrayOutputStream
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.limit() - 4);
+            return frame;
+        }
+
+        private void write(ProxyMessage message, DataOutputStream out) throws IOException {
+            if (message.getItemPath() == null) {
+                out.writeByte(message.getState() == ProxyMessage.DELETED ? TREE_DELETED : TREE_ADDED);
+                out.writeUTF(message.getPath());
+                return;
+            }
+            String path = message.getPath();
+            int split = path.lastIndexOf('/');
+            int code = NO_PREFIX;
+            if (split > 0) {
+                String prefix = path.substring(0, split);
+                Integer known = codes.get(prefix);
+                if (known != null) code = known;
+                else if (codes.size() < MAX_CODES) {
+                    code = codes.size() + 1;
+                    codes.put(prefix, code);
+                    out.writeByte(DEFINE);
+                    writeVarInt(out, code);
+                    out.writeUTF(prefix);
+                }
+            }
+            SystemKey key = message.getItemPath().getSystemKey();
+            out.writeByte(message.getState() == ProxyMessage.DELETED ? ITEM_DELETED : ITEM_ADDED);
+            out.writeLong(key.msb);
+            out.writeLong(key.lsb);
+            writeVarInt(out, code);
+            out.writeUTF(code == NO_PREFIX ? path : path.substring(split + 1));
+        }
+    }
+
+    /**
+     * Reads the frame payloads of one connection, in order
+     */
+    public static class Decoder {
+        final ArrayList<String> prefixes = new ArrayList<String>();
+
+        public Decoder() {
+            prefixes.add(null); // NO_PREFIX
+        }
+
+        public List<ProxyMessage> decode(byte[] payload) throws InvalidDataException {
+            ArrayList<ProxyMessage> messages = new ArrayList<ProxyMessage>();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            try {
+                while (in.available() > 0) {
+                    byte type = in.readByte();
+                    switch (type) {
+                    case DEFINE:
+                        int code = readVarInt(in);
+                        if (code != prefixes.size())
+                            throw new InvalidDataException("Proxy frame defines path code "+code+", expected "+prefixes.size());
+                        prefixes.add(in.readUTF());
+                        break;
+                    case ITEM_ADDED:
+                    case ITEM_DELETED:
+                        ItemPath item = new ItemPath(new SystemKey(in.readLong(), in.readLong()));
+                        int prefixCode = readVarInt(in);
+                        if (prefixCode >= prefixes.size())
+                            throw new InvalidDataException("Unknown path code "+prefixCode+" in proxy frame");
+                        String segment = in.readUTF();
+                        String path = prefixCode == NO_PREFIX ? segment : prefixes.get(prefixCode)+"/"+segment;
+                        messages.add(new ProxyMessage(item, path, type == ITEM_DELETED));
+                        break;
+                    case TREE_ADDED:
+                    case TREE_DELETED:
+                        messages.add(new ProxyMessage(null, in.readUTF(), type == TREE_DELETED));
+                        break;
+                    default:
+                        throw new InvalidDataException("Unknown record type "+type+" in proxy frame");
+                    }
+                }
+            } catch (IOException e) {
+                throw new InvalidDataException("Truncated proxy frame: "+e.getMessage());
+            }
+            return messages;
+        }
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.cristalise.kernel.common.InvalidDataException;
+
+/**
+ * Reads proxy messages from a server connection, as text lines until the
+ * server acknowledges a binary frame request, then as frames. Partially read
+ * lines and frames are kept across socket read timeouts, so the caller may
+ * ping the server and call {@link #read()} again.
+ */
+public class ProxyFrameReader {
+
+    final InputStream in;
+    final ProxyFrameCodec.Decoder decoder = new ProxyFrameCodec.Decoder();
+    boolean binary = false;
+
+    // partial line
+    final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    // partial frame
+    final byte[] header = new byte[4];
+    int headerRead = 0;
+    byte[] payload = null;
+    int payloadRead = 0;
+
+    public ProxyFrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next message, or the messages of the next frame. Empty when
+     * the server acknowledged binary framing.
+     * @throws java.io.InterruptedIOException on socket timeout
+     */
+    public List<ProxyMessage> read() throws IOException, InvalidDataException {
+        if (!binary) {
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) throw new EOFException("Proxy server closed the connection");
+                if (b != '\r') line.write(b);
+            }
+            String text = line.toString("UTF-8");
+            line.reset();
+            ProxyMessage message = new ProxyMessage(text);
+            if (message.getItemPath() == null && message.getPath().equals(ProxyMessage.BINARYPATH)) {
+                binary = true;
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(message);
+        }
+
+        while (headerRead < 4) {
+            int count = in.read(header, headerRead, 4 - headerRead);
+            if (count == -1) throw new EOFException("Proxy server closed the connection");
+            headerRead += count;
+        }
+        if (payload == null) {
+            int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            if (length < 0 || length > ProxyFrameCodec.MAX_FRAME)
+                throw new IOException("Invalid proxy frame length "+length);
+            payload = new byte[length];
+            payloadRead = 0;
+        }
+        while (payloadRead < payload.length) {
+            int count = in.read(payload, payloadRead, payload.length - payloadRead);
+            if (count == -1) throw new EOFException("Proxy server closed the connection");
+            payloadRead += count;
+        }
+        byte[] frame = payload;
+        payload = null;
+        headerRead = 0;
+        return decoder.decode(frame);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+}
@@ -20,7 +20,6 @@
  */
 package org.cristalise.kernel.entity.proxy;
 
-import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -33,6 +32,7 @@ import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.lookup.Path;
 import org.cristalise.kernel.persistency.ClusterStorage;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.property.Property;
 import org.cristalise.kernel.utils.Logger;
 import org.cristalise.kernel.utils.SoftCache;
@@ -42,8 +42,12 @@ import org.cristalise.kernel.utils.SoftCache;
 public class ProxyManager
 {
     SoftCache<ItemPath, ItemProxy>       proxyPool     = new SoftCache<ItemPath, ItemProxy>(50);
-    HashMap<DomainPathSubscriber, DomainPath>         treeSubscribers = new HashMap<DomainPathSubscriber, DomainPath>();
+    TreeSubscriptionIndex                            treeSubscribers = new TreeSubscriptionIndex();
     HashMap<String, ProxyServerConnection>         connections = new HashMap<String, ProxyServerConnection>();
+    // tree changes share one key, so are dispatched in order
+    static final Object TREE_KEY = new Object();
+    ProxyEventDispatcher dispatcher = new ProxyEventDispatcher(KernelExecutors.get(KernelExecutors.PROXY_DISPATCH),
+            Gateway.getProperties().getInt("ProxyManager.dispatchQueueLimit", 10000));
 
     /**
      * Create a proxy manager to listen for proxy events and reap unused proxies
@@ -102,14 +106,38 @@ public class ProxyManager
         for (ProxyServerConnection element : connections.values()) {
             element.shutdown();
         }
+        dispatcher.shutdown();
     }
 
-    protected void processMessage(ProxyMessage thisMessage) throws InvalidDataException {
+    public int getDispatchQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * Hands a message received from a proxy server to the dispatcher, so the
+     * connection can carry on reading while proxies and their observers are
+     * notified. Messages for the same Item are processed in order.
+     */
+    protected void processMessage(final ProxyMessage thisMessage) throws InvalidDataException {
         if (Logger.doLog(9)) Logger.msg(9, thisMessage.toString());
 
         if (thisMessage.getPath().equals(ProxyMessage.PINGPATH)) // ping response
             return;
 
+        Object key = thisMessage.getItemPath() == null ? TREE_KEY : thisMessage.getItemPath();
+        try {
+            dispatcher.dispatch(key, new Runnable() {
+                @Override
+                public void run() {
+                    deliverMessage(thisMessage);
+                }
+            });
+        } catch (InterruptedException e) {
+            Logger.warning("ProxyManager.processMessage() - interrupted while dispatching "+thisMessage);
+        }
+    }
+
+    void deliverMessage(ProxyMessage thisMessage) {
         if (thisMessage.getItemPath() == null) // must be domain path info
             informTreeSubscribers(thisMessage.getState(), thisMessage.getPath());
         else {
@@ -129,37 +157,15 @@ public class ProxyManager
     }
 
     private void informTreeSubscribers(boolean state, String path) {
-        DomainPath last = new DomainPath(path);
-        DomainPath parent; boolean first = true;
-        synchronized(treeSubscribers) {
-            while((parent = last.getParent()) != null) {
-            	ArrayList<DomainPathSubscriber> currentKeys = new ArrayList<DomainPathSubscriber>();
-            	currentKeys.addAll(treeSubscribers.keySet());
-                for (DomainPathSubscriber sub : currentKeys) {
-                    DomainPath interest = treeSubscribers.get(sub);
-                    if (interest!= null && interest.equals(parent)) {
-                        if (state == ProxyMessage.ADDED)
-                            sub.pathAdded(last);
-                        else if (first)
-                            sub.pathRemoved(last);
-                    }
-                }
-            last = parent;
-            first = false;
-            }
-        }
+        treeSubscribers.inform(state, path);
     }
 
     public void subscribeTree(DomainPathSubscriber sub, DomainPath interest) {
-        synchronized(treeSubscribers) {
-            treeSubscribers.put(sub, interest);
-        }
+        treeSubscribers.subscribe(sub, interest);
     }
 
     public void unsubscribeTree(DomainPathSubscriber sub) {
-        synchronized(treeSubscribers) {
-            treeSubscribers.remove(sub);
-        }
+        treeSubscribers.unsubscribe(sub);
     }
 
    /**************************************************************************
@@ -45,11 +45,13 @@ public class ProxyMessage {
     public static final String ADDPATH = "add";
     public static final String DELPATH = "del";
     public static final String PINGPATH = "ping";
+    public static final String BINARYPATH = "binary";
     public static final boolean ADDED = false;
     public static final boolean DELETED = true;
 
     static ProxyMessage byeMessage = new ProxyMessage(null, BYEPATH, ADDED);
     static ProxyMessage pingMessage = new ProxyMessage(null, PINGPATH, ADDED);
+    static ProxyMessage binaryMessage = new ProxyMessage(null, BINARYPATH, ADDED);
 
     private ItemPath itemPath = null;
     private String path = "";
@@ -0,0 +1,76 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Collects the proxy messages generated by the writes of one transaction, so
+ * they reach the {@link ProxyServer} as a single envelope once the commit has
+ * succeeded. Repeated changes to the same path are reduced to the last one.
+ */
+public class ProxyMessageBatch {
+
+    final LinkedHashMap<String, ProxyMessage> messages = new LinkedHashMap<String, ProxyMessage>();
+    int eventCount = 0;
+
+    public void add(ProxyMessage message) {
+        eventCount++;
+        String key = (message.getItemPath()==null?"tree":message.getItemPath().getUUID())+":"+message.getPath();
+        // re-insert so the latest change keeps its position in the batch
+        messages.remove(key);
+        messages.put(key, message);
+    }
+
+    public Collection<ProxyMessage> getMessages() {
+        return messages.values();
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /** @return the number of changes added, before de-duplication */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Hands the batch to the local ProxyServer, if there is one
+     */
+    public void send() {
+        if (isEmpty()) return;
+        KernelStats.proxy.recordBatch(eventCount, messages.size());
+        if (Gateway.getProxyServer() != null)
+            Gateway.getProxyServer().sendProxyEvents(this);
+        else
+            Logger.warning("ProxyMessageBatch.send() - ProxyServer is null - Proxies are not notified of "+messages.size()+" changes");
+    }
+}
@@ -21,9 +21,16 @@
 package org.cristalise.kernel.entity.proxy;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.stats.KernelStats;
 import org.cristalise.kernel.utils.Logger;
 import org.cristalise.kernel.utils.server.SimpleTCPIPServer;
 
@@ -31,18 +38,34 @@ import org.cristalise.kernel.utils.server.SimpleTCPIPServer;
 public class ProxyServer implements Runnable {
 
     // server objects
-    ArrayList<ProxyClientConnection> proxyClients;
+    ArrayList<ProxyClient> proxyClients;
+    // subscription index, guarded by proxyClients
+    HashMap<ItemPath, HashSet<ProxyClient>> itemSubscribers = new HashMap<ItemPath, HashSet<ProxyClient>>();
+    HashMap<ProxyClient, HashSet<ItemPath>> clientSubscriptions = new HashMap<ProxyClient, HashSet<ItemPath>>();
+    HashSet<ProxyClient> wildcardSubscribers = new HashSet<ProxyClient>();
     SimpleTCPIPServer proxyListener = null;
+    NioProxyListener nioListener = null;
     String serverName = null;
     boolean keepRunning = true;
-    LinkedBlockingQueue<ProxyMessage> messageQueue;
+    // envelopes of messages, each delivered as one unit
+    LinkedBlockingQueue<Collection<ProxyMessage>> messageQueue;
     
 	public ProxyServer(String serverName) {
+        this(serverName, Gateway.getProperties().getInt("ItemServer.Proxy.port", 0));
+	}
+
+	/**
+	 * Starts a proxy server on the given port. Unless ItemServer.Proxy.nio is
+	 * set to false, clients are served by a {@link NioProxyListener} with
+	 * ItemServer.Proxy.ioThreads selector threads (default 2), accepting up to
+	 * ItemServer.Proxy.maxClients connections (default 10000). Otherwise the
+	 * legacy thread-per-client listener is used, limited to 200 clients.
+	 */
+	public ProxyServer(String serverName, int port) {
         Logger.msg(5, "ProxyManager::initServer - Starting.....");
-        int port = Gateway.getProperties().getInt("ItemServer.Proxy.port", 0);
         this.serverName = serverName;
-        this.proxyClients = new ArrayList<ProxyClientConnection>();
-        this.messageQueue = new LinkedBlockingQueue<ProxyMessage>();
+        this.proxyClients = new ArrayList<ProxyClient>();
+        this.messageQueue = new LinkedBlockingQueue<Collection<ProxyMessage>>();
         
         if (port == 0) {
             Logger.error("ItemServer.Proxy.port not defined in connect file. Remote proxies will not be informed of changes.");
@@ -52,26 +75,34 @@ public class ProxyServer implements Runnable {
         // set up the proxy server
         try {
             Logger.msg(5, "ProxyManager::initServer - Initialising proxy informer on port "+port);
-            proxyListener = new SimpleTCPIPServer(port, ProxyClientConnection.class, 200);
-            proxyListener.startListening();
+            if (Gateway.getProperties().getBoolean("ItemServer.Proxy.nio", true)) {
+                nioListener = new NioProxyListener(this, port,
+                        Gateway.getProperties().getInt("ItemServer.Proxy.ioThreads", 2),
+                        Gateway.getProperties().getInt("ItemServer.Proxy.maxClients", 10000));
+                nioListener.startListening();
+            }
+            else {
+                proxyListener = new SimpleTCPIPServer(port, ProxyClientConnection.class, 200);
+                proxyListener.startListening();
+            }
         } catch (Exception ex) {
             Logger.error("Error setting up Proxy Server. Remote proxies will not be informed of changes.");
             Logger.error(ex);
         }
         // start the message queue delivery thread
-        new Thread(this).start();
+        KernelExecutors.execute(KernelExecutors.SERVICE, "Proxy Server message delivery", this);
 	}
 	
 	@Override
 	public void run() {
 		
 		while(keepRunning) {
-			ProxyMessage message = messageQueue.poll();
-			if (message != null) {
+			Collection<ProxyMessage> envelope = messageQueue.poll();
+			if (envelope != null) {
 	            synchronized(proxyClients) {
-	                for (ProxyClientConnection client : proxyClients) {
-	                    client.sendMessage(message);
-	                }
+	                int sent = 0;
+	                for (ProxyMessage message : envelope) sent += deliver(message);
+	                KernelStats.proxy.recordSent(sent);
 	            }
 			} else
 				try {
@@ -83,23 +114,95 @@ public class ProxyServer implements Runnable {
 
 	}
 
+	/**
+	 * Routes a message to its subscribers. Called with the proxyClients lock held.
+	 *
+	 * @return the number of clients it was given to
+	 */
+	private int deliver(ProxyMessage message) {
+        if (message.getItemPath() == null) { // tree changes go to everyone
+            for (ProxyClient client : proxyClients) client.sendMessage(message);
+            return proxyClients.size();
+        }
+        int sent = 0;
+        HashSet<ProxyClient> subscribers = itemSubscribers.get(message.getItemPath());
+        if (subscribers != null) {
+            for (ProxyClient client : subscribers) client.sendMessage(message);
+            sent = subscribers.size();
+        }
+        for (ProxyClient client : wildcardSubscribers) {
+            if (subscribers != null && subscribers.contains(client)) continue;
+            client.sendMessage(message);
+            sent++;
+        }
+        return sent;
+	}
+
+	public int getPort() {
+		if (nioListener != null) return nioListener.getPort();
+		if (proxyListener != null) return proxyListener.getPort();
+		return 0;
+	}
+
 	public String getServerName() {
 		return serverName;
 	}
 
     public void sendProxyEvent(ProxyMessage message) {
+        queue(Collections.singletonList(message));
+    }
+
+    /**
+     * Queues all messages of a committed transaction as one envelope
+     */
+    public void sendProxyEvents(ProxyMessageBatch batch) {
+        if (!batch.isEmpty())
+            queue(new ArrayList<ProxyMessage>(batch.getMessages()));
+    }
+
+    private void queue(Collection<ProxyMessage> envelope) {
 		try {
 			synchronized(this) { 
-				messageQueue.put(message);
+				messageQueue.put(envelope);
 				notify(); 
 			}
+			KernelStats.proxy.recordQueued(envelope.size());
 		} catch (InterruptedException e) { }
     }
 
+    public int getClientCount() {
+        synchronized(proxyClients) {
+            return proxyClients.size();
+        }
+    }
+
+    public int getQueueDepth() {
+        return messageQueue.size();
+    }
+
+    /**
+     * @return the total number of messages waiting in the clients' outbound queues
+     */
+    public int getClientQueueDepth() {
+        int depth = 0;
+        synchronized(proxyClients) {
+            for (ProxyClient client : proxyClients) depth += client.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public int getMaxClientQueueDepth() {
+        int max = 0;
+        synchronized(proxyClients) {
+            for (ProxyClient client : proxyClients) max = Math.max(max, client.getQueueDepth());
+        }
+        return max;
+    }
+
     public void reportConnections(int logLevel) {
         synchronized(proxyClients) {
             Logger.msg(logLevel, "Currently connected proxy clients:");
-            for (ProxyClientConnection client : proxyClients) {
+            for (ProxyClient client : proxyClients) {
                 Logger.msg(logLevel, "   "+client);
             }
         }
@@ -107,22 +210,90 @@ public class ProxyServer implements Runnable {
 
     public void shutdownServer() {
         Logger.msg(1, "ProxyManager: Closing Server.");
-        proxyListener.stopListening();
+        if (nioListener != null) nioListener.stopListening();
+        if (proxyListener != null) proxyListener.stopListening();
         synchronized(this) { 
         	keepRunning = false; 
         	notify();
         }
     }
 
-    public void registerProxyClient(ProxyClientConnection client) {
+    public void registerProxyClient(ProxyClient client) {
         synchronized(proxyClients) {
             proxyClients.add(client);
         }
     }
 
-    public void unRegisterProxyClient(ProxyClientConnection client) {
+    public void unRegisterProxyClient(ProxyClient client) {
         synchronized(proxyClients) {
             proxyClients.remove(client);
+            unsubscribeAll(client);
+        }
+    }
+
+    /**
+     * Subscribes a client to the changes of an Item. A null ItemPath
+     * subscribes it to the changes of all Items.
+     */
+    public void subscribe(ProxyClient client, ItemPath item) {
+        synchronized(proxyClients) {
+            if (item == null) {
+                wildcardSubscribers.add(client);
+                return;
+            }
+            HashSet<ProxyClient> subscribers = itemSubscribers.get(item);
+            if (subscribers == null) {
+                subscribers = new HashSet<ProxyClient>();
+                itemSubscribers.put(item, subscribers);
+            }
+            subscribers.add(client);
+            HashSet<ItemPath> items = clientSubscriptions.get(client);
+            if (items == null) {
+                items = new HashSet<ItemPath>();
+                clientSubscriptions.put(client, items);
+            }
+            items.add(item);
+        }
+    }
+
+    public void unsubscribe(ProxyClient client, ItemPath item) {
+        synchronized(proxyClients) {
+            if (item == null) {
+                wildcardSubscribers.remove(client);
+                return;
+            }
+            removeSubscriber(item, client);
+            HashSet<ItemPath> items = clientSubscriptions.get(client);
+            if (items != null) {
+                items.remove(item);
+                if (items.isEmpty()) clientSubscriptions.remove(client);
+            }
+        }
+    }
+
+    /**
+     * Removes all subscriptions of the client, e.g. when it disconnects
+     */
+    public void unsubscribeAll(ProxyClient client) {
+        synchronized(proxyClients) {
+            wildcardSubscribers.remove(client);
+            HashSet<ItemPath> items = clientSubscriptions.remove(client);
+            if (items != null)
+                for (ItemPath item : items) removeSubscriber(item, client);
+        }
+    }
+
+    private void removeSubscriber(ItemPath item, ProxyClient client) {
+        HashSet<ProxyClient> subscribers = itemSubscribers.get(item);
+        if (subscribers != null) {
+            subscribers.remove(client);
+            if (subscribers.isEmpty()) itemSubscribers.remove(item);
+        }
+    }
+
+    public int getSubscribedItemCount() {
+        synchronized(proxyClients) {
+            return itemSubscribers.size();
         }
     }
 
@@ -20,19 +20,20 @@
  */
 package org.cristalise.kernel.entity.proxy;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.net.Socket;
 
 import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.utils.Logger;
 
 
 
-public class ProxyServerConnection extends Thread
+public class ProxyServerConnection implements Runnable
 {
 
     public boolean serverIsActive = true;
@@ -56,7 +57,7 @@ public class ProxyServerConnection extends Thread
         serverPort = port;
         this.manager = manager;
         listening = true;
-        start();
+        KernelExecutors.get(KernelExecutors.CONNECTION).execute(this);
     }
 
     @Override
@@ -66,20 +67,17 @@ public class ProxyServerConnection extends Thread
             try {
                 if (serverConnection == null) connect();
                 if (serverConnection != null) {
-                    BufferedReader request = new BufferedReader(new InputStreamReader(serverConnection.getInputStream()));
-                    String input = null;
-                    ProxyMessage thisMessage;
+                    ProxyFrameReader request = new ProxyFrameReader(new BufferedInputStream(serverConnection.getInputStream()));
                     while (listening && serverConnection != null) {
                         try {
-                            input = request.readLine();
-                            thisMessage = new ProxyMessage(input);
-                            thisMessage.setServer(serverName);
-                            manager.processMessage(thisMessage);
+                            for (ProxyMessage thisMessage : request.read()) {
+                                thisMessage.setServer(serverName);
+                                manager.processMessage(thisMessage);
+                            }
                         } catch (InterruptedIOException ex) { // timeout - send a ping
                             sendMessage(ProxyMessage.pingMessage);
                         } catch (InvalidDataException ex) { // invalid proxy message
-                            if (input != null)
-                                Logger.error("EntityProxyManager - Invalid proxy message: "+input);
+                            Logger.error("EntityProxyManager - Invalid proxy message: "+ex.getMessage());
                         }
                     }
                 }
@@ -117,6 +115,9 @@ public class ProxyServerConnection extends Thread
             serverIsActive = true;
             serverConnection.setSoTimeout(5000);
             serverStream = new PrintWriter(serverConnection.getOutputStream(), true);
+            // ask for binary frames. Servers without them ignore this and keep sending text.
+            if (Gateway.getProperties().getBoolean("ItemServer.Proxy.binary", true))
+                serverStream.println(ProxyMessage.binaryMessage);
             Logger.msg("Connected to proxy server on "+serverName+":"+serverPort);
             manager.resubscribe(this);
         } catch (Exception e) {
@@ -0,0 +1,93 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.entity.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.cristalise.kernel.lookup.DomainPath;
+
+/**
+ * The {@link DomainPathSubscriber}s of a {@link ProxyManager}, indexed by the
+ * DomainPath they watch. A change to a domain path concerns the subscribers of
+ * each of its ancestors, which are looked up directly instead of checking every
+ * subscription, so informing them costs one lookup per level of the path plus
+ * the callbacks made.
+ * <p>
+ * Subscribers are called with the index locked, as before, so they may
+ * subscribe or unsubscribe from their callbacks on the same thread.
+ */
+public class TreeSubscriptionIndex {
+
+    final HashMap<DomainPathSubscriber, DomainPath> interests = new HashMap<DomainPathSubscriber, DomainPath>();
+    final HashMap<DomainPath, ArrayList<DomainPathSubscriber>> subscribers = new HashMap<DomainPath, ArrayList<DomainPathSubscriber>>();
+
+    /**
+     * Subscribes to the children of the interest, replacing any earlier subscription of the same subscriber
+     */
+    public synchronized void subscribe(DomainPathSubscriber sub, DomainPath interest) {
+        unsubscribe(sub);
+        interests.put(sub, interest);
+        ArrayList<DomainPathSubscriber> subs = subscribers.get(interest);
+        if (subs == null) {
+            subs = new ArrayList<DomainPathSubscriber>(1);
+            subscribers.put(interest, subs);
+        }
+        subs.add(sub);
+    }
+
+    public synchronized void unsubscribe(DomainPathSubscriber sub) {
+        DomainPath interest = interests.remove(sub);
+        if (interest == null) return;
+        ArrayList<DomainPathSubscriber> subs = subscribers.get(interest);
+        subs.remove(sub);
+        if (subs.isEmpty()) subscribers.remove(interest);
+    }
+
+    /**
+     * Tells the subscribers of each ancestor of the path that the child leading
+     * to the path was added. Removals are only reported to subscribers of the
+     * direct parent.
+     */
+    public synchronized void inform(boolean state, String path) {
+        DomainPath last = new DomainPath(path);
+        DomainPath parent;
+        while ((parent = last.getParent()) != null) {
+            ArrayList<DomainPathSubscriber> subs = subscribers.get(parent);
+            if (subs != null) {
+                // copied, as the callbacks may change the subscriptions
+                for (DomainPathSubscriber sub : new ArrayList<DomainPathSubscriber>(subs)) {
+                    if (!parent.equals(interests.get(sub))) continue; // unsubscribed by an earlier callback
+                    if (state == ProxyMessage.ADDED)
+                        sub.pathAdded(last);
+                    else
+                        sub.pathRemoved(last);
+                }
+            }
+            if (state != ProxyMessage.ADDED) break;
+            last = parent;
+        }
+    }
+
+    public synchronized int size() {
+        return interests.size();
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.events;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.cristalise.kernel.entity.C2KLocalObject;
+import org.cristalise.kernel.persistency.ClusterStorage;
+
+/**
+ * Secondary index over the AuditTrail of one Item, so the History can find
+ * events by step path, agent or time without loading every Event.
+ * <p>
+ * Only the indexed fields of each Event are kept, as a list of
+ * {@link EventIndexEntry} in event ID order. The lookup maps are built from
+ * that list the first time the index is queried. Instances are never modified
+ * once stored, because the same object may be shared through the storage
+ * cache - {@link #add(List)} returns a new index instead.
+ * <p>
+ * The index is stored in chunks of {@link #CHUNK_SIZE} events, as
+ * "EventIndex/AuditTrail/<i>chunk number</i>", so that the History only has to
+ * rewrite the last chunk in the same transaction as each new Event. The
+ * chunks are combined again with {@link #merge(Collection)}.
+ */
+public class EventIndex implements C2KLocalObject {
+
+	public static final int CHUNK_SIZE = 100;
+
+	String mName = ClusterStorage.HISTORY;
+	ArrayList<EventIndexEntry> entries;
+
+	// built lazily from the entries
+	HashMap<String, ArrayList<Integer>> byStep;
+	HashMap<String, ArrayList<Integer>> byAgent;
+	// by schema name for the 'last' view, and by schema/view for named views
+	HashMap<String, ArrayList<Integer>> byView;
+	TreeMap<Long, ArrayList<Integer>> byTime;
+
+	public EventIndex() {
+		entries = new ArrayList<EventIndexEntry>();
+	}
+
+	/**
+	 * Returns a copy of this index with the given events appended. Events
+	 * already covered by the index are skipped.
+	 */
+	public EventIndex add(List<Event> events) {
+		EventIndex newIndex = new EventIndex();
+		newIndex.mName = mName;
+		newIndex.entries = new ArrayList<EventIndexEntry>(entries.size()+events.size());
+		newIndex.entries.addAll(entries);
+		int last = getLastEventId();
+		for (Event ev : events) {
+			if (ev.getID() <= last) continue;
+			newIndex.entries.add(new EventIndexEntry(ev));
+			last = ev.getID();
+		}
+		return newIndex;
+	}
+
+	/**
+	 * @return the number of the stored chunk that holds the entry of the given event
+	 */
+	public static int getChunkNumber(int eventId) {
+		return eventId / CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns the entries of one chunk as a new index, named to be stored
+	 * under "EventIndex/AuditTrail/<i>chunk</i>".
+	 */
+	public EventIndex getChunk(int chunk) {
+		EventIndex chunkIndex = new EventIndex();
+		chunkIndex.mName = ClusterStorage.HISTORY+"/"+chunk;
+		chunkIndex.entries = new ArrayList<EventIndexEntry>(entries.subList(
+				findEntry(chunk*CHUNK_SIZE), findEntry((chunk+1)*CHUNK_SIZE)));
+		return chunkIndex;
+	}
+
+	/**
+	 * @return the position of the first entry whose event ID is not less than the given one
+	 */
+	private int findEntry(int eventId) {
+		int low = 0, high = entries.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries.get(mid).getEventId() < eventId)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Combines stored chunks, in any order, into a single index
+	 */
+	public static EventIndex merge(Collection<EventIndex> chunks) {
+		EventIndex merged = new EventIndex();
+		for (EventIndex chunk : chunks)
+			merged.entries.addAll(chunk.getEntries());
+		Collections.sort(merged.entries, new Comparator<EventIndexEntry>() {
+			@Override
+			public int compare(EventIndexEntry e1, EventIndexEntry e2) {
+				return e1.getEventId() < e2.getEventId() ? -1 : e1.getEventId() == e2.getEventId() ? 0 : 1;
+			}
+		});
+		return merged;
+	}
+
+	/**
+	 * @return the ID of the newest indexed event, or -1 if the index is empty
+	 */
+	public int getLastEventId() {
+		if (entries.isEmpty()) return -1;
+		return entries.get(entries.size()-1).getEventId();
+	}
+
+	private synchronized void buildMaps() {
+		if (byStep != null) return;
+		HashMap<String, ArrayList<Integer>> steps = new HashMap<String, ArrayList<Integer>>();
+		HashMap<String, ArrayList<Integer>> agents = new HashMap<String, ArrayList<Integer>>();
+		HashMap<String, ArrayList<Integer>> views = new HashMap<String, ArrayList<Integer>>();
+		TreeMap<Long, ArrayList<Integer>> times = new TreeMap<Long, ArrayList<Integer>>();
+		for (EventIndexEntry entry : entries) {
+			addTo(steps, entry.getStepPath(), entry.getEventId());
+			addTo(agents, entry.getAgentUUID(), entry.getEventId());
+			addTo(times, entry.getTime(), entry.getEventId());
+			if (entry.getSchemaName() != null) {
+				addTo(views, entry.getSchemaName(), entry.getEventId());
+				String viewName = entry.getViewName();
+				if (viewName != null && viewName.length() > 0 && !viewName.equals("last"))
+					addTo(views, entry.getSchemaName()+"/"+viewName, entry.getEventId());
+			}
+		}
+		byAgent = agents;
+		byView = views;
+		byTime = times;
+		byStep = steps;
+	}
+
+	private static <K> void addTo(Map<K, ArrayList<Integer>> map, K key, Integer id) {
+		if (key == null) return;
+		ArrayList<Integer> ids = map.get(key);
+		if (ids == null) {
+			ids = new ArrayList<Integer>(1);
+			map.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	/**
+	 * @return the IDs of all events of the given step, in ascending order
+	 */
+	public synchronized List<Integer> getEventIdsForStep(String stepPath) {
+		buildMaps();
+		return copy(byStep.get(stepPath));
+	}
+
+	/**
+	 * @return the IDs of all events performed by the agent with the given UUID, in ascending order
+	 */
+	public synchronized List<Integer> getEventIdsForAgent(String agentUUID) {
+		buildMaps();
+		return copy(byAgent.get(agentUUID));
+	}
+
+	/**
+	 * Returns the IDs of all events with a timestamp between the given bounds,
+	 * in time order.
+	 * @param from earliest time in milliseconds, inclusive
+	 * @param to latest time in milliseconds, inclusive
+	 */
+	public synchronized List<Integer> getEventIdsBetween(long from, long to) {
+		buildMaps();
+		ArrayList<Integer> result = new ArrayList<Integer>();
+		if (from > to) return result;
+		for (ArrayList<Integer> ids : byTime.subMap(from, true, to, true).values())
+			result.addAll(ids);
+		return result;
+	}
+
+	/**
+	 * Finds the latest event up to the given time that stored an outcome in a
+	 * view. Every outcome of a schema is written to its 'last' view.
+	 *
+	 * @param time latest time in milliseconds, inclusive
+	 * @return the event ID, or -1 if the view had not been written by then
+	 */
+	public synchronized int getLastEventIdForView(String schemaName, String viewName, long time) {
+		buildMaps();
+		ArrayList<Integer> ids = byView.get("last".equals(viewName) ? schemaName : schemaName+"/"+viewName);
+		if (ids == null) return -1;
+		// events are recorded in time order
+		int low = 0, high = ids.size()-1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (entries.get(findEntry(ids.get(mid))).getTime() <= time) {
+				found = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		return found == -1 ? -1 : ids.get(found);
+	}
+
+	private static List<Integer> copy(Collection<Integer> ids) {
+		if (ids == null) return new ArrayList<Integer>();
+		return new ArrayList<Integer>(ids);
+	}
+
+	public ArrayList<EventIndexEntry> getEntries() {
+		return entries;
+	}
+
+	public synchronized void setEntries(ArrayList<EventIndexEntry> entries) {
+		this.entries = entries;
+		byStep = null;
+	}
+
+	@Override
+	public void setName(String name) {
+		mName = name;
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String getClusterType() {
+		return ClusterStorage.EVENTINDEX;
+	}
+}
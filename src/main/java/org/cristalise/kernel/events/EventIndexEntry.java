@@ -0,0 +1,120 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.events;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.cristalise.kernel.common.GTimeStamp;
+
+/**
+ * One row of the {@link EventIndex}: the fields of an Event that the History
+ * can be queried on, without the rest of the Event.
+ */
+public class EventIndexEntry {
+
+	int eventId;
+	String stepPath;
+	String agentUUID;
+	long time;
+	String schemaName;
+	String viewName;
+
+	public EventIndexEntry() {
+	}
+
+	public EventIndexEntry(Event ev) {
+		eventId = ev.getID();
+		stepPath = ev.getStepPath();
+		agentUUID = ev.getAgentUUID();
+		time = toMillis(ev.getTimeStamp());
+		schemaName = ev.getSchemaName();
+		viewName = ev.getViewName();
+	}
+
+	static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/**
+	 * Converts an Event timestamp to milliseconds since the epoch. Timestamps
+	 * hold the local time of the server that recorded them, with second
+	 * precision, and the raw offset of its time zone in milliseconds. That
+	 * offset leaves out daylight saving time, so timestamps from a zone with
+	 * this server's raw offset are read in its own zone, which knows when
+	 * daylight saving applied. Others are converted with the offset alone.
+	 */
+	public static long toMillis(GTimeStamp ts) {
+		if (ts == null) return 0;
+		TimeZone local = TimeZone.getDefault();
+		boolean isLocal = ts.mTimeOffset == local.getRawOffset();
+		Calendar cal = Calendar.getInstance(isLocal ? local : UTC);
+		cal.clear();
+		cal.set(ts.mYear, ts.mMonth-1, ts.mDay, ts.mHour, ts.mMinute, ts.mSecond);
+		return isLocal ? cal.getTimeInMillis() : cal.getTimeInMillis() - ts.mTimeOffset;
+	}
+
+	public int getEventId() {
+		return eventId;
+	}
+
+	public void setEventId(int eventId) {
+		this.eventId = eventId;
+	}
+
+	public String getStepPath() {
+		return stepPath;
+	}
+
+	public void setStepPath(String stepPath) {
+		this.stepPath = stepPath;
+	}
+
+	public String getAgentUUID() {
+		return agentUUID;
+	}
+
+	public void setAgentUUID(String agentUUID) {
+		this.agentUUID = agentUUID;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	public String getSchemaName() {
+		return schemaName;
+	}
+
+	public void setSchemaName(String schemaName) {
+		this.schemaName = schemaName;
+	}
+
+	public String getViewName() {
+		return viewName;
+	}
+
+	public void setViewName(String viewName) {
+		this.viewName = viewName;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.events;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cristalise.kernel.common.GTimeStamp;
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.lookup.InvalidItemPathException;
+import org.cristalise.kernel.utils.StaxMarshaller;
+
+/**
+ * StAX form of the Event and GTimeStamp mappings in HistoryMap.xml and
+ * KeyValuePairMap.xml
+ */
+public class EventMarshaller extends StaxMarshaller<Event> {
+
+	@Override
+	public Class<Event> getMappedClass() {
+		return Event.class;
+	}
+
+	@Override
+	public String getRootElement() {
+		return "Event";
+	}
+
+	@Override
+	public void write(Event ev, StringBuilder out) throws InvalidDataException {
+		if (ev.getItemPath() == null)
+			throw new InvalidDataException("Event has no ItemPath");
+		out.append("<Event");
+		appendAttribute(out, "ID", ev.getID());
+		appendAttribute(out, "ItemUUID", ev.getItemUUID());
+		appendAttribute(out, "AgentUUID", ev.getAgentUUID());
+		appendAttribute(out, "StepName", ev.getStepName());
+		appendAttribute(out, "StepPath", ev.getStepPath());
+		appendAttribute(out, "StepType", ev.getStepType());
+		appendAttribute(out, "SchemaName", ev.getSchemaName());
+		appendAttribute(out, "SchemaVersion", ev.getSchemaVersion());
+		appendAttribute(out, "StateMachineName", ev.getStateMachineName());
+		appendAttribute(out, "StateMachineVersion", ev.getStateMachineVersion());
+		appendAttribute(out, "ViewName", ev.getViewName());
+		appendAttribute(out, "OriginState", ev.getOriginState());
+		appendAttribute(out, "TargetState", ev.getTargetState());
+		appendAttribute(out, "Transition", ev.getTransition());
+		appendAttribute(out, "AgentRole", ev.getAgentRole());
+		GTimeStamp ts = ev.getTimeStamp();
+		if (ts == null) {
+			out.append("/>");
+			return;
+		}
+		out.append("><TimeStamp");
+		appendAttribute(out, "Y", ts.mYear);
+		appendAttribute(out, "Mo", ts.mMonth);
+		appendAttribute(out, "D", ts.mDay);
+		appendAttribute(out, "H", ts.mHour);
+		appendAttribute(out, "Mi", ts.mMinute);
+		appendAttribute(out, "S", ts.mSecond);
+		appendAttribute(out, "O", ts.mTimeOffset);
+		out.append("/></Event>");
+	}
+
+	@Override
+	public Event read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		Event ev = new Event();
+		Integer id = getInteger(reader, "ID");
+		if (id != null) ev.setID(id);
+		try {
+			String itemUUID = getString(reader, "ItemUUID");
+			if (itemUUID != null) ev.setItemUUID(itemUUID);
+			String agentUUID = getString(reader, "AgentUUID");
+			if (agentUUID != null) ev.setAgentUUID(agentUUID);
+		} catch (InvalidItemPathException ex) {
+			throw new InvalidDataException(ex.getMessage());
+		}
+		ev.setStepName(getString(reader, "StepName"));
+		ev.setStepPath(getString(reader, "StepPath"));
+		ev.setStepType(getString(reader, "StepType"));
+		ev.setSchemaName(getString(reader, "SchemaName"));
+		ev.setSchemaVersion(getInteger(reader, "SchemaVersion"));
+		ev.setStateMachineName(getString(reader, "StateMachineName"));
+		ev.setStateMachineVersion(getInteger(reader, "StateMachineVersion"));
+		ev.setViewName(getString(reader, "ViewName"));
+		ev.setOriginState(getInt(reader, "OriginState", 0));
+		ev.setTargetState(getInt(reader, "TargetState", 0));
+		ev.setTransition(getInt(reader, "Transition", 0));
+		ev.setAgentRole(getString(reader, "AgentRole"));
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			checkElement(reader, "TimeStamp");
+			GTimeStamp ts = new GTimeStamp();
+			ts.mYear = getInt(reader, "Y", 0);
+			ts.mMonth = getInt(reader, "Mo", 0);
+			ts.mDay = getInt(reader, "D", 0);
+			ts.mHour = getInt(reader, "H", 0);
+			ts.mMinute = getInt(reader, "Mi", 0);
+			ts.mSecond = getInt(reader, "S", 0);
+			ts.mTimeOffset = getInt(reader, "O", 0);
+			skipEmptyElement(reader);
+			ev.setTimeStamp(ts);
+		}
+		return ev;
+	}
+}
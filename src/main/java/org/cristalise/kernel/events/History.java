@@ -20,13 +20,19 @@
  */
 package org.cristalise.kernel.events;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.lifecycle.instance.stateMachine.Transition;
 import org.cristalise.kernel.lookup.AgentPath;
 import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.persistency.ClusterStorage;
 import org.cristalise.kernel.persistency.RemoteMap;
+import org.cristalise.kernel.process.Gateway;
 import org.cristalise.kernel.utils.Logger;
 
 
@@ -43,9 +49,14 @@ import org.cristalise.kernel.utils.Logger;
 public class History extends RemoteMap<Event> {
 
 	int lastID = -1;
+	EventIndex index;
+	// the oldest index entry not yet written to storage
+	int firstUnstoredEntry = Integer.MAX_VALUE;
+	boolean indexEvents;
 
     public History(ItemPath itemPath, Object locker) {
         super(itemPath, ClusterStorage.HISTORY, locker);
+        indexEvents = Gateway.getProperties().getBoolean("History.indexEvents", false);
     }
     public Event addEvent(AgentPath agentPath, String agentRole,
             String stepName,
@@ -135,10 +146,120 @@ public class History extends RemoteMap<Event> {
             newEvent.setID(newEventID);
             put(newEvent.getName(), newEvent);
             lastID = newEventID;
+            if (indexEvents) {
+                try {
+                    // only the chunks holding new entries are rewritten, normally just the last one
+                    EventIndex current = getIndex();
+                    for (int chunk = EventIndex.getChunkNumber(firstUnstoredEntry); chunk <= EventIndex.getChunkNumber(newEventID); chunk++)
+                        storage.put(mItemPath, current.getChunk(chunk), mLocker);
+                    firstUnstoredEntry = Integer.MAX_VALUE;
+                } catch (PersistencyException e) {
+                    Logger.error("History.storeNewEvent() - could not store event index of "+mItemPath);
+                    Logger.error(e);
+                }
+            }
             return newEvent;
         }
     }
 
+    /**
+     * Returns the event index of this History, brought up to date with the
+     * latest event. If 'History.indexEvents' is set, the index is read from
+     * and kept in storage in chunks, otherwise it is built in memory on first use.
+     * Events stored without the index, such as imported events or those
+     * written before indexing was enabled, are added to it here.
+     */
+    protected synchronized EventIndex getIndex() {
+        if (index == null) {
+            if (indexEvents) {
+                String indexPath = ClusterStorage.EVENTINDEX+"/"+ClusterStorage.HISTORY;
+                try {
+                    ArrayList<EventIndex> chunks = new ArrayList<EventIndex>();
+                    for (String chunk : storage.getClusterContents(mItemPath, indexPath))
+                        chunks.add((EventIndex)storage.get(mItemPath, indexPath+"/"+chunk, mLocker));
+                    if (chunks.isEmpty())
+                        Logger.msg(5, "History.getIndex() - no event index stored for "+mItemPath+", building one");
+                    else
+                        index = EventIndex.merge(chunks);
+                } catch (ObjectNotFoundException | PersistencyException e) {
+                    Logger.error(e);
+                }
+            }
+            if (index == null) index = new EventIndex();
+        }
+        int last = getLastId();
+        if (index.getLastEventId() < last) {
+            ArrayList<Event> missing = new ArrayList<Event>();
+            for (int i = index.getLastEventId()+1; i <= last; i++) {
+                String key = String.valueOf(i);
+                if (!containsKey(key)) continue;
+                Event ev = get(key);
+                if (ev != null) missing.add(ev);
+            }
+            if (!missing.isEmpty()) firstUnstoredEntry = Math.min(firstUnstoredEntry, missing.get(0).getID());
+            index = index.add(missing);
+        }
+        return index;
+    }
+
+    /**
+     * @return all events of the given step, oldest first
+     */
+    public List<Event> getEventsForStep(String stepPath) {
+        return getEvents(getIndex().getEventIdsForStep(stepPath));
+    }
+
+    /**
+     * @return the latest event of the given step, or null if it has no events
+     */
+    public Event getLastEventForStep(String stepPath) {
+        List<Integer> ids = getIndex().getEventIdsForStep(stepPath);
+        if (ids.isEmpty()) return null;
+        return getEvent(ids.get(ids.size()-1));
+    }
+
+    /**
+     * @return all events performed by the given agent, oldest first
+     */
+    public List<Event> getEventsByAgent(AgentPath agentPath) {
+        return getEvents(getIndex().getEventIdsForAgent(agentPath.getUUID().toString()));
+    }
+
+    /**
+     * @return all events performed by the named agent, oldest first
+     * @throws ObjectNotFoundException if the agent does not exist
+     */
+    public List<Event> getEventsByAgent(String agentName) throws ObjectNotFoundException {
+        return getEventsByAgent(Gateway.getLookup().getAgentPath(agentName));
+    }
+
+    /**
+     * Returns the events recorded between the given times, in time order.
+     * @param from the earliest time, inclusive. Null for no lower bound.
+     * @param to the latest time, inclusive. Null for no upper bound.
+     */
+    public List<Event> getEventsBetween(Date from, Date to) {
+        return getEvents(getIndex().getEventIdsBetween(
+                from==null?Long.MIN_VALUE:from.getTime(), to==null?Long.MAX_VALUE:to.getTime()));
+    }
+
+    /**
+     * @return the latest event up to the given date that stored an outcome in the view, or null if there was none
+     */
+    public Event getLastEventForView(String schemaName, String viewName, Date date) {
+        int id = getIndex().getLastEventIdForView(schemaName, viewName, date.getTime());
+        return id == -1 ? null : getEvent(id);
+    }
+
+    private List<Event> getEvents(List<Integer> ids) {
+        ArrayList<Event> events = new ArrayList<Event>(ids.size());
+        for (Integer id : ids) {
+            Event ev = getEvent(id);
+            if (ev != null) events.add(ev);
+        }
+        return events;
+    }
+
     public Event getEvent(int id) {
     	return get(String.valueOf(id));
     }
@@ -49,9 +49,11 @@ import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.lookup.Path;
 import org.cristalise.kernel.lookup.RolePath;
 import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.OutcomeValidator;
 import org.cristalise.kernel.persistency.outcome.Schema;
 import org.cristalise.kernel.persistency.outcome.Viewpoint;
 import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.utils.DateUtility;
 import org.cristalise.kernel.utils.LocalObjectLoader;
 import org.cristalise.kernel.utils.Logger;
@@ -180,6 +182,12 @@ public class Activity extends WfVertex
 				storeOutcome = true;
 			else if (transition.getOutcome().isRequired()) 
 				throw new InvalidDataException("Transition requires outcome data, but none was given");
+			// optionally check the outcome on the server too, validating the stream before any Outcome is built
+			if (storeOutcome && Gateway.getProperties().getBoolean("Activity.validateOutcome", false)) {
+				String errors = OutcomeValidator.getValidator(schema).validate(requestData);
+				if (errors.length() > 0)
+					throw new InvalidDataException("Outcome not valid for "+schema.docType+" v"+schema.docVersion+": "+errors);
+			}
 		}
 		
 		// Get new state
@@ -189,6 +197,11 @@ public class Activity extends WfVertex
 		// Run extra logic in predefined steps here
 		String outcome = runActivityLogic(agent, itemPath, transitionID, requestData);
 
+		// check the outcome is well-formed before anything is written
+		Outcome newOutcome = null;
+		if (storeOutcome)
+			newOutcome = new Outcome(-1, outcome, schema.docType, schema.docVersion);
+
 		// set new state and reservation
 		setState(newState.getId());
 		getProperties().put("Agent Name", transition.getReservation(this, agent));
@@ -207,7 +220,7 @@ public class Activity extends WfVertex
 			Logger.msg(7, "Activity::auditEvent() - Event:" + newEvent.getName() + " was added to the AuditTrail");
 	
 			if (storeOutcome) {
-				Outcome newOutcome = new Outcome(newEvent.getID(), outcome, schema.docType, schema.docVersion);
+				newOutcome.setID(newEvent.getID());
 				Gateway.getStorage().put(itemPath, newOutcome, getWf());
 				
 				// update specific view if defined
@@ -232,6 +245,7 @@ public class Activity extends WfVertex
 		}
 		
 		DateUtility.setToNow(mStateDate);
+		updateWorklist(itemPath);
 		
 		//refresh all the job lists
 		String agentRole = getCurrentAgentRole();
@@ -335,6 +349,7 @@ public class Activity extends WfVertex
 	public void runNext(AgentPath agent, ItemPath itemPath) throws InvalidDataException
 	{
 		setActive(false);
+		updateWorklist(itemPath);
 		try
 		{
 			Vertex[] outVertices = getOutGraphables();
@@ -430,6 +445,7 @@ public class Activity extends WfVertex
 		else
 		{
 			DateUtility.setToNow(mStateDate);
+			updateWorklist(itemPath);
 			pushJobsToAgents(itemPath);
 		}
 	}
@@ -506,6 +522,12 @@ public class Activity extends WfVertex
 	}
 
 
+	/** Updates this activity's entry in the server's worklist index, if there is one */
+	protected void updateWorklist(ItemPath itemPath) {
+		WorklistIndex worklist = Gateway.getWorklistIndex();
+		if (worklist != null) worklist.update(itemPath, this);
+	}
+
 	public void pushJobsToAgents(ItemPath itemPath) {
 		String agentRole = getCurrentAgentRole();
 		if (agentRole != null && agentRole.length()>0) {
@@ -521,7 +543,7 @@ public class Activity extends WfVertex
 	public void pushJobsToAgents(ItemPath itemPath, RolePath role)
 	{
 		if (role.hasJobList())
-			new JobPusher(this, itemPath, role).start();
+			KernelExecutors.get(KernelExecutors.JOB_PUSHER).execute(new JobPusher(this, itemPath, role));
 		Iterator<Path> childRoles = role.getChildren();
 		while (childRoles.hasNext()) {
 			RolePath childRole = (RolePath)childRoles.next();
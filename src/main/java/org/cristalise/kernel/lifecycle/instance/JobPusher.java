@@ -33,7 +33,7 @@ import org.cristalise.kernel.process.Gateway;
 import org.cristalise.kernel.utils.Logger;
 
 
-final class JobPusher extends Thread {
+final class JobPusher implements Runnable {
     private final Activity activity;
     private final RolePath myRole;
     private final ItemPath itemPath;
@@ -22,6 +22,7 @@ package org.cristalise.kernel.lifecycle.instance;
 
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.cristalise.kernel.common.AccessRightsException;
@@ -157,6 +158,21 @@ public abstract class WfVertex extends GraphableVertex
 
             KeyValuePair[] k = getProperties().getKeyValuePairs();
             HashMap<?, ?> requiredInput = script.getAllInputParams();
+
+            // fetch all viewpoint data together, so each viewpoint is only read once
+            ArrayList<String> viewValues = new ArrayList<String>();
+            for (KeyValuePair element : k) {
+                String value = element.getStringValue();
+                if (requiredInput.containsKey(element.getKey()) && value.startsWith("viewpoint//")) {
+                    value = value.substring(11);
+                    if (value.startsWith("."))
+                        value = itemPath.getUUID() + value.substring(1);
+                    viewValues.add(value);
+                }
+            }
+            Object[][] viewData = ViewpointDataHelper.get(viewValues.toArray(new String[viewValues.size()]));
+
+            int viewIndex = 0;
             for (KeyValuePair element : k) {
                 if (requiredInput.containsKey(element.getKey()))
                 {
@@ -165,11 +181,9 @@ public abstract class WfVertex extends GraphableVertex
 
                     if (value.startsWith("viewpoint//"))
                     {
-                        value = value.substring(11);
-                        if (value.startsWith("."))
-                            value = itemPath.getUUID() + value.substring(1);
+                        value = viewValues.get(viewIndex);
                         try {
-                            inputParam = ViewpointDataHelper.get(value)[0];
+                            inputParam = viewData[viewIndex++][0];
                         } catch (ArrayIndexOutOfBoundsException ex) {
                             throw new InvalidDataException("Could not retrieve data from viewpoint: "+value);
                         }
@@ -0,0 +1,278 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.lifecycle.instance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cristalise.kernel.graph.model.GraphableVertex;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.State;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.Transition;
+import org.cristalise.kernel.lookup.AgentPath;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.lookup.RolePath;
+import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Server-side index of the activities that can currently be worked on, by the
+ * role that may perform them, so the worklist of a role or agent is a map
+ * lookup rather than a walk over every Item's workflow.
+ * <p>
+ * Activities update their entry whenever their state or activation changes.
+ * The index is held by the Gateway of a server process, and filled at startup
+ * by {@link #rebuild(Iterator, ClusterStorageManager)}. Only the elementary activities of the domain
+ * workflow are indexed.
+ * <p>
+ * The rebuild runs while Items already serve requests, so it reads workflows
+ * that may be older than the changes indexed meanwhile. Activities and
+ * workflows updated during a rebuild are recorded, and the rebuild leaves them
+ * as they are.
+ */
+public class WorklistIndex {
+
+	static final String DOMAIN_PATH = "workflow/domain/";
+
+	// work items by role name, then by item and step path
+	HashMap<String, LinkedHashMap<String, WorkItem>> byRole = new HashMap<String, LinkedHashMap<String, WorkItem>>();
+	// roles each activity is listed under, by item and step path
+	HashMap<String, ArrayList<String>> rolesByStep = new HashMap<String, ArrayList<String>>();
+	// activity keys, and item UUIDs for whole workflows, indexed while a rebuild runs. Null otherwise.
+	HashSet<String> liveUpdates;
+
+	/**
+	 * Recalculates the entries of an activity after a change of state or activation
+	 */
+	public void update(ItemPath itemPath, Activity act) {
+		if (act instanceof CompositeActivity || !act.getPath().startsWith(DOMAIN_PATH)) return;
+		String key = itemPath.getUUID()+"/"+act.getPath();
+		HashMap<String, WorkItem> newItems = getWorkItems(itemPath, act);
+		synchronized (this) {
+			if (liveUpdates != null) liveUpdates.add(key);
+			removeEntries(key);
+			putEntries(key, newItems);
+		}
+	}
+
+	/**
+	 * @return the work the activity offers in its current state, by role
+	 */
+	private static HashMap<String, WorkItem> getWorkItems(ItemPath itemPath, Activity act) {
+		HashMap<String, WorkItem> newItems = new HashMap<String, WorkItem>();
+		try {
+			State state = act.getStateMachine().getState(act.getState());
+			for (Transition trans : state.getPossibleTransitions().values()) {
+				if (!isAvailable(act, trans)) continue;
+				String role = trans.resolveRoleOverride(act.getProperties());
+				if (role == null || role.length() == 0) role = act.getCurrentAgentRole();
+				if (role == null || role.length() == 0) continue;
+				WorkItem item = newItems.get(role);
+				if (item == null) {
+					item = new WorkItem(itemPath, act, state.getName());
+					newItems.put(role, item);
+				}
+				item.transitions.add(trans.getName());
+			}
+		} catch (Exception ex) {
+			Logger.error("WorklistIndex.update() - could not index "+act.getPath()+" of "+itemPath+": "+ex.getMessage());
+		}
+		return newItems;
+	}
+
+	private void putEntries(String key, HashMap<String, WorkItem> newItems) {
+		if (newItems.isEmpty()) return;
+		rolesByStep.put(key, new ArrayList<String>(newItems.keySet()));
+		for (Map.Entry<String, WorkItem> entry : newItems.entrySet()) {
+			LinkedHashMap<String, WorkItem> roleItems = byRole.get(entry.getKey());
+			if (roleItems == null) {
+				roleItems = new LinkedHashMap<String, WorkItem>();
+				byRole.put(entry.getKey(), roleItems);
+			}
+			roleItems.put(key, entry.getValue());
+		}
+	}
+
+	private static boolean isAvailable(Activity act, Transition trans) {
+		if (trans.isRequiresActive() && !act.getActive()) return false;
+		try {
+			return trans.isEnabled(act.getProperties());
+		} catch (RuntimeException ex) { // enabling property missing or not a boolean
+			return false;
+		}
+	}
+
+	/**
+	 * Removes all of the activities of an Item, e.g. when its workflow is replaced
+	 */
+	public synchronized void removeItem(ItemPath itemPath) {
+		String prefix = itemPath.getUUID()+"/";
+		for (String key : new ArrayList<String>(rolesByStep.keySet()))
+			if (key.startsWith(prefix)) removeEntries(key);
+	}
+
+	private void removeEntries(String key) {
+		ArrayList<String> oldRoles = rolesByStep.remove(key);
+		if (oldRoles == null) return;
+		for (String role : oldRoles) {
+			LinkedHashMap<String, WorkItem> roleItems = byRole.get(role);
+			roleItems.remove(key);
+			if (roleItems.isEmpty()) byRole.remove(role);
+		}
+	}
+
+	/**
+	 * Indexes every activity of a workflow, replacing whatever was indexed for the Item
+	 */
+	public void indexWorkflow(ItemPath itemPath, Workflow wf) {
+		LinkedHashMap<String, HashMap<String, WorkItem>> steps = getWorkItems(itemPath, wf);
+		synchronized (this) {
+			if (liveUpdates != null) liveUpdates.add(itemPath.getUUID().toString());
+			removeItem(itemPath);
+			for (Map.Entry<String, HashMap<String, WorkItem>> step : steps.entrySet())
+				putEntries(step.getKey(), step.getValue());
+		}
+	}
+
+	/**
+	 * @return the work offered by each activity of the domain workflow, by activity key
+	 */
+	private static LinkedHashMap<String, HashMap<String, WorkItem>> getWorkItems(ItemPath itemPath, Workflow wf) {
+		LinkedHashMap<String, HashMap<String, WorkItem>> steps = new LinkedHashMap<String, HashMap<String, WorkItem>>();
+		GraphableVertex domain = wf.search("workflow/domain");
+		if (domain instanceof CompositeActivity) collectChildren(itemPath, (CompositeActivity)domain, steps);
+		return steps;
+	}
+
+	private static void collectChildren(ItemPath itemPath, CompositeActivity parent, LinkedHashMap<String, HashMap<String, WorkItem>> steps) {
+		for (GraphableVertex child : parent.getChildren()) {
+			if (child instanceof CompositeActivity)
+				collectChildren(itemPath, (CompositeActivity)child, steps);
+			else if (child instanceof Activity && ((Activity)child).getPath().startsWith(DOMAIN_PATH))
+				steps.put(itemPath.getUUID()+"/"+((Activity)child).getPath(), getWorkItems(itemPath, (Activity)child));
+		}
+	}
+
+	/**
+	 * Starts recording the activities indexed from now on, so that the next
+	 * {@link #rebuild(Iterator, ClusterStorageManager)} does not overwrite them with older states.
+	 */
+	public synchronized void setRebuilding() {
+		if (liveUpdates == null) liveUpdates = new HashSet<String>();
+	}
+
+	/**
+	 * Indexes the workflows of the given Items, reading them without caching them.
+	 * Activities updated since {@link #setRebuilding()} keep their entries.
+	 * @return the number of workflows indexed
+	 */
+	public int rebuild(Iterator<Path> items, ClusterStorageManager storage) {
+		setRebuilding();
+		HashSet<ItemPath> done = new HashSet<ItemPath>();
+		while (items.hasNext()) {
+			Path next = items.next();
+			try {
+				ItemPath itemPath = next.getItemPath();
+				if (!done.add(itemPath)) continue; // aliases
+				Workflow wf = (Workflow)storage.peek(itemPath, ClusterStorage.LIFECYCLE+"/workflow");
+				rebuildWorkflow(itemPath, wf);
+			} catch (Exception ex) {
+				Logger.msg(5, "WorklistIndex.rebuild() - no workflow indexed for "+next+": "+ex.getMessage());
+			}
+		}
+		synchronized (this) {
+			liveUpdates = null;
+		}
+		Logger.msg(2, "WorklistIndex.rebuild() - indexed "+done.size()+" workflows");
+		return done.size();
+	}
+
+	/**
+	 * Indexes a workflow read by the rebuild, skipping the activities indexed since it started
+	 */
+	private void rebuildWorkflow(ItemPath itemPath, Workflow wf) {
+		LinkedHashMap<String, HashMap<String, WorkItem>> steps = getWorkItems(itemPath, wf);
+		synchronized (this) {
+			if (liveUpdates != null && liveUpdates.contains(itemPath.getUUID().toString())) return;
+			for (Map.Entry<String, HashMap<String, WorkItem>> step : steps.entrySet()) {
+				if (liveUpdates != null && liveUpdates.contains(step.getKey())) continue;
+				removeEntries(step.getKey());
+				putEntries(step.getKey(), step.getValue());
+			}
+		}
+	}
+
+	public synchronized List<WorkItem> getWorklist(String roleName) {
+		LinkedHashMap<String, WorkItem> roleItems = byRole.get(roleName);
+		if (roleItems == null) return new ArrayList<WorkItem>();
+		return new ArrayList<WorkItem>(roleItems.values());
+	}
+
+	public List<WorkItem> getWorklist(RolePath role) {
+		return getWorklist(role.getName());
+	}
+
+	/**
+	 * Returns the work of all the agent's roles, leaving out activities reserved by other agents
+	 */
+	public List<WorkItem> getWorklist(AgentPath agent) {
+		ArrayList<WorkItem> result = new ArrayList<WorkItem>();
+		String agentName = agent.getAgentName();
+		for (RolePath role : agent.getRoles()) {
+			for (WorkItem item : getWorklist(role.getName())) {
+				if (item.reservedAgent == null || item.reservedAgent.length() == 0 || item.reservedAgent.equals(agentName))
+					result.add(item);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * An activity that a role can currently work on, with the transitions the role may perform
+	 */
+	public static class WorkItem {
+		public final ItemPath itemPath;
+		public final String stepPath;
+		public final String stepName;
+		public final String stateName;
+		public final String reservedAgent;
+		public final ArrayList<String> transitions = new ArrayList<String>();
+
+		WorkItem(ItemPath itemPath, Activity act, String stateName) {
+			this.itemPath = itemPath;
+			this.stepPath = act.getPath();
+			this.stepName = act.getName();
+			this.stateName = stateName;
+			this.reservedAgent = act.getCurrentAgentName();
+		}
+
+		@Override
+		public String toString() {
+			return itemPath+":"+stepPath+" ("+stateName+") "+transitions;
+		}
+	}
+}
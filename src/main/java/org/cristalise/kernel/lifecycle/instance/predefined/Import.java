@@ -88,11 +88,13 @@ public class Import extends PredefinedStep
 
         TransactionManager storage = Gateway.getStorage();
         Object locker = getWf();
+        Outcome outcome = new Outcome(-1, requestData, schemaName, schemaVersion);
         History hist = getWf().getHistory();
 		Event event = hist.addEvent(agent, getCurrentAgentRole(), getName(), getPath(), getType(), schemaName, schemaVersion, getStateMachine().getName(), getStateMachine().getVersion(), getStateMachine().getTransition(transitionID), viewpoint, timestamp);
 
 		try {
-			storage.put(item, new Outcome(event.getID(), requestData, schemaName, schemaVersion), locker);
+			outcome.setID(event.getID());
+			storage.put(item, outcome, locker);
 			storage.put(item, new Viewpoint(item, schemaName, viewpoint, schemaVersion, event.getID()), locker);
 			if (!"last".equals(viewpoint))
 				storage.put(item, new Viewpoint(item, schemaName, "last", schemaVersion, event.getID()), locker);
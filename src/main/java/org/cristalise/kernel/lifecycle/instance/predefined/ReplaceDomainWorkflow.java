@@ -65,6 +65,7 @@ public class ReplaceDomainWorkflow extends PredefinedStep
 		// if new workflow, activate it, otherwise refresh the jobs
 		if (!domain.active) lifeCycle.run(agent, item);
 		else lifeCycle.refreshJobs(item);
+		if (Gateway.getWorklistIndex() != null) Gateway.getWorklistIndex().indexWorkflow(item, lifeCycle);
 		
 		// store new wf
 		try {
@@ -122,6 +122,11 @@ public class Transition {
 		return roleOverride;
 	}
 
+	/** @return the overriding role with any activity properties substituted, or null if there is none */
+	public String resolveRoleOverride(CastorHashMap actProps) {
+		return resolveValue(roleOverride, actProps);
+	}
+
 	public void setRoleOverride(String roleOverride) {
 		this.roleOverride = roleOverride;
 	}
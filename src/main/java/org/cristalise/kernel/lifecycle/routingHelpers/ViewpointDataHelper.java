@@ -20,6 +20,10 @@
  */
 package org.cristalise.kernel.lifecycle.routingHelpers;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.cristalise.kernel.common.ObjectNotFoundException;
 import org.cristalise.kernel.entity.proxy.ItemProxy;
 import org.cristalise.kernel.lookup.ItemPath;
@@ -41,46 +45,86 @@ public class ViewpointDataHelper
      */
     /**@param value : /UUID (or . if current) /SchemaName/Viewname/Path:XPathInOutcome */
     public static Object [] get(String value) throws Exception
+    {
+        return get(new String[] { value })[0];
+    }
+
+    /**
+     * Fetches several values at once. Each viewpoint is loaded and its outcome parsed
+     * only once, however many of the values are taken from it.
+     * @param values : as for {@link #get(String)}
+     * @return the result of each value, in the same order
+     */
+    public static Object [][] get(String[] values) throws Exception
     {
         //Syntax of search : <EntityPath>/<ViewpointPath>:<XPathinOutcome>
-        String entityPath;
-        String viewpoint;
-        String xpath;
-        Object[] retArr;
+        Object[][] retArrs = new Object[values.length][];
+        // indexes of the requested xpaths, by entity and viewpoint
+        LinkedHashMap<String, ArrayList<Integer>> byView = new LinkedHashMap<String, ArrayList<Integer>>();
+        String[] xpaths = new String[values.length];
 
-        // find syskey, viewname, xpath
-        int firstSlash = value.indexOf("/");
-        if (firstSlash > 0) {
-            entityPath = value.substring(0, firstSlash);
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i];
+            // find syskey, viewname, xpath
+            int firstSlash = value.indexOf("/");
+            if (firstSlash <= 0) {
+                retArrs[i] = errArr;
+                continue;
+            }
+            String viewKey;
             int startXPath = value.indexOf(":");
             if (startXPath==-1) {
-                viewpoint = value.substring(firstSlash + 1);
-                xpath = null;
+                viewKey = value;
+                xpaths[i] = null;
             } else {
-                viewpoint = value.substring(firstSlash + 1, startXPath);
-                xpath = value.substring(startXPath+1);
+                viewKey = value.substring(0, startXPath);
+                xpaths[i] = value.substring(startXPath+1);
+            }
+            ArrayList<Integer> viewValues = byView.get(viewKey);
+            if (viewValues == null) {
+                viewValues = new ArrayList<Integer>();
+                byView.put(viewKey, viewValues);
             }
+            viewValues.add(i);
         }
-        else return errArr;
 
-        // find entity
-        ItemPath sourcePath = new ItemPath(entityPath);
+        for (Map.Entry<String, ArrayList<Integer>> entry : byView.entrySet()) {
+            String viewKey = entry.getKey();
+            ArrayList<Integer> viewValues = entry.getValue();
+            int firstSlash = viewKey.indexOf("/");
+            String entityPath = viewKey.substring(0, firstSlash);
+            String viewpoint = viewKey.substring(firstSlash + 1);
 
-        try {
-            // load viewpoint
-            ItemProxy dataSource = Gateway.getProxyManager().getProxy(sourcePath);
-            Viewpoint view = (Viewpoint)dataSource.getObject(ClusterStorage.VIEWPOINT + "/" + viewpoint);
-            Outcome outcome = view.getOutcome();
-            if (xpath == null) {
-                retArr = new Object[1];
-                retArr[0] = outcome;
+            // find entity
+            ItemPath sourcePath = new ItemPath(entityPath);
+
+            Outcome outcome;
+            try {
+                // load viewpoint
+                ItemProxy dataSource = Gateway.getProxyManager().getProxy(sourcePath);
+                Viewpoint view = (Viewpoint)dataSource.getObject(ClusterStorage.VIEWPOINT + "/" + viewpoint);
+                outcome = view.getOutcome();
+            } catch (ObjectNotFoundException e) {
+                for (Integer i : viewValues) retArrs[i] = errArr;
+                continue;
             }
-            else
-                retArr = XmlElementParser.parse(outcome.getData(), xpath);
-            return retArr;
 
-        } catch (ObjectNotFoundException e) {
-            return errArr;
+            // evaluate all paths for this viewpoint in one parse
+            ArrayList<Integer> pathValues = new ArrayList<Integer>();
+            for (Integer i : viewValues) {
+                if (xpaths[i] == null)
+                    retArrs[i] = new Object[] { outcome };
+                else
+                    pathValues.add(i);
+            }
+            if (pathValues.isEmpty()) continue;
+            String[] viewPaths = new String[pathValues.size()];
+            for (int j = 0; j < viewPaths.length; j++)
+                viewPaths[j] = xpaths[pathValues.get(j)];
+            String[][] results = XmlElementParser.parse(outcome.getData(), viewPaths);
+            for (int j = 0; j < results.length; j++)
+                retArrs[pathValues.get(j)] = results[j];
         }
+        return retArrs;
     }
 }
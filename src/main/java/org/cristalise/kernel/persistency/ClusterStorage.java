@@ -27,6 +27,7 @@ import org.cristalise.kernel.entity.C2KLocalObject;
 import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.persistency.outcome.Outcome;
 import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.persistency.outcome.ViewpointHistory;
 import org.cristalise.kernel.process.auth.Authenticator;
 import org.cristalise.kernel.utils.Logger;
 
@@ -132,13 +133,21 @@ public abstract class ClusterStorage {
 	 * highest already present.
 	 */
 	public static final String JOB = "Job";
+	/**
+	 * Optional secondary index over the AuditTrail, maintained by the History
+	 * when 'History.indexEvents' is enabled. The index of the AuditTrail is
+	 * stored as "EventIndex/AuditTrail".
+	 * 
+	 * @see org.cristalise.kernel.events.EventIndex
+	 */
+	public static final String EVENTINDEX = "EventIndex";
 
 	/**
 	 * An array of all currently supported cluster types, for iterative
 	 * purposes.
 	 */
 	public static final String[] allClusterTypes = { PROPERTY, COLLECTION,
-			LIFECYCLE, OUTCOME, HISTORY, VIEWPOINT, JOB };
+			LIFECYCLE, OUTCOME, HISTORY, VIEWPOINT, JOB, EVENTINDEX };
 
 	/**
 	 * Connects to the storage. It must be possible to retrieve CRISTAL local
@@ -224,6 +233,10 @@ public abstract class ClusterStorage {
 		} else if (obj instanceof Viewpoint) {
 			Viewpoint vp = (Viewpoint) obj;
 			return root + "/" + vp.getSchemaName() + "/" + vp.getName();
+		} else if (obj instanceof ViewpointHistory) {
+			ViewpointHistory vh = (ViewpointHistory) obj;
+			return root + "/" + VIEWPOINT + "/" + vh.getSchemaName() + "/" + vh.getName()
+					+ (vh.getChunk() == -1 ? "" : "/" + vh.getChunk());
 		} else if (obj instanceof Collection) {
 			Collection<?> coll = (Collection<?>) obj;
 			return root + "/" + coll.getName() + "/" +coll.getVersionName();
@@ -32,12 +32,14 @@ import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.C2KLocalObject;
 import org.cristalise.kernel.entity.agent.JobList;
 import org.cristalise.kernel.entity.proxy.ProxyMessage;
+import org.cristalise.kernel.entity.proxy.ProxyMessageBatch;
 import org.cristalise.kernel.events.History;
 import org.cristalise.kernel.lookup.ItemPath;
 import org.cristalise.kernel.persistency.outcome.Outcome;
 import org.cristalise.kernel.persistency.outcome.Viewpoint;
 import org.cristalise.kernel.process.Gateway;
 import org.cristalise.kernel.process.auth.Authenticator;
+import org.cristalise.kernel.stats.KernelStats;
 import org.cristalise.kernel.utils.Logger;
 import org.cristalise.kernel.utils.SoftCache;
 import org.cristalise.kernel.utils.WeakCache;
@@ -57,6 +59,8 @@ public class ClusterStorageManager {
     HashMap<String, ArrayList<ClusterStorage>> clusterReaders = new HashMap<String, ArrayList<ClusterStorage>>();
     // we don't need a soft cache for the top level cache - the proxies and entities clear that when reaped
     HashMap<ItemPath, Map<String, C2KLocalObject>> memoryCache = new HashMap<ItemPath, Map<String, C2KLocalObject>>();
+    // secondary index of outcome fields, kept up to date as viewpoints are written
+    OutcomeIndex outcomeIndex;
 
     /**
      * Initialises all ClusterStorage handlers listed by class name in the property "ClusterStorages"
@@ -101,7 +105,11 @@ public class ClusterStorageManager {
             clusterPriority[clusterNo++] = newStorage.getId();			
 		}
         clusterReaders.put(ClusterStorage.ROOT, rootStores); // all storages are queried for clusters at the root level
-        
+        outcomeIndex = new OutcomeIndex(Gateway.getProperties());
+    }
+
+    public OutcomeIndex getOutcomeIndex() {
+        return outcomeIndex;
     }
     
     public ArrayList<ClusterStorage> instantiateStores(String allClusters) throws PersistencyException {
@@ -218,6 +226,7 @@ public class ClusterStorageManager {
                 C2KLocalObject obj = sysKeyMemCache.get(path);
                 if (obj != null) {
                 	Logger.msg(7, "ClusterStorageManager.get() - found "+itemPath+"/"+path+" in memcache");
+                    KernelStats.storage.recordCacheHit(true);
                     return obj;
                 }
             }
@@ -252,10 +261,14 @@ public class ClusterStorageManager {
 		}
 
         // else try each reader in turn until we find it
-        ArrayList<ClusterStorage> readers = findStorages(ClusterStorage.getClusterType(path), false);
+        KernelStats.storage.recordCacheHit(false);
+        String clusterType = ClusterStorage.getClusterType(path);
+        ArrayList<ClusterStorage> readers = findStorages(clusterType, false);
         for (ClusterStorage thisReader : readers) {
             try {
+                long start = System.nanoTime();
                 result = thisReader.get(itemPath, path);
+                KernelStats.storage.record(thisReader.getId(), clusterType, "get", System.nanoTime()-start);
                 Logger.msg(7, "ClusterStorageManager.get() - reading "+path+" from "+thisReader.getName() + " for item " + itemPath);
                 if (result != null) { // got it!
                     // store it in the cache
@@ -281,14 +294,51 @@ public class ClusterStorageManager {
         throw new ObjectNotFoundException("ClusterStorageManager.get() - Path " + path + " not found in " + itemPath);
     }
 
-    /** Internal put method. Creates or overwrites a cluster in all writers. Used when committing transactions. */
+    /**
+     * Retrieves a cluster without adding it to the memory cache, for bulk reads such as queries
+     * that would otherwise fill the cache with objects that won't be read again. Objects already
+     * cached are still returned from the cache.
+     */
+    public C2KLocalObject peek(ItemPath itemPath, String path) throws PersistencyException, ObjectNotFoundException {
+        Map<String, C2KLocalObject> sysKeyMemCache = memoryCache.get(itemPath);
+        if (sysKeyMemCache != null) {
+            synchronized(sysKeyMemCache) {
+                C2KLocalObject obj = sysKeyMemCache.get(path);
+                if (obj != null) return obj;
+            }
+        }
+        ArrayList<ClusterStorage> readers = findStorages(ClusterStorage.getClusterType(path), false);
+        for (ClusterStorage thisReader : readers) {
+            try {
+                C2KLocalObject result = thisReader.get(itemPath, path);
+                if (result != null) return result;
+            } catch (PersistencyException e) {
+                Logger.msg(7, "ClusterStorageManager.peek() - reader " + thisReader.getName() + " could not retrieve " + itemPath +
+                    "/" + path + ": " + e.getMessage());
+            }
+        }
+        throw new ObjectNotFoundException("ClusterStorageManager.peek() - Path " + path + " not found in " + itemPath);
+    }
+
+    /** Internal put method. Creates or overwrites a cluster in all writers. */
     public void put(ItemPath itemPath, C2KLocalObject obj) throws PersistencyException {
+        put(itemPath, obj, null);
+    }
+
+    /**
+     * Creates or overwrites a cluster in all writers. Used when committing transactions, which
+     * collect the proxy messages in a batch to send once the commit is complete.
+     */
+    public void put(ItemPath itemPath, C2KLocalObject obj, ProxyMessageBatch batch) throws PersistencyException {
     	String path = ClusterStorage.getPath(obj);
-        ArrayList<ClusterStorage> writers = findStorages(ClusterStorage.getClusterType(path), true);
+    	String clusterType = ClusterStorage.getClusterType(path);
+        ArrayList<ClusterStorage> writers = findStorages(clusterType, true);
         for (ClusterStorage thisWriter : writers) {
             try {
                 Logger.msg(7, "ClusterStorageManager.put() - writing "+path+" to "+thisWriter.getName());
+                long start = System.nanoTime();
                 thisWriter.put(itemPath, obj);
+                KernelStats.storage.record(thisWriter.getId(), clusterType, "put", System.nanoTime()-start);
             } catch (PersistencyException e) {
                 Logger.error("ClusterStorageManager.put() - writer " + thisWriter.getName() + " could not store " +
                 		itemPath + "/" + path + ": " + e.getMessage());
@@ -314,8 +364,13 @@ public class ClusterStorageManager {
 
         if (Logger.doLog(9)) dumpCacheContents(9);
 
+        if (obj instanceof Viewpoint)
+            indexViewpoint(itemPath, (Viewpoint)obj);
+
         // transmit proxy event
-        if(Gateway.getProxyServer() != null)
+        if (batch != null)
+            batch.add(new ProxyMessage(itemPath, path, ProxyMessage.ADDED));
+        else if(Gateway.getProxyServer() != null)
             Gateway.getProxyServer().sendProxyEvent(new ProxyMessage(itemPath, path, ProxyMessage.ADDED));
         else
             Logger.warning("ClusterStorageManager.put() - ProxyServer is null - Proxies are not notified of this event");
@@ -323,11 +378,19 @@ public class ClusterStorageManager {
 
     /** Deletes a cluster from all writers */
     public void remove(ItemPath itemPath, String path) throws PersistencyException {
-        ArrayList<ClusterStorage> writers = findStorages(ClusterStorage.getClusterType(path), true);
+        remove(itemPath, path, null);
+    }
+
+    /** Deletes a cluster from all writers, adding the proxy message to the given batch if not null */
+    public void remove(ItemPath itemPath, String path, ProxyMessageBatch batch) throws PersistencyException {
+        String clusterType = ClusterStorage.getClusterType(path);
+        ArrayList<ClusterStorage> writers = findStorages(clusterType, true);
         for (ClusterStorage thisWriter : writers) {
             try {
                 Logger.msg(7, "ClusterStorageManager.delete() - removing "+path+" from "+thisWriter.getName());
+                long start = System.nanoTime();
                 thisWriter.delete(itemPath, path);
+                KernelStats.storage.record(thisWriter.getId(), clusterType, "remove", System.nanoTime()-start);
             } catch (PersistencyException e) {
                 Logger.error("ClusterStorageManager.delete() - writer " + thisWriter.getName() + " could not delete " + itemPath +
                     "/" + path + ": " + e.getMessage());
@@ -342,13 +405,39 @@ public class ClusterStorageManager {
             }
         }
 
+        if (path.startsWith(ClusterStorage.VIEWPOINT+"/")) {
+            String[] viewPath = path.split("/");
+            if (viewPath.length == 2 || viewPath.length == 3)
+                outcomeIndex.viewpointRemoved(itemPath, viewPath[1], viewPath.length==3?viewPath[2]:null);
+        }
+
         // transmit proxy event
-        if(Gateway.getProxyServer() != null)
+        if (batch != null)
+            batch.add(new ProxyMessage(itemPath, path, ProxyMessage.DELETED));
+        else if(Gateway.getProxyServer() != null)
             Gateway.getProxyServer().sendProxyEvent(new ProxyMessage(itemPath, path, ProxyMessage.DELETED));
         else
             Logger.warning("ClusterStorageManager.remove() - ProxyServer is null - Proxies are not notified of this event");
     }
 
+    /** Updates the outcome index with the outcome a stored viewpoint points to, if its schema is indexed */
+    private void indexViewpoint(ItemPath itemPath, Viewpoint view) {
+        if (!outcomeIndex.isIndexed(view.getSchemaName())) return;
+        if (view.getEventId() == Viewpoint.NONE) {
+            outcomeIndex.viewpointRemoved(itemPath, view.getSchemaName(), view.getName());
+            return;
+        }
+        // the outcome is normally written just before its viewpoint, so should be found in the cache
+        String outcomePath = ClusterStorage.OUTCOME+"/"+view.getSchemaName()+"/"+view.getSchemaVersion()+"/"+view.getEventId();
+        try {
+            outcomeIndex.viewpointStored(itemPath, view, (Outcome)get(itemPath, outcomePath));
+        } catch (ObjectNotFoundException ex) {
+            Logger.error("ClusterStorageManager.indexViewpoint() - outcome "+outcomePath+" of "+itemPath+" not found. Not indexed.");
+        } catch (PersistencyException ex) {
+            Logger.error("ClusterStorageManager.indexViewpoint() - could not read outcome "+outcomePath+" of "+itemPath+": "+ex.getMessage());
+        }
+    }
+
     public void clearCache(ItemPath itemPath, String path) {
 		Logger.msg(7, "CSM.clearCache() - removing "+itemPath+"/"+path);
 
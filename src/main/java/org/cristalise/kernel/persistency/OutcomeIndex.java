@@ -0,0 +1,355 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.persistency;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.common.PersistencyException;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.utils.Logger;
+import org.cristalise.kernel.utils.ObjectProperties;
+
+
+/**
+ * In-memory secondary index over outcome fields, so items can be found by the
+ * contents of their viewpoints without opening each one.
+ * <p>
+ * Fields are declared per schema as an XPath into its outcomes, either in the
+ * process properties:
+ * <pre>
+ * OutcomeIndex.Batch.status=/Batch/Status
+ * OutcomeIndex.Batch.weight=number:/Batch/@weight
+ * </pre>
+ * or with {@link #declareField(String, String, String, boolean)}. Each
+ * viewpoint of a declared schema is indexed separately, so the same field can
+ * be queried against the 'last' view or any other named view. The
+ * ClusterStorageManager maintains the index as viewpoints are stored and
+ * removed. Numeric fields are compared as numbers, all others as strings.
+ * <p>
+ * The index is only held in memory, so a server fills it from the stored
+ * viewpoints at startup with {@link #rebuild(Iterator, ClusterStorageManager)}.
+ * Queries are refused until that has finished rather than returning partial
+ * results.
+ */
+public class OutcomeIndex {
+
+	public static final String PROPERTY_PREFIX = "OutcomeIndex.";
+	public static final String NUMERIC_PREFIX = "number:";
+	public static final String REBUILD_PROPERTY = PROPERTY_PREFIX+"rebuild";
+
+	// declared fields by schema name
+	HashMap<String, HashMap<String, IndexField>> declaredFields = new HashMap<String, HashMap<String, IndexField>>();
+	// indexes by schema/view/field
+	HashMap<String, FieldIndex> indexes = new HashMap<String, FieldIndex>();
+	// false while a rebuild is pending or running
+	volatile boolean ready = true;
+	// views written or removed during a rebuild, which it must not overwrite with what it read before
+	HashSet<String> liveUpdates;
+
+	public OutcomeIndex() {
+	}
+
+	/**
+	 * Declares all fields found in properties beginning with OutcomeIndex.
+	 */
+	public OutcomeIndex(ObjectProperties props) {
+		for (Enumeration<?> e = props.propertyNames(); e.hasMoreElements();) {
+			String name = (String)e.nextElement();
+			if (!name.startsWith(PROPERTY_PREFIX) || name.equals(REBUILD_PROPERTY)) continue;
+			String decl = name.substring(PROPERTY_PREFIX.length());
+			int split = decl.indexOf('.');
+			String xpath = props.getString(name);
+			if (split < 1 || split == decl.length()-1 || xpath == null || xpath.length() == 0) {
+				Logger.error("OutcomeIndex - invalid index declaration "+name+"="+xpath);
+				continue;
+			}
+			boolean numeric = xpath.startsWith(NUMERIC_PREFIX);
+			if (numeric) xpath = xpath.substring(NUMERIC_PREFIX.length());
+			declareField(decl.substring(0, split), decl.substring(split+1), xpath.trim(), numeric);
+		}
+	}
+
+	/**
+	 * Declares a field to index in all outcomes of a schema. Items already stored are
+	 * only indexed when their viewpoints are next written, or by a rebuild.
+	 */
+	public synchronized void declareField(String schemaName, String fieldName, String xpath, boolean numeric) {
+		HashMap<String, IndexField> schemaFields = declaredFields.get(schemaName);
+		if (schemaFields == null) {
+			schemaFields = new HashMap<String, IndexField>();
+			declaredFields.put(schemaName, schemaFields);
+		}
+		Logger.msg(5, "OutcomeIndex.declareField() - indexing "+schemaName+" field "+fieldName+" at "+xpath+(numeric?" as number":""));
+		schemaFields.put(fieldName, new IndexField(fieldName, xpath, numeric));
+	}
+
+	public synchronized boolean isIndexed(String schemaName) {
+		return declaredFields.containsKey(schemaName);
+	}
+
+	public synchronized boolean hasDeclaredFields() {
+		return !declaredFields.isEmpty();
+	}
+
+	/**
+	 * @return false if a rebuild is pending or running, during which queries are refused
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Marks the index as not ready until the next {@link #rebuild(Iterator, ClusterStorageManager)}
+	 * has finished. Viewpoints stored from now on are indexed as usual, and the
+	 * rebuild will not overwrite them.
+	 */
+	public synchronized void setRebuilding() {
+		if (liveUpdates != null) return;
+		liveUpdates = new HashSet<String>();
+		ready = false;
+	}
+
+	/**
+	 * Indexes the stored viewpoints of every declared schema in the given Items,
+	 * reading them without caching them, then marks the index as ready.
+	 * @return the number of viewpoints indexed
+	 */
+	public int rebuild(Iterator<Path> items, ClusterStorageManager storage) {
+		setRebuilding();
+		ArrayList<String> schemas;
+		synchronized (this) {
+			schemas = new ArrayList<String>(declaredFields.keySet());
+		}
+		HashSet<ItemPath> done = new HashSet<ItemPath>();
+		int views = 0;
+		while (items.hasNext()) {
+			Path next = items.next();
+			ItemPath itemPath;
+			try {
+				itemPath = next.getItemPath();
+			} catch (ObjectNotFoundException ex) {
+				continue; // domain context
+			}
+			if (!done.add(itemPath)) continue; // aliases
+			for (String schemaName : schemas) {
+				String schemaPath = ClusterStorage.VIEWPOINT+"/"+schemaName;
+				try {
+					for (String viewName : storage.getClusterContents(itemPath, schemaPath)) {
+						Viewpoint view = (Viewpoint)storage.peek(itemPath, schemaPath+"/"+viewName);
+						if (view.getEventId() == Viewpoint.NONE) continue;
+						Outcome outcome = (Outcome)storage.peek(itemPath, ClusterStorage.OUTCOME+"/"+schemaName+"/"+view.getSchemaVersion()+"/"+view.getEventId());
+						LinkedHashMap<String, Object> values = getValues(itemPath, view, outcome);
+						synchronized (this) {
+							if (liveUpdates.contains(updateKey(itemPath, schemaName, viewName)) || liveUpdates.contains(updateKey(itemPath, schemaName, null)))
+								continue;
+							setValues(itemPath, view, values);
+						}
+						views++;
+					}
+				} catch (Exception ex) {
+					Logger.msg(5, "OutcomeIndex.rebuild() - could not index "+schemaName+" of "+next+": "+ex.getMessage());
+				}
+			}
+		}
+		synchronized (this) {
+			liveUpdates = null;
+			ready = true;
+		}
+		Logger.msg(2, "OutcomeIndex.rebuild() - indexed "+views+" viewpoints of "+done.size()+" items");
+		return views;
+	}
+
+	private static String updateKey(ItemPath itemPath, String schemaName, String viewName) {
+		return itemPath.getUUID()+"/"+schemaName+"/"+(viewName==null?"":viewName);
+	}
+
+	private void recordLiveUpdate(ItemPath itemPath, String schemaName, String viewName) {
+		if (ready) return;
+		synchronized (this) {
+			if (liveUpdates != null) liveUpdates.add(updateKey(itemPath, schemaName, viewName));
+		}
+	}
+
+	/**
+	 * Indexes the outcome that a viewpoint now points to, replacing the values it had before
+	 */
+	public void viewpointStored(ItemPath itemPath, Viewpoint view, Outcome outcome) {
+		recordLiveUpdate(itemPath, view.getSchemaName(), view.getName());
+		setValues(itemPath, view, getValues(itemPath, view, outcome));
+	}
+
+	private void setValues(ItemPath itemPath, Viewpoint view, LinkedHashMap<String, Object> values) {
+		for (Map.Entry<String, Object> value : values.entrySet())
+			getIndex(view.getSchemaName(), view.getName(), value.getKey(), true).set(itemPath, value.getValue());
+	}
+
+	private LinkedHashMap<String, Object> getValues(ItemPath itemPath, Viewpoint view, Outcome outcome) {
+		LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+		for (IndexField field : getFields(view.getSchemaName())) {
+			Object value = null;
+			try {
+				value = field.getKey(outcome.getFieldByXPath(field.xpath));
+			} catch (InvalidDataException ex) { // field absent from this outcome
+				Logger.msg(8, "OutcomeIndex - "+field.name+" not found in "+itemPath+" "+view.getSchemaName()+"/"+view.getName());
+			} catch (Exception ex) {
+				Logger.msg(5, "OutcomeIndex - could not index "+field.name+" of "+itemPath+" "+view.getSchemaName()+"/"+view.getName()+": "+ex.getMessage());
+			}
+			values.put(field.name, value);
+		}
+		return values;
+	}
+
+	/**
+	 * Removes an item from the indexes of a view, or of all views of the schema if the view is null
+	 */
+	public void viewpointRemoved(ItemPath itemPath, String schemaName, String viewName) {
+		recordLiveUpdate(itemPath, schemaName, viewName);
+		ArrayList<FieldIndex> toUpdate = new ArrayList<FieldIndex>();
+		String prefix = schemaName+"/"+(viewName==null?"":viewName+"/");
+		synchronized (this) {
+			for (Map.Entry<String, FieldIndex> entry : indexes.entrySet()) {
+				if (entry.getKey().startsWith(prefix)) toUpdate.add(entry.getValue());
+			}
+		}
+		for (FieldIndex index : toUpdate) index.set(itemPath, null);
+	}
+
+	/**
+	 * Returns the items whose given viewpoint has the value in the indexed field
+	 * @throws PersistencyException if the index is still being rebuilt
+	 */
+	public List<ItemPath> find(String schemaName, String viewName, String fieldName, String value) throws ObjectNotFoundException, InvalidDataException, PersistencyException {
+		return findRange(schemaName, viewName, fieldName, value, value);
+	}
+
+	/**
+	 * Returns the items whose given viewpoint has a value in the indexed field between
+	 * the two inclusive bounds, either of which may be null for an open range.
+	 * @throws PersistencyException if the index is still being rebuilt
+	 */
+	public List<ItemPath> findRange(String schemaName, String viewName, String fieldName, String from, String to) throws ObjectNotFoundException, InvalidDataException, PersistencyException {
+		if (!ready)
+			throw new PersistencyException("OutcomeIndex is being rebuilt");
+		IndexField field;
+		synchronized (this) {
+			HashMap<String, IndexField> schemaFields = declaredFields.get(schemaName);
+			field = schemaFields == null ? null : schemaFields.get(fieldName);
+		}
+		if (field == null)
+			throw new ObjectNotFoundException("Field "+fieldName+" of "+schemaName+" is not indexed");
+		Object fromKey = null, toKey = null;
+		try {
+			if (from != null) fromKey = field.getKey(from);
+			if (to != null) toKey = field.getKey(to);
+		} catch (NumberFormatException ex) {
+			throw new InvalidDataException("Field "+fieldName+" of "+schemaName+" is numeric: "+ex.getMessage());
+		}
+		FieldIndex index = getIndex(schemaName, viewName, fieldName, false);
+		if (index == null) return new ArrayList<ItemPath>();
+		return index.find(fromKey, toKey);
+	}
+
+	private synchronized ArrayList<IndexField> getFields(String schemaName) {
+		HashMap<String, IndexField> schemaFields = declaredFields.get(schemaName);
+		if (schemaFields == null) return new ArrayList<IndexField>();
+		return new ArrayList<IndexField>(schemaFields.values());
+	}
+
+	private synchronized FieldIndex getIndex(String schemaName, String viewName, String fieldName, boolean create) {
+		String key = schemaName+"/"+viewName+"/"+fieldName;
+		FieldIndex index = indexes.get(key);
+		if (index == null && create) {
+			index = new FieldIndex();
+			indexes.put(key, index);
+		}
+		return index;
+	}
+
+	static class IndexField {
+		final String name;
+		final String xpath;
+		final boolean numeric;
+
+		IndexField(String name, String xpath, boolean numeric) {
+			this.name = name;
+			this.xpath = xpath;
+			this.numeric = numeric;
+		}
+
+		Object getKey(String value) {
+			if (value == null) return null;
+			return numeric ? Double.valueOf(value.trim()) : value;
+		}
+	}
+
+	/**
+	 * The sorted values of one field in one view, with the items holding each value
+	 */
+	static class FieldIndex {
+		TreeMap<Object, HashSet<ItemPath>> byValue = new TreeMap<Object, HashSet<ItemPath>>();
+		HashMap<ItemPath, Object> byItem = new HashMap<ItemPath, Object>();
+
+		synchronized void set(ItemPath itemPath, Object value) {
+			Object oldValue = value == null ? byItem.remove(itemPath) : byItem.put(itemPath, value);
+			if (oldValue != null) {
+				Set<ItemPath> oldItems = byValue.get(oldValue);
+				oldItems.remove(itemPath);
+				if (oldItems.isEmpty()) byValue.remove(oldValue);
+			}
+			if (value != null) {
+				HashSet<ItemPath> items = byValue.get(value);
+				if (items == null) {
+					items = new HashSet<ItemPath>();
+					byValue.put(value, items);
+				}
+				items.add(itemPath);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized List<ItemPath> find(Object from, Object to) {
+			Map<Object, HashSet<ItemPath>> range;
+			if (from == null && to == null) range = byValue;
+			else if (from == null) range = byValue.headMap(to, true);
+			else if (to == null) range = byValue.tailMap(from, true);
+			else if (((Comparable<Object>)from).compareTo(to) > 0) return new ArrayList<ItemPath>();
+			else range = byValue.subMap(from, true, to, true);
+			ArrayList<ItemPath> result = new ArrayList<ItemPath>();
+			for (HashSet<ItemPath> items : range.values())
+				result.addAll(items);
+			return result;
+		}
+	}
+}
@@ -55,11 +55,11 @@ public class RemoteMap<V extends C2KLocalObject> extends TreeMap<String, V> impl
 	protected ItemPath mItemPath;
 	private String mPath = "";
     Object keyLock = null;
-	TransactionManager storage;
+	protected TransactionManager storage;
     ProxyObserver<V> listener;
     Comparator<String> comp;
     ItemProxy source;
-	Object mLocker; // if this remote map will participate in a transaction
+	protected Object mLocker; // if this remote map will participate in a transaction
 
 	public RemoteMap(ItemPath itemPath, String path, Object locker) {
 		
@@ -27,9 +27,16 @@ import org.cristalise.kernel.common.ObjectNotFoundException;
 import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.C2KLocalObject;
 import org.cristalise.kernel.entity.agent.JobList;
+import org.cristalise.kernel.entity.proxy.ProxyMessageBatch;
+import org.cristalise.kernel.events.Event;
+import org.cristalise.kernel.events.EventIndexEntry;
 import org.cristalise.kernel.events.History;
 import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.persistency.outcome.ViewpointHistory;
+import org.cristalise.kernel.process.Gateway;
 import org.cristalise.kernel.process.auth.Authenticator;
+import org.cristalise.kernel.stats.KernelStats;
 import org.cristalise.kernel.utils.Logger;
 
 
@@ -38,11 +45,14 @@ public class TransactionManager {
     HashMap<ItemPath, Object> locks;
     HashMap<Object, ArrayList<TransactionEntry>> pendingTransactions;
     ClusterStorageManager storage;
+    // whether to record the history of each viewpoint for ItemProxy.getViewpointAt()
+    boolean recordViewpoints;
 
     public TransactionManager(Authenticator auth) throws PersistencyException {
         storage = new ClusterStorageManager(auth);
         locks = new HashMap<ItemPath, Object>();
         pendingTransactions = new HashMap<Object, ArrayList<TransactionEntry>>();
+        recordViewpoints = Gateway.getProperties().getBoolean("History.indexEvents", false);
     }
 
     public boolean hasPendingTransactions()
@@ -105,6 +115,12 @@ public class TransactionManager {
      * If this object is null, transaction support is bypassed (so long as no lock exists on that object).
      */
     public void put(ItemPath itemPath, C2KLocalObject obj, Object locker) throws PersistencyException {
+        putEntry(itemPath, obj, locker);
+        if (recordViewpoints && obj instanceof Viewpoint)
+            recordViewpoint(itemPath, (Viewpoint)obj, locker);
+    }
+
+    private void putEntry(ItemPath itemPath, C2KLocalObject obj, Object locker) throws PersistencyException {
         Object tempLocker = null;
         ArrayList<TransactionEntry> lockerTransaction;
 
@@ -115,9 +131,11 @@ public class TransactionManager {
                 Object thisLocker = locks.get(itemPath);
                 if (thisLocker.equals(locker)) // retrieve the transaction list
                     lockerTransaction = pendingTransactions.get(locker);
-                else // locked by someone else
-                        throw new PersistencyException("ClusterStorageManager.get() - Access denied: Object " + itemPath +
+                else { // locked by someone else
+                    KernelStats.transactions.recordLockConflict();
+                    throw new PersistencyException("ClusterStorageManager.get() - Access denied: Object " + itemPath +
                         " has been locked for writing by " + thisLocker);
+                }
             }
             else { // no locks for this item
                 if (locker == null) { // lock the item until the non-transactional put is complete :/
@@ -150,6 +168,37 @@ public class TransactionManager {
         lockerTransaction.add(newEntry);
     }
 
+    /**
+     * Appends the new state of a stored Viewpoint to its ViewpointHistory, in the same transaction,
+     * at the time of the event it points to. A full history is archived as a chunk first.
+     */
+    private void recordViewpoint(ItemPath itemPath, Viewpoint view, Object locker) throws PersistencyException {
+        String historyPath = ClusterStorage.EVENTINDEX+"/"+ClusterStorage.VIEWPOINT+"/"+view.getSchemaName()+"/"+view.getName();
+        ViewpointHistory viewHistory;
+        try {
+            viewHistory = (ViewpointHistory)get(itemPath, historyPath, locker);
+        } catch (ObjectNotFoundException ex) {
+            viewHistory = new ViewpointHistory(view.getSchemaName(), view.getName());
+        }
+        long time;
+        if (view.getEventId() == Viewpoint.NONE) // cleared, so there is no event
+            time = System.currentTimeMillis();
+        else {
+            try {
+                Event event = (Event)get(itemPath, ClusterStorage.HISTORY+"/"+view.getEventId(), locker);
+                time = EventIndexEntry.toMillis(event.getTimeStamp());
+            } catch (ObjectNotFoundException ex) {
+                throw new PersistencyException("TransactionManager.recordViewpoint() - event "+view.getEventId()+" of "+
+                        view.getSchemaName()+"/"+view.getName()+" not found in "+itemPath);
+            }
+        }
+        ViewpointHistory newHistory = viewHistory.record(view, time);
+        if (newHistory == viewHistory) return;
+        if (newHistory.getArchivedChunks() > viewHistory.getArchivedChunks())
+            putEntry(itemPath, viewHistory.getArchive(), locker);
+        putEntry(itemPath, newHistory, locker);
+    }
+
     /** Public delete method. Uses the put method, with null as the object value.
      */
     public void remove(ItemPath itemPath, String path, Object locker) throws PersistencyException {
@@ -162,9 +211,11 @@ public class TransactionManager {
 				Object thisLocker = locks.get(itemPath);
 				if (thisLocker.equals(locker)) // retrieve the transaction list
 					lockerTransaction = pendingTransactions.get(locker);
-				else // locked by someone else
-						throw new PersistencyException("ClusterStorageManager.get() - Access denied: Object " + itemPath +
+				else { // locked by someone else
+					KernelStats.transactions.recordLockConflict();
+					throw new PersistencyException("ClusterStorageManager.get() - Access denied: Object " + itemPath +
 						" has been locked for writing by " + thisLocker);
+				}
 			}
 			else { // either we are the locker, or there is no locker
 				if (locker == null) { // non-locking put/delete
@@ -217,7 +268,8 @@ public class TransactionManager {
 
     }
     /**
-     * Writes all pending changes to the backends.
+     * Writes all pending changes to the backends. The proxy messages of the
+     * changes are sent together once all of them have been written.
      */
     public void commit(Object locker) {
         synchronized(locks) {
@@ -225,18 +277,21 @@ public class TransactionManager {
             HashMap<TransactionEntry, Exception> exceptions = new HashMap<TransactionEntry, Exception>();
             // quit if no transactions are present;
             if (lockerTransactions == null) return;
+            long start = System.nanoTime();
+            ProxyMessageBatch proxyMessages = new ProxyMessageBatch();
             for (TransactionEntry thisEntry : lockerTransactions) {
                 try {
                 	if (thisEntry.obj == null)
-                	    storage.remove(thisEntry.itemPath, thisEntry.path);
+                	    storage.remove(thisEntry.itemPath, thisEntry.path, proxyMessages);
                 	else
-	                    storage.put(thisEntry.itemPath, thisEntry.obj);
+	                    storage.put(thisEntry.itemPath, thisEntry.obj, proxyMessages);
 					locks.remove(thisEntry.itemPath);
                 } catch (Exception e) {
                 	exceptions.put(thisEntry, e);
                 }
             }
             pendingTransactions.remove(locker);
+            KernelStats.transactions.recordCommit(System.nanoTime()-start);
             if (exceptions.size() > 0) { // oh dear
             	Logger.error("TransactionManager.commit() - Problems during transaction commit of locker "+locker.toString()+". Database may be in an inconsistent state.");
             	for (TransactionEntry entry : exceptions.keySet()) {
@@ -247,6 +302,7 @@ public class TransactionManager {
                 dumpPendingTransactions(0);
 				Logger.die("Database failure");
             }
+            proxyMessages.send();
 
         }
     }
@@ -255,6 +311,7 @@ public class TransactionManager {
     * Rolls back all changes sent in the name of 'locker' and unlocks the sysKeys
      */
     public void abort(Object locker) {
+        KernelStats.transactions.recordAbort();
         synchronized(locks) {
             if (locks.containsValue(locker)) {
                 for (ItemPath thisPath : locks.keySet()) {
@@ -266,6 +323,20 @@ public class TransactionManager {
         }
     }
 
+    /** @return the number of transactions with uncommitted changes */
+    public int getOpenTransactionCount() {
+        synchronized(locks) {
+            return pendingTransactions.size();
+        }
+    }
+
+    /** @return the number of items locked by a transaction or a non-transactional write */
+    public int getLockedItemCount() {
+        synchronized(locks) {
+            return locks.size();
+        }
+    }
+
     public void clearCache(ItemPath itemPath, String path) {
     	if (itemPath == null)
     		storage.clearCache();
@@ -21,11 +21,14 @@
 package org.cristalise.kernel.persistency.outcome;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
@@ -37,6 +40,7 @@ import org.cristalise.kernel.common.ObjectNotFoundException;
 import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.C2KLocalObject;
 import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.process.Gateway;
 import org.cristalise.kernel.utils.LocalObjectLoader;
 import org.cristalise.kernel.utils.Logger;
 import org.w3c.dom.Document;
@@ -48,28 +52,75 @@ import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSSerializer;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 
 public class Outcome implements C2KLocalObject {
     Integer mID;
     String mSchemaType;
     int mSchemaVersion;
+    // The XML as it was given to us. Kept until the DOM may have been changed, so that
+    // outcomes which are only stored or forwarded are never parsed or re-serialized.
+    String mData;
+    // Parsed on first use
     Document mDOM;
-    static DocumentBuilder parser;
+    static DocumentBuilderFactory dbf;
+    static SAXParserFactory spf;
     static DOMImplementationLS impl;
-    static XPath xpath;
+
+    // DocumentBuilders and XPaths are not thread-safe, so each thread gets its own,
+    // along with a bounded cache of the XPath expressions that it has compiled
+    static final ThreadLocal<DocumentBuilder> parser = new ThreadLocal<DocumentBuilder>() {
+    	@Override
+    	protected DocumentBuilder initialValue() {
+    		try {
+    			synchronized (dbf) {
+    				return dbf.newDocumentBuilder();
+    			}
+    		} catch (ParserConfigurationException e) {
+    			Logger.error(e);
+    			Logger.die("Cannot function without XML parser");
+    			return null;
+    		}
+    	}
+    };
+
+    // SAX reader used to check that XML is well-formed without building its DOM
+    static final ThreadLocal<XMLReader> checker = new ThreadLocal<XMLReader>() {
+    	@Override
+    	protected XMLReader initialValue() {
+    		try {
+    			synchronized (spf) {
+    				XMLReader reader = spf.newSAXParser().getXMLReader();
+    				DefaultHandler handler = new DefaultHandler();
+    				reader.setContentHandler(handler);
+    				reader.setErrorHandler(handler);
+    				return reader;
+    			}
+    		} catch (ParserConfigurationException | SAXException e) {
+    			Logger.error(e);
+    			Logger.die("Cannot function without XML parser");
+    			return null;
+    		}
+    	}
+    };
+
+    static final ThreadLocal<XPathCache> xpathCache = new ThreadLocal<XPathCache>() {
+    	@Override
+    	protected XPathCache initialValue() {
+    		return new XPathCache(Gateway.getProperties().getInt("Outcome.XPathCacheSize", 100));
+    	}
+    };
 
     static {
-    	// Set up parser
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    	// Set up parser factory
+        dbf = DocumentBuilderFactory.newInstance();
         dbf.setValidating(false);
         dbf.setNamespaceAware(false);
-        try {
-            parser = dbf.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            Logger.error(e);
-            Logger.die("Cannot function without XML parser");
-        }
+        spf = SAXParserFactory.newInstance();
+        spf.setValidating(false);
+        spf.setNamespaceAware(false);
 
         // Set up serialiser
         try {
@@ -79,19 +130,12 @@ public class Outcome implements C2KLocalObject {
             Logger.error(e);
             Logger.die("Cannot function without XML serialiser");
 		}
-        
-        XPathFactory xPathFactory = XPathFactory.newInstance();
-        xpath = xPathFactory.newXPath();
     }
     
     public Outcome(int id, String xml, String schemaType, int schemaVersion) throws InvalidDataException {
     	this(id, (Document)null, schemaType, schemaVersion);
-    	try {
-    		mDOM = parse(xml);
-    	} catch (IOException | SAXException ex) {
-    		Logger.error(ex);
-    		throw new InvalidDataException("XML not valid: "+ex.getMessage());
-    	}
+    	checkWellFormed(xml);
+    	mData = xml;
     }
 
     //id is the eventID
@@ -104,12 +148,8 @@ public class Outcome implements C2KLocalObject {
     
     public Outcome(String path, String xml) throws PersistencyException, InvalidDataException {
     	this(path, (Document)null);
-    	try {
-    		mDOM = parse(xml);
-    	} catch (IOException | SAXException ex) {
-    		Logger.error(ex);
-    		throw new InvalidDataException("XML not valid: "+ex.getMessage());
-    	}
+    	checkWellFormed(xml);
+    	mData = xml;
     }
 
     public Outcome(String path, Document data) throws PersistencyException {
@@ -155,16 +195,54 @@ public class Outcome implements C2KLocalObject {
         return mID.toString();
     }
 
-    public void setData(String xml) throws SAXException, IOException {
-        mDOM = parse(xml);
+    public synchronized void setData(String xml) throws InvalidDataException {
+        checkWellFormed(xml);
+        mData = xml;
+        mDOM = null;
     }
 
-    public void setDOM(Document dom) {
+    public synchronized void setDOM(Document dom) {
         mDOM = dom;
+        mData = null;
+    }
+
+    /**
+     * Returns the DOM, parsing the XML if this is the first time it is needed.
+     * The XML was checked to be well-formed when it was given to us, so a
+     * parse failure here is unexpected and is reported as an unchecked
+     * exception to DOM accessors that cannot throw InvalidDataException.
+     */
+    private synchronized Document getParsedDOM() {
+    	if (mDOM == null) {
+    		try {
+    			mDOM = parse(mData);
+    		} catch (IOException | SAXException ex) {
+    			Logger.error(ex);
+    			throw new IllegalStateException("XML not valid: "+ex.getMessage());
+    		}
+    	}
+    	return mDOM;
+    }
+
+    /**
+     * Returns the DOM to a caller that may change it, so the original XML can
+     * no longer be trusted to represent it.
+     */
+    private synchronized Document getModifiableDOM() {
+    	Document dom = getParsedDOM();
+    	mData = null;
+    	return dom;
+    }
+
+    /**
+     * @return true if the XML has been parsed into a DOM yet
+     */
+    public synchronized boolean isParsed() {
+    	return mDOM != null;
     }
     
     public String getFieldByXPath(String xpath) throws XPathExpressionException, InvalidDataException {
-    	Node field = getNodeByXPath(xpath);
+    	Node field = selectNode(xpath, getParsedDOM());
     	if (field == null)
     		throw new InvalidDataException(xpath);
     	
@@ -193,14 +271,14 @@ public class Outcome implements C2KLocalObject {
     }
     
     public void setFieldByXPath(String xpath, String data) throws XPathExpressionException, InvalidDataException {
-    	Node field = getNodeByXPath(xpath);
+    	Node field = selectNode(xpath, getModifiableDOM());
     	if (field == null)
     		throw new InvalidDataException(xpath);
 
     	else if (field.getNodeType()==Node.ELEMENT_NODE) {
     		NodeList fieldChildren = field.getChildNodes();
     		if (fieldChildren.getLength() == 0) {
-    			field.appendChild(mDOM.createTextNode(data));
+    			field.appendChild(field.getOwnerDocument().createTextNode(data));
     		}
     		else if (fieldChildren.getLength() == 1) {
     			Node child = fieldChildren.item(0);
@@ -223,12 +301,18 @@ public class Outcome implements C2KLocalObject {
     }
 
 
-    public String getData() {
+    /**
+     * Returns the XML as it was originally supplied if the DOM has not been
+     * handed out for modification since, otherwise serializes the DOM.
+     */
+    public synchronized String getData() {
+    	if (mData != null || mDOM == null)
+    		return mData;
     	return serialize(mDOM, false);
     }
     
     public Document getDOM() {
-    	return mDOM;
+    	return getModifiableDOM();
     }
 
     public Schema getSchema() throws ObjectNotFoundException {
@@ -265,16 +349,36 @@ public class Outcome implements C2KLocalObject {
      * @throws SAXException 
      */
     public static Document parse(String xml) throws SAXException, IOException {
-        synchronized (parser) {
-        	if (xml!=null)
-        		return parser.parse(new InputSource(new StringReader(xml)));
-        	else
-        		return parser.newDocument();
-        }
+    	DocumentBuilder threadParser = parser.get();
+    	try {
+    		if (xml!=null)
+    			return threadParser.parse(new InputSource(new StringReader(xml)));
+    		else
+    			return threadParser.newDocument();
+    	} finally {
+    		threadParser.reset();
+    	}
     }
     
+    /**
+     * Checks that the given XML is well-formed with a SAX pass, which is much
+     * cheaper than building its DOM. Null is accepted as an empty outcome.
+     * 
+     * @throws InvalidDataException if the XML is not well-formed
+     */
+    public static void checkWellFormed(String xml) throws InvalidDataException {
+    	if (xml == null) return;
+    	XMLReader threadChecker = checker.get();
+    	try {
+    		threadChecker.parse(new InputSource(new StringReader(xml)));
+    	} catch (IOException | SAXException ex) {
+    		Logger.error(ex);
+    		throw new InvalidDataException("XML not valid: "+ex.getMessage());
+    	}
+    }
+
     public String getField(String name) {
-    	 NodeList elements = mDOM.getDocumentElement().getElementsByTagName(name);
+    	 NodeList elements = getParsedDOM().getDocumentElement().getElementsByTagName(name);
     	 if (elements.getLength() == 1 && elements.item(0).hasChildNodes() && elements.item(0).getFirstChild() instanceof Text)
     		 return ((Text)elements.item(0).getFirstChild()).getData();
     	 else
@@ -283,16 +387,18 @@ public class Outcome implements C2KLocalObject {
     
     public NodeList getNodesByXPath(String xpathExpr) throws XPathExpressionException {
     	
-    	XPathExpression expr = xpath.compile(xpathExpr);
-    	return (NodeList)expr.evaluate(mDOM, XPathConstants.NODESET);
+    	XPathExpression expr = xpathCache.get().compile(xpathExpr);
+    	return (NodeList)expr.evaluate(getModifiableDOM(), XPathConstants.NODESET);
     	
     }
     
     public Node getNodeByXPath(String xpathExpr) throws XPathExpressionException {
-    	
-    	XPathExpression expr = xpath.compile(xpathExpr);
-    	return (Node)expr.evaluate(mDOM, XPathConstants.NODE);
-    	
+    	return selectNode(xpathExpr, getModifiableDOM());
+    }
+
+    private static Node selectNode(String xpathExpr, Document dom) throws XPathExpressionException {
+    	XPathExpression expr = xpathCache.get().compile(xpathExpr);
+    	return (Node)expr.evaluate(dom, XPathConstants.NODE);
     }
 
     static public String serialize(Document doc, boolean prettyPrint)
@@ -302,4 +408,32 @@ public class Outcome implements C2KLocalObject {
     	writer.getDomConfig().setParameter("xml-declaration", false);
     	return writer.writeToString(doc);
     }
+
+    /**
+     * Per-thread LRU cache of compiled XPath expressions, keyed by the expression string
+     */
+    static class XPathCache extends LinkedHashMap<String, XPathExpression> {
+		private static final long serialVersionUID = 1L;
+		final XPath xpath = XPathFactory.newInstance().newXPath();
+    	final int maxSize;
+
+    	XPathCache(int maxSize) {
+    		super(16, 0.75f, true);
+    		this.maxSize = maxSize;
+    	}
+
+    	XPathExpression compile(String xpathExpr) throws XPathExpressionException {
+    		XPathExpression expr = get(xpathExpr);
+    		if (expr == null) {
+    			expr = xpath.compile(xpathExpr);
+    			put(xpathExpr, expr);
+    		}
+    		return expr;
+    	}
+
+    	@Override
+    	protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+    		return size() > maxSize;
+    	}
+    }
 }
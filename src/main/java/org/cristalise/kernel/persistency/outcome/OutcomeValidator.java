@@ -21,12 +21,16 @@
 package org.cristalise.kernel.persistency.outcome;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.HashMap;
 
-import org.apache.xerces.parsers.DOMParser;
 import org.apache.xerces.parsers.IntegratedParserConfiguration;
+import org.apache.xerces.parsers.SAXParser;
 import org.apache.xerces.parsers.XMLGrammarPreparser;
 import org.apache.xerces.util.SymbolTable;
+import org.apache.xerces.util.SynchronizedSymbolTable;
 import org.apache.xerces.util.XMLGrammarPoolImpl;
 import org.apache.xerces.xni.XNIException;
 import org.apache.xerces.xni.grammars.XMLGrammarDescription;
@@ -42,6 +46,12 @@ import org.xml.sax.SAXParseException;
 
 
 /**************************************************************************
+ * Validates outcomes against their schema. Compiled schema grammars are
+ * cached for the whole process by schema name and version, so creating a
+ * validator for a schema that has been seen before is cheap, and each thread
+ * validates with its own parser so a validator may be used concurrently.
+ * Outcomes are validated as a SAX stream, so no DOM is built, and large
+ * outcomes can be validated straight from a Reader or InputStream.
  *
  * $Revision: 1.24 $
  * $Date: 2005/06/09 13:50:10 $
@@ -64,10 +74,12 @@ public class OutcomeValidator implements ErrorHandler, XMLErrorHandler {
 
     static SchemaValidator schemaValid = new SchemaValidator();
 
+    // compiled grammars shared by all validators, keyed by schema name and version
+    static final HashMap<String, CompiledGrammar> grammarCache = new HashMap<String, CompiledGrammar>();
+
     Schema schema;
     protected StringBuffer errors = null;
-    XMLGrammarPoolImpl schemaGrammarPool = new XMLGrammarPoolImpl(1);
-    SymbolTable sym = new SymbolTable();
+    CompiledGrammar grammar;
 
     public static OutcomeValidator getValidator(Schema schema) throws InvalidDataException {
     	
@@ -89,30 +101,61 @@ public class OutcomeValidator implements ErrorHandler, XMLErrorHandler {
             throw new InvalidDataException("Use SchemaValidator to validate schema");
 
 		errors = new StringBuffer();
-        Logger.msg(5, "Parsing "+schema.docType+" version "+schema.docVersion+". "+schema.schema.length()+" chars");
+		grammar = getGrammar(schema);
+	}
 
-        XMLGrammarPreparser preparser = new XMLGrammarPreparser(sym);
-        preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
-        preparser.setProperty(GRAMMAR_POOL, schemaGrammarPool);
+	/**
+	 * Returns the cached grammar for the schema, compiling it if it isn't cached or if
+	 * the cached one was compiled from different schema text.
+	 */
+	static CompiledGrammar getGrammar(Schema schema) throws InvalidDataException {
+		String key = getCacheKey(schema.docType, schema.docVersion);
+		synchronized (grammarCache) {
+			CompiledGrammar cached = grammarCache.get(key);
+			if (cached != null && cached.schemaText.equals(schema.schema)) {
+				Logger.msg(7, "OutcomeValidator.getGrammar() - "+key+" found in cache");
+				return cached;
+			}
+		}
+		// compile outside the lock, so other schemas are not held up
+		CompiledGrammar newGrammar = new CompiledGrammar(schema);
+		synchronized (grammarCache) {
+			grammarCache.put(key, newGrammar);
+		}
+		return newGrammar;
+	}
 
-        preparser.setFeature(NAMESPACES_FEATURE_ID, true);
-        preparser.setFeature(VALIDATION_FEATURE_ID, true);
-        preparser.setFeature(SCHEMA_VALIDATION_FEATURE_ID, true);
-        preparser.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
-        preparser.setErrorHandler(this);
-        try {
-            preparser.preparseGrammar(XMLGrammarDescription.XML_SCHEMA, new XMLInputSource(null, null, null, new StringReader(schema.schema), null));
-        } catch (IOException ex) {
-            throw new InvalidDataException("Error parsing schema: "+ex.getMessage());
-        }
+	/**
+	 * Discards the compiled grammar of a schema version, e.g. when its schema item has been changed.
+	 */
+	public static void invalidate(String docType, int docVersion) {
+		String key = getCacheKey(docType, docVersion);
+		synchronized (grammarCache) {
+			if (grammarCache.remove(key) != null)
+				Logger.msg(7, "OutcomeValidator.invalidate() - removed "+key+" from grammar cache");
+		}
+	}
 
-		if (errors.length() > 0) {
-            throw new InvalidDataException("Schema error: \n"+errors.toString());
+	/**
+	 * @return true if a compiled grammar of the schema version is cached
+	 */
+	public static boolean isGrammarCached(String docType, int docVersion) {
+		synchronized (grammarCache) {
+			return grammarCache.containsKey(getCacheKey(docType, docVersion));
 		}
+	}
 
+	public static void clearGrammarCache() {
+		synchronized (grammarCache) {
+			grammarCache.clear();
+		}
 	}
 
-	public synchronized String validate(Outcome outcome) {
+	private static String getCacheKey(String docType, int docVersion) {
+		return docType+"/"+docVersion;
+	}
+
+	public String validate(Outcome outcome) {
         if (outcome == null) return "Outcome object was null";
         Logger.msg(5, "Validating outcome no "+outcome.getID()+" as "+schema.docType+" v"+schema.docVersion);
         if (outcome.getSchemaType().equals(schema.docType)
@@ -123,28 +166,44 @@ public class OutcomeValidator implements ErrorHandler, XMLErrorHandler {
             return "Outcome type and version did not match schema "+schema.docType;
     }
 
-    public synchronized String validate(String outcome) {
+    public String validate(String outcome) {
         if (outcome == null) return "Outcome String was null";
-        errors = new StringBuffer();
+        return validate(new XMLInputSource(null, null, null, new StringReader(outcome), null));
+    }
+
+    /**
+     * Validates an outcome as it is read, without building it in memory first.
+     * The reader is not closed.
+     */
+    public String validate(Reader outcome) {
+        if (outcome == null) return "Outcome Reader was null";
+        return validate(new XMLInputSource(null, null, null, outcome, null));
+    }
+
+    /**
+     * Validates an outcome as it is read, detecting its encoding from the stream.
+     * The stream is not closed.
+     */
+    public String validate(InputStream outcome) {
+        if (outcome == null) return "Outcome InputStream was null";
+        return validate(new XMLInputSource(null, null, null, outcome, null));
+    }
+
+    private String validate(XMLInputSource source) {
+        ErrorCollector outcomeErrors = new ErrorCollector();
+        SAXParser parser = grammar.parsers.get();
         try {
-            XMLParserConfiguration parserConfiguration = new IntegratedParserConfiguration(sym, schemaGrammarPool);
-            parserConfiguration.setFeature(NAMESPACES_FEATURE_ID, true);
-            parserConfiguration.setFeature(VALIDATION_FEATURE_ID, true);
-            // now we can still do schema features just in case,
-            // so long as it's our configuraiton......
-            parserConfiguration.setFeature(SCHEMA_VALIDATION_FEATURE_ID, true);
-            parserConfiguration.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
-            DOMParser parser = new DOMParser(parserConfiguration);
-            parser.setErrorHandler(this);
-
-            parser.parse(new XMLInputSource(null, null, null, new StringReader(outcome), null));
+            parser.setErrorHandler(outcomeErrors);
+            parser.parse(source);
         } catch (Exception e) {
             return e.getMessage();
+        } finally {
+        	parser.setErrorHandler(null);
         }
-        return errors.toString();
+        return outcomeErrors.toString();
     }
 
-    private void appendError(String level, Exception ex) {
+    static void appendError(StringBuffer errors, String level, Exception ex) {
         errors.append(level);
         String message = ex.getMessage();
         if (message == null || message.length()==0)
@@ -153,6 +212,10 @@ public class OutcomeValidator implements ErrorHandler, XMLErrorHandler {
         errors.append("\n");
     }
 
+    private void appendError(String level, Exception ex) {
+    	appendError(errors, level, ex);
+    }
+
     /**
      * ErrorHandler for instances
      */
@@ -204,4 +267,78 @@ public class OutcomeValidator implements ErrorHandler, XMLErrorHandler {
             appendError("WARNING: ", ex);
     }
 
+    /**
+     * Collects the errors of a single parse, so that concurrent validations don't mix their reports
+     */
+    static class ErrorCollector implements ErrorHandler, XMLErrorHandler {
+    	StringBuffer errors = new StringBuffer();
+
+    	@Override
+    	public void error(SAXParseException ex) { appendError(errors, "ERROR: ", ex); }
+    	@Override
+    	public void fatalError(SAXParseException ex) { appendError(errors, "FATAL: ", ex); }
+    	@Override
+    	public void warning(SAXParseException ex) { appendError(errors, "WARNING: ", ex); }
+    	@Override
+    	public void error(String domain, String key, XMLParseException ex) { appendError(errors, "ERROR: ", ex); }
+    	@Override
+    	public void fatalError(String domain, String key, XMLParseException ex) { appendError(errors, "FATAL: ", ex); }
+    	@Override
+    	public void warning(String domain, String key, XMLParseException ex) { appendError(errors, "WARNING: ", ex); }
+
+    	@Override
+    	public String toString() {
+    		return errors.toString();
+    	}
+    }
+
+    /**
+     * A schema pre-parsed into a locked Xerces grammar pool, with a parser per thread that validates against it
+     */
+    static class CompiledGrammar {
+    	final String schemaText;
+    	final SymbolTable sym = new SynchronizedSymbolTable(new SymbolTable());
+    	final XMLGrammarPoolImpl pool = new XMLGrammarPoolImpl(1);
+
+    	final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>() {
+    		@Override
+    		protected SAXParser initialValue() {
+    			XMLParserConfiguration parserConfiguration = new IntegratedParserConfiguration(sym, pool);
+    			parserConfiguration.setFeature(NAMESPACES_FEATURE_ID, true);
+    			parserConfiguration.setFeature(VALIDATION_FEATURE_ID, true);
+    			// now we can still do schema features just in case,
+    			// so long as it's our configuraiton......
+    			parserConfiguration.setFeature(SCHEMA_VALIDATION_FEATURE_ID, true);
+    			parserConfiguration.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
+    			return new SAXParser(parserConfiguration);
+    		}
+    	};
+
+    	CompiledGrammar(Schema schema) throws InvalidDataException {
+    		schemaText = schema.schema;
+    		Logger.msg(5, "Parsing "+schema.docType+" version "+schema.docVersion+". "+schema.schema.length()+" chars");
+
+    		ErrorCollector schemaErrors = new ErrorCollector();
+    		XMLGrammarPreparser preparser = new XMLGrammarPreparser(sym);
+    		preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
+    		preparser.setProperty(GRAMMAR_POOL, pool);
+
+    		preparser.setFeature(NAMESPACES_FEATURE_ID, true);
+    		preparser.setFeature(VALIDATION_FEATURE_ID, true);
+    		preparser.setFeature(SCHEMA_VALIDATION_FEATURE_ID, true);
+    		preparser.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
+    		preparser.setErrorHandler(schemaErrors);
+    		try {
+    			preparser.preparseGrammar(XMLGrammarDescription.XML_SCHEMA, new XMLInputSource(null, null, null, new StringReader(schema.schema), null));
+    		} catch (IOException ex) {
+    			throw new InvalidDataException("Error parsing schema: "+ex.getMessage());
+    		}
+
+    		if (schemaErrors.errors.length() > 0) {
+    			throw new InvalidDataException("Schema error: \n"+schemaErrors.toString());
+    		}
+    		// no more grammars may be added by the validating parsers
+    		pool.lockPool();
+    	}
+    }
 }
@@ -23,6 +23,7 @@ package org.cristalise.kernel.persistency.outcome;
 import java.io.IOException;
 import java.io.StringReader;
 
+import org.cristalise.kernel.utils.DescriptionObject;
 import org.exolab.castor.xml.schema.reader.SchemaReader;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
@@ -37,7 +38,7 @@ import org.xml.sax.InputSource;
  * All rights reserved.
  */
 
-public class Schema {
+public class Schema implements DescriptionObject {
     public String docType;
 	public int docVersion;
 	public String schema;
@@ -70,4 +71,24 @@ public class Schema {
         return som;
 	}
 	
+	@Override
+	public String getName() {
+		return docType;
+	}
+
+	@Override
+	public int getVersion() {
+		return docVersion;
+	}
+
+	@Override
+	public void setName(String name) {
+		docType = name;
+	}
+
+	@Override
+	public void setVersion(int version) {
+		docVersion = version;
+	}
+
 }
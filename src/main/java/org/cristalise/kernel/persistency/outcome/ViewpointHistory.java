@@ -0,0 +1,221 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.persistency.outcome;
+
+import java.util.ArrayList;
+
+import org.cristalise.kernel.entity.C2KLocalObject;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.ClusterStorage;
+
+/**
+ * Records which event a Viewpoint pointed to over time, so that the Outcome a
+ * view showed at a given date can be found with a binary search instead of a
+ * walk through the AuditTrail.
+ * <p>
+ * Written by the TransactionManager in the same transaction as each stored
+ * Viewpoint, to "EventIndex/ViewPoint/<i>Schema Name</i>/<i>Viewpoint Name</i>".
+ * The times recorded are those of the events the Viewpoint points to, kept in
+ * time order. As with the EventIndex, stored instances are not modified;
+ * {@link #record(Viewpoint, long)} returns a new one.
+ * <p>
+ * Only the latest {@link #CHUNK_SIZE} states are held in the current history,
+ * so that storing a Viewpoint does not rewrite all of its past. Older states
+ * are archived in chunks under
+ * "EventIndex/ViewPoint/<i>Schema Name</i>/<i>Viewpoint Name</i>/<i>chunk number</i>".
+ */
+public class ViewpointHistory implements C2KLocalObject {
+
+	public static final int CHUNK_SIZE = 100;
+
+	String schemaName;
+	String name;
+	ArrayList<Entry> entries;
+	// in the current history, the number of chunks archived before its entries
+	int archivedChunks;
+	// the number of this chunk if it is archived, or -1 for the current history
+	int chunk = -1;
+
+	public ViewpointHistory() {
+		entries = new ArrayList<Entry>();
+	}
+
+	public ViewpointHistory(String schemaName, String name) {
+		this();
+		this.schemaName = schemaName;
+		this.name = name;
+	}
+
+	/**
+	 * Returns a copy of this history with the given state of the Viewpoint
+	 * appended, or this history if the Viewpoint has not moved. If this
+	 * history is full, the copy starts the next chunk with only the new state,
+	 * and this history must be stored as {@link #getArchive()}.
+	 */
+	public ViewpointHistory record(Viewpoint view, long time) {
+		Entry last = entries.isEmpty() ? null : entries.get(entries.size()-1);
+		if (last != null) {
+			if (last.eventId == view.getEventId() && last.schemaVersion == view.getSchemaVersion()) return this;
+			if (time < last.time) time = last.time; // keep the list ordered if events are out of order
+		}
+		ViewpointHistory newHistory = new ViewpointHistory(schemaName, name);
+		if (entries.size() >= CHUNK_SIZE) {
+			newHistory.archivedChunks = archivedChunks+1;
+			newHistory.entries = new ArrayList<Entry>();
+		}
+		else {
+			newHistory.archivedChunks = archivedChunks;
+			newHistory.entries = new ArrayList<Entry>(entries.size()+1);
+			newHistory.entries.addAll(entries);
+		}
+		newHistory.entries.add(new Entry(time, view.getEventId(), view.getSchemaVersion()));
+		return newHistory;
+	}
+
+	/**
+	 * @return the entries of this current history as the next archived chunk
+	 */
+	public ViewpointHistory getArchive() {
+		ViewpointHistory archive = new ViewpointHistory(schemaName, name);
+		archive.chunk = archivedChunks;
+		archive.entries = entries;
+		return archive;
+	}
+
+	/**
+	 * @return the time of the first recorded state, or Long.MAX_VALUE if none are recorded
+	 */
+	public long getStartTime() {
+		return entries.isEmpty() ? Long.MAX_VALUE : entries.get(0).time;
+	}
+
+	/**
+	 * Finds the state of the Viewpoint at the given time.
+	 *
+	 * @return a Viewpoint pointing to the event current at that time, or null
+	 * if the Viewpoint had not been written yet or had been cleared.
+	 */
+	public Viewpoint getViewpointAt(ItemPath itemPath, long time) {
+		int low = 0, high = entries.size()-1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (entries.get(mid).time <= time) {
+				found = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		if (found == -1) return null;
+		Entry entry = entries.get(found);
+		if (entry.eventId == Viewpoint.NONE) return null;
+		return new Viewpoint(itemPath, schemaName, name, entry.schemaVersion, entry.eventId);
+	}
+
+	public String getSchemaName() {
+		return schemaName;
+	}
+
+	public void setSchemaName(String schemaName) {
+		this.schemaName = schemaName;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getArchivedChunks() {
+		return archivedChunks;
+	}
+
+	public void setArchivedChunks(int archivedChunks) {
+		this.archivedChunks = archivedChunks;
+	}
+
+	public int getChunk() {
+		return chunk;
+	}
+
+	public void setChunk(int chunk) {
+		this.chunk = chunk;
+	}
+
+	public ArrayList<Entry> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(ArrayList<Entry> entries) {
+		this.entries = entries;
+	}
+
+	@Override
+	public String getClusterType() {
+		return ClusterStorage.EVENTINDEX;
+	}
+
+	/**
+	 * The event and schema version a Viewpoint was set to, and when.
+	 */
+	public static class Entry {
+		long time;
+		int eventId;
+		int schemaVersion;
+
+		public Entry() {
+		}
+
+		public Entry(long time, int eventId, int schemaVersion) {
+			this.time = time;
+			this.eventId = eventId;
+			this.schemaVersion = schemaVersion;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public void setTime(long time) {
+			this.time = time;
+		}
+
+		public int getEventId() {
+			return eventId;
+		}
+
+		public void setEventId(int eventId) {
+			this.eventId = eventId;
+		}
+
+		public int getSchemaVersion() {
+			return schemaVersion;
+		}
+
+		public void setSchemaVersion(int schemaVersion) {
+			this.schemaVersion = schemaVersion;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.persistency.outcome;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.lookup.InvalidItemPathException;
+import org.cristalise.kernel.utils.StaxMarshaller;
+
+/**
+ * StAX form of the Viewpoint mapping in ViewpointMap.xml
+ */
+public class ViewpointMarshaller extends StaxMarshaller<Viewpoint> {
+
+	@Override
+	public Class<Viewpoint> getMappedClass() {
+		return Viewpoint.class;
+	}
+
+	@Override
+	public String getRootElement() {
+		return "Viewpoint";
+	}
+
+	@Override
+	public void write(Viewpoint view, StringBuilder out) throws InvalidDataException {
+		if (view.getItemPath() == null)
+			throw new InvalidDataException("Viewpoint has no ItemPath");
+		out.append("<Viewpoint");
+		appendAttribute(out, "ItemUUID", view.getItemUUID());
+		appendAttribute(out, "SchemaName", view.getSchemaName());
+		appendAttribute(out, "Name", view.getName());
+		appendAttribute(out, "SchemaVersion", view.getSchemaVersion());
+		appendAttribute(out, "Last", view.getEventId());
+		out.append("/>");
+	}
+
+	@Override
+	public Viewpoint read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		Viewpoint view = new Viewpoint();
+		String itemUUID = getString(reader, "ItemUUID");
+		if (itemUUID != null)
+			try {
+				view.setItemUUID(itemUUID);
+			} catch (InvalidItemPathException ex) {
+				throw new InvalidDataException(ex.getMessage());
+			}
+		view.setSchemaName(getString(reader, "SchemaName"));
+		view.setName(getString(reader, "Name"));
+		view.setSchemaVersion(getInt(reader, "SchemaVersion", Viewpoint.NONE));
+		view.setEventId(getInt(reader, "Last", Viewpoint.NONE));
+		skipEmptyElement(reader);
+		return view;
+	}
+}
@@ -55,6 +55,7 @@ import org.cristalise.kernel.property.Property;
 import org.cristalise.kernel.property.PropertyArrayList;
 import org.cristalise.kernel.property.PropertyDescription;
 import org.cristalise.kernel.property.PropertyDescriptionList;
+import org.cristalise.kernel.utils.DescriptionPreloader;
 import org.cristalise.kernel.utils.FileStringUtility;
 import org.cristalise.kernel.utils.LocalObjectLoader;
 import org.cristalise.kernel.utils.Logger;
@@ -82,12 +83,10 @@ public class Bootstrap
 
 		// create the server's mother item
 		createServerItem();
-		new Thread(new Runnable() {
+		KernelExecutors.execute(KernelExecutors.SERVICE, "Bootstrapper", new Runnable() {
 			@Override
 			public void run() {
 		        try {
-                    Thread.currentThread().setName("Bootstrapper");
-                    
                     ClassLoader wClassLoader = Bootstrap.class.getClassLoader();
                     Logger.msg(String.format("Bootstrap.run() setContextClassLoader=[%s]",wClassLoader));
                     Thread.currentThread().setContextClassLoader(wClassLoader);
@@ -103,13 +102,17 @@ public class Bootstrap
 					Gateway.getModuleManager().setUser(systemAgents.get("system"));
 		            Gateway.getModuleManager().registerModules();
 
+		            // warm the description caches now all descriptions are in place
+		            if (Gateway.getProperties().getBoolean("DescriptionPreloader.enabled", true))
+		            	DescriptionPreloader.run();
+
 					Logger.msg("Bootstrap.run() - Bootstrapping complete");
 				} catch (Throwable e) {
 					Logger.error(e);
 					Logger.die("Exception performing bootstrap. Check that everything is OK.");
 				}
 			}
-		}).start();
+		});
 	}
 
     /**************************************************************************
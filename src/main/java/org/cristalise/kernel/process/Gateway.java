@@ -37,14 +37,19 @@ import org.cristalise.kernel.entity.CorbaServer;
 import org.cristalise.kernel.entity.proxy.AgentProxy;
 import org.cristalise.kernel.entity.proxy.ProxyManager;
 import org.cristalise.kernel.entity.proxy.ProxyServer;
+import org.cristalise.kernel.lifecycle.instance.WorklistIndex;
 import org.cristalise.kernel.lookup.AgentPath;
+import org.cristalise.kernel.lookup.DomainPath;
 import org.cristalise.kernel.lookup.Lookup;
 import org.cristalise.kernel.lookup.LookupManager;
+import org.cristalise.kernel.persistency.OutcomeIndex;
 import org.cristalise.kernel.persistency.TransactionManager;
 import org.cristalise.kernel.process.auth.Authenticator;
 import org.cristalise.kernel.process.module.ModuleManager;
 import org.cristalise.kernel.process.resource.Resource;
 import org.cristalise.kernel.process.resource.ResourceLoader;
+import org.cristalise.kernel.property.Property;
+import org.cristalise.kernel.stats.KernelStats;
 import org.cristalise.kernel.utils.CastorXMLUtility;
 import org.cristalise.kernel.utils.FileStringUtility;
 import org.cristalise.kernel.utils.Language;
@@ -85,6 +90,7 @@ public class Gateway
     static private ProxyManager   		mProxyManager;
     static private ProxyServer			mProxyServer;
     static private CorbaServer          mCorbaServer;
+    static private WorklistIndex		mWorklist;
     static private CastorXMLUtility		mMarshaller;
     static private ResourceLoader		mResource;
 
@@ -205,8 +211,40 @@ public class Gateway
             // start corba server components
             mCorbaServer = new CorbaServer();
 
+            // publish storage, transaction and proxy statistics over JMX
+            if (getProperties().getBoolean("JMX.enabled", true))
+            	KernelStats.register();
+
+            // activities update the worklist index as their states change
+            mWorklist = new WorklistIndex();
+
+            // the outcome index is only held in memory, so refuse queries until it has been refilled
+            final OutcomeIndex outcomeIndex = mStorage.getDb().getOutcomeIndex();
+            final boolean rebuildOutcomeIndex = outcomeIndex.hasDeclaredFields() && getProperties().getBoolean(OutcomeIndex.REBUILD_PROPERTY, true);
+            if (rebuildOutcomeIndex) outcomeIndex.setRebuilding();
+            final boolean rebuildWorklist = getProperties().getBoolean("WorklistIndex.rebuild", true);
+            if (rebuildWorklist) mWorklist.setRebuilding();
+
             // start checking bootstrap & module items
             Bootstrap.run();
+
+            // index the existing work in the background
+            if (rebuildWorklist) {
+            	KernelExecutors.execute(KernelExecutors.SERVICE, "WorklistIndex rebuild", new Runnable() {
+            		@Override
+            		public void run() {
+            			mWorklist.rebuild(mLookup.search(new DomainPath(""), new Property[0]), mStorage.getDb());
+            		}
+            	});
+            }
+            if (rebuildOutcomeIndex) {
+            	KernelExecutors.execute(KernelExecutors.SERVICE, "OutcomeIndex rebuild", new Runnable() {
+            		@Override
+            		public void run() {
+            			outcomeIndex.rebuild(mLookup.search(new DomainPath(""), new Property[0]), mStorage.getDb());
+            		}
+            	});
+            }
             System.out.println("Server '"+serverName+"' initialised.");            
         } catch (Exception ex) {
             Logger.error(ex);
@@ -352,6 +390,8 @@ public class Gateway
         	mProxyServer.shutdownServer();
         mProxyManager = null;
         mProxyServer = null;
+        mWorklist = null;
+        KernelStats.unregister();
 
         // close log consoles
         Logger.closeConsole();
@@ -363,6 +403,9 @@ public class Gateway
         	mORB = null;
         }
         
+        // stop the kernel's thread pools
+        KernelExecutors.shutdown();
+
         // clean up remaining objects
         mModules = null;
         mResource = null;
@@ -424,6 +467,13 @@ public class Gateway
 	public static ProxyServer getProxyServer() {
 		return mProxyServer;
 	}
+
+	/**
+	 * @return the index of currently available activities by role. Null outside of a server process.
+	 */
+	public static WorklistIndex getWorklistIndex() {
+		return mWorklist;
+	}
 	
     static public String getCentreId() {
         return getProperties().getString("LocalCentre");
@@ -0,0 +1,319 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.process;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Holds the thread pools of the kernel, so every thread it starts is named,
+ * bounded and counted in one place. Pools are created on first use and shut
+ * down by {@link Gateway#close()}.
+ * <p>
+ * Each pool is configured by properties, falling back to the defaults below:
+ * <ul>
+ * <li>Executor.&lt;name&gt;.threads - the most threads the pool will run</li>
+ * <li>Executor.&lt;name&gt;.queue - how many tasks may wait for a thread. 0 hands
+ * each task straight to a thread, and a negative size does not bound the queue.</li>
+ * <li>Executor.&lt;name&gt;.rejection - what to do with a task when the threads and
+ * queue are full: ABORT, CALLER_RUNS, DISCARD or DISCARD_OLDEST</li>
+ * <li>Executor.&lt;name&gt;.keepAlive - seconds an idle thread is kept (default 30)</li>
+ * <li>Executor.&lt;name&gt;.virtual - run the tasks on virtual threads, where the
+ * Java runtime has them. Defaults to Executor.virtualThreads, which is false.</li>
+ * </ul>
+ * <table>
+ * <tr><th>Pool</th><th>Used for</th><th>Threads</th><th>Queue</th><th>Rejection</th></tr>
+ * <tr><td>Service</td><td>long running loops: listeners, the ORB, the proxy server and the bootstrap</td><td>256</td><td>0</td><td>ABORT</td></tr>
+ * <tr><td>Connection</td><td>socket handlers and proxy server connections</td><td>512</td><td>0</td><td>ABORT</td></tr>
+ * <tr><td>JobPusher</td><td>pushing job lists to agents</td><td>4</td><td>10000</td><td>CALLER_RUNS</td></tr>
+ * <tr><td>MemberSubscription</td><td>loading the members of new proxy subscriptions</td><td>4</td><td>10000</td><td>CALLER_RUNS</td></tr>
+ * <tr><td>ProxyDispatch</td><td>notifying proxies of changes</td><td>ProxyManager.dispatchThreads (4)</td><td>ProxyManager.dispatchQueueLimit (10000)</td><td>ABORT</td></tr>
+ * <tr><td>LocalQuery</td><td>evaluating local queries</td><td>LocalQuery.threads (processors)</td><td>unbounded</td><td>ABORT</td></tr>
+ * <tr><td>DescriptionPreloader</td><td>warming the description caches</td><td>DescriptionPreloader.threads (4)</td><td>10000</td><td>CALLER_RUNS</td></tr>
+ * </table>
+ * Threads of the Service pool keep the process alive, and never run virtual
+ * as the ORB and listeners block in native code. Any other name gets a pool
+ * with one thread per processor.
+ */
+public class KernelExecutors {
+
+	public static final String SERVICE = "Service";
+	public static final String CONNECTION = "Connection";
+	public static final String JOB_PUSHER = "JobPusher";
+	public static final String MEMBER_SUBSCRIPTION = "MemberSubscription";
+	public static final String PROXY_DISPATCH = "ProxyDispatch";
+	public static final String LOCAL_QUERY = "LocalQuery";
+	public static final String DESCRIPTION_PRELOADER = "DescriptionPreloader";
+
+	public enum Rejection { ABORT, CALLER_RUNS, DISCARD, DISCARD_OLDEST }
+
+	static final ConcurrentHashMap<String, ManagedExecutor> pools = new ConcurrentHashMap<String, ManagedExecutor>();
+
+	/**
+	 * @return the named pool, creating it from the properties if this is its first use
+	 */
+	public static ManagedExecutor get(String name) {
+		ManagedExecutor pool = pools.get(name);
+		if (pool == null) {
+			pool = create(name);
+			ManagedExecutor existing = pools.putIfAbsent(name, pool);
+			if (existing != null) {
+				pool.shutdownNow();
+				pool = existing;
+			}
+			else
+				Logger.msg(5, "KernelExecutors.get() - created "+pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the task on the named pool, with the thread renamed while it runs
+	 * @throws RejectedExecutionException if the pool is full and its policy is ABORT, or the pool is shut down
+	 */
+	public static void execute(String pool, final String threadName, final Runnable task) {
+		get(pool).execute(new Runnable() {
+			@Override
+			public void run() {
+				Thread.currentThread().setName(threadName);
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Stops all pools, interrupting their running tasks. Pools used after this are created again.
+	 */
+	public static void shutdown() {
+		for (String name : pools.keySet()) {
+			ManagedExecutor pool = pools.remove(name);
+			if (pool != null) pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the pools created so far, by name
+	 */
+	public static Map<String, ManagedExecutor> getExecutors() {
+		return new TreeMap<String, ManagedExecutor>(pools);
+	}
+
+	static ManagedExecutor create(String name) {
+		int threads, queue;
+		Rejection rejection;
+		boolean daemon = true, virtual = true;
+		int processors = Runtime.getRuntime().availableProcessors();
+		switch (name) {
+		case SERVICE:
+			threads = 256; queue = 0; rejection = Rejection.ABORT; daemon = false; virtual = false;
+			break;
+		case CONNECTION:
+			threads = 512; queue = 0; rejection = Rejection.ABORT;
+			break;
+		case JOB_PUSHER:
+		case MEMBER_SUBSCRIPTION:
+			threads = 4; queue = 10000; rejection = Rejection.CALLER_RUNS;
+			break;
+		case PROXY_DISPATCH:
+			threads = Gateway.getProperties().getInt("ProxyManager.dispatchThreads", 4);
+			queue = Gateway.getProperties().getInt("ProxyManager.dispatchQueueLimit", 10000);
+			// the dispatcher re-queues rejected work, as running it in the connection reader would stall it
+			rejection = Rejection.ABORT;
+			break;
+		case LOCAL_QUERY:
+			threads = Gateway.getProperties().getInt("LocalQuery.threads", processors);
+			// a query run by its own reader would fill its buffer and wait forever, so never run in the caller
+			queue = -1; rejection = Rejection.ABORT; virtual = false;
+			break;
+		case DESCRIPTION_PRELOADER:
+			threads = Gateway.getProperties().getInt("DescriptionPreloader.threads", 4);
+			queue = 10000; rejection = Rejection.CALLER_RUNS;
+			break;
+		default:
+			threads = processors; queue = 10000; rejection = Rejection.CALLER_RUNS;
+		}
+		String prefix = "Executor."+name+".";
+		threads = Gateway.getProperties().getInt(prefix+"threads", threads);
+		queue = Gateway.getProperties().getInt(prefix+"queue", queue);
+		String policy = Gateway.getProperties().getString(prefix+"rejection", rejection.name());
+		try {
+			rejection = Rejection.valueOf(policy.toUpperCase());
+		} catch (IllegalArgumentException ex) {
+			Logger.error("KernelExecutors - unknown rejection policy '"+policy+"' for pool "+name+". Using "+rejection);
+		}
+		virtual = virtual && Gateway.getProperties().getBoolean(prefix+"virtual", Gateway.getProperties().getBoolean("Executor.virtualThreads", false));
+		ManagedExecutor pool = newExecutor(name, threads, queue, rejection, daemon, virtual);
+		pool.setKeepAliveTime(Gateway.getProperties().getInt(prefix+"keepAlive", 30), TimeUnit.SECONDS);
+		return pool;
+	}
+
+	/**
+	 * Creates a pool that is not held by the registry, and so must be shut down by its owner
+	 *
+	 * @param threads the most threads the pool will run
+	 * @param queue the number of waiting tasks, 0 for none or negative for no bound
+	 * @param virtual run on virtual threads if the runtime has them
+	 */
+	public static ManagedExecutor newExecutor(String name, int threads, int queue, Rejection rejection, boolean daemon, boolean virtual) {
+		ThreadFactory factory = virtual ? virtualThreadFactory(name+"-v") : null;
+		if (virtual && factory == null)
+			Logger.msg("KernelExecutors - virtual threads are not available in Java "+System.getProperty("java.version")+
+					". Pool "+name+" will use platform threads.");
+		if (factory == null) factory = new PlatformThreadFactory(name, daemon);
+		return new ManagedExecutor(name, Math.max(threads, 1), queue, rejection, factory, !(factory instanceof PlatformThreadFactory));
+	}
+
+	/**
+	 * @return a factory of virtual threads, or null if this runtime has none. Found
+	 * by reflection as the kernel still builds for Java 7.
+	 */
+	static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method name = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix+"-", 1L);
+			return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	static class PlatformThreadFactory implements ThreadFactory {
+		final String name;
+		final boolean daemon;
+		final AtomicInteger count = new AtomicInteger();
+
+		PlatformThreadFactory(String name, boolean daemon) {
+			this.name = name;
+			this.daemon = daemon;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name+"-"+count.incrementAndGet());
+			thread.setDaemon(daemon);
+			return thread;
+		}
+	}
+
+	/**
+	 * A pool that counts the tasks it rejects, and gives its threads back their
+	 * name after each task, as many tasks rename their thread.
+	 */
+	public static class ManagedExecutor extends ThreadPoolExecutor {
+		final String name;
+		final int queueLimit;
+		final Rejection rejection;
+		final boolean virtual;
+		final AtomicLong rejected = new AtomicLong();
+		// the pool's own name for each of its threads
+		final ThreadLocal<String> threadNames = new ThreadLocal<String>();
+
+		ManagedExecutor(String name, int threads, int queue, Rejection rejection, ThreadFactory factory, boolean virtual) {
+			super(queue == 0 ? 0 : threads, threads, 30, TimeUnit.SECONDS, KernelExecutors.<Runnable>newQueue(queue), factory);
+			this.name = name;
+			this.queueLimit = queue;
+			this.rejection = rejection;
+			this.virtual = virtual;
+			if (queue != 0) allowCoreThreadTimeOut(true);
+			final RejectedExecutionHandler policy;
+			switch (rejection) {
+			case CALLER_RUNS: policy = new CallerRunsPolicy() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					// as ABORT does, so the caller can release what it holds for the task
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("Task "+r+" rejected as "+ManagedExecutor.this.name+" is shut down");
+					Thread caller = Thread.currentThread();
+					String callerName = caller.getName();
+					try {
+						r.run();
+					} finally {
+						caller.setName(callerName);
+					}
+				}
+			}; break;
+			case DISCARD: policy = new DiscardPolicy(); break;
+			case DISCARD_OLDEST: policy = new DiscardOldestPolicy(); break;
+			default: policy = new AbortPolicy();
+			}
+			setRejectedExecutionHandler(new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					if (!executor.isShutdown()) rejected.incrementAndGet();
+					policy.rejectedExecution(r, executor);
+				}
+			});
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			if (threadNames.get() == null) threadNames.set(t.getName());
+			super.beforeExecute(t, r);
+		}
+
+		@Override
+		protected void afterExecute(Runnable r, Throwable t) {
+			super.afterExecute(r, t);
+			Thread current = Thread.currentThread();
+			String original = threadNames.get();
+			if (original != null && !original.equals(current.getName())) current.setName(original);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isVirtual() {
+			return virtual;
+		}
+
+		/** @return the number of tasks refused because the threads and queue were full */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Executor "+name+" ("+getMaximumPoolSize()+(virtual ? " virtual" : "")+" threads, queue "+
+					(queueLimit < 0 ? "unbounded" : queueLimit)+", "+rejection+")";
+		}
+	}
+
+	static <T> BlockingQueue<T> newQueue(int size) {
+		if (size == 0) return new SynchronousQueue<T>();
+		return size < 0 ? new LinkedBlockingQueue<T>() : new LinkedBlockingQueue<T>(size);
+	}
+}
@@ -240,7 +240,8 @@ public class UserCodeProcess extends StandardClient implements ProxyObserver<Job
         {
         	Gateway.init(readC2KArgs(args));
             UserCodeProcess proc = getInstance();
-            new Thread(proc).start();
+            KernelExecutors.get(KernelExecutors.SERVICE).execute(proc);
+            // the JVM needs an unstarted Thread for a shutdown hook, so this one is not pooled
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 @Override
 				public void run() {
@@ -0,0 +1,110 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.property;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.utils.StaxMarshaller;
+
+/**
+ * StAX form of the Property mapping in PropertiesMap.xml
+ */
+public class PropertyMarshaller extends StaxMarshaller<Property> {
+
+	@Override
+	public Class<Property> getMappedClass() {
+		return Property.class;
+	}
+
+	@Override
+	public String getRootElement() {
+		return "Property";
+	}
+
+	@Override
+	public void write(Property prop, StringBuilder out) throws InvalidDataException {
+		out.append("<Property");
+		appendAttribute(out, "name", prop.getName());
+		appendAttribute(out, "mutable", prop.isMutable());
+		String value = prop.getValue();
+		if (value == null || value.length() == 0)
+			out.append("/>");
+		else {
+			out.append('>');
+			appendText(out, value);
+			out.append("</Property>");
+		}
+	}
+
+	@Override
+	public Property read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		Property prop = new Property();
+		prop.setName(getString(reader, "name"));
+		Boolean mutable = getBoolean(reader, "mutable");
+		if (mutable != null) prop.setMutable(mutable);
+		String value = getText(reader);
+		if (value != null) prop.setValue(value);
+		return prop;
+	}
+
+	/**
+	 * StAX form of the PropertyArrayList mapping in PropertiesMap.xml
+	 */
+	public static class ListMarshaller extends StaxMarshaller<PropertyArrayList> {
+
+		PropertyMarshaller propMarshaller = new PropertyMarshaller();
+
+		@Override
+		public Class<PropertyArrayList> getMappedClass() {
+			return PropertyArrayList.class;
+		}
+
+		@Override
+		public String getRootElement() {
+			return "PropertyList";
+		}
+
+		@Override
+		public void write(PropertyArrayList props, StringBuilder out) throws InvalidDataException {
+			if (props.list.isEmpty()) {
+				out.append("<PropertyList/>");
+				return;
+			}
+			out.append("<PropertyList>");
+			for (Property prop : props.list)
+				propMarshaller.write(prop, out);
+			out.append("</PropertyList>");
+		}
+
+		@Override
+		public PropertyArrayList read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+			PropertyArrayList props = new PropertyArrayList();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				checkElement(reader, "Property");
+				props.list.add(propMarshaller.read(reader));
+			}
+			return props;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.querying;
+
+import org.cristalise.kernel.common.PersistencyException;
+
+/**
+ * A condition on the data of an Item, evaluated by a {@link LocalQuery}.
+ * Implementations must be thread-safe, as one predicate is evaluated by all
+ * the threads of a query at once. The static methods create the common ones.
+ */
+public abstract class ItemPredicate {
+
+	public abstract boolean matches(QueryItem item) throws PersistencyException;
+
+	/** Matches Items with the given value of a Property */
+	public static ItemPredicate property(final String name, final String value) {
+		return new ItemPredicate() {
+			@Override
+			public boolean matches(QueryItem item) throws PersistencyException {
+				return value.equals(item.getProperty(name));
+			}
+			@Override
+			public String toString() {
+				return "Property "+name+"="+value;
+			}
+		};
+	}
+
+	/** Matches Items that have the Viewpoint */
+	public static ItemPredicate viewpoint(final String schemaName, final String viewName) {
+		return new ItemPredicate() {
+			@Override
+			public boolean matches(QueryItem item) throws PersistencyException {
+				return item.getViewpoint(schemaName, viewName) != null;
+			}
+			@Override
+			public String toString() {
+				return "Viewpoint "+schemaName+"/"+viewName;
+			}
+		};
+	}
+
+	/** Matches Items whose Outcome in the Viewpoint has the value at the XPath */
+	public static ItemPredicate outcome(final String schemaName, final String viewName, final String xpath, final String value) {
+		return new ItemPredicate() {
+			@Override
+			public boolean matches(QueryItem item) throws PersistencyException {
+				return value.equals(item.getOutcomeField(schemaName, viewName, xpath));
+			}
+			@Override
+			public String toString() {
+				return "Outcome "+schemaName+"/"+viewName+":"+xpath+"="+value;
+			}
+		};
+	}
+
+	/** Matches Items that match all of the predicates, evaluated in order */
+	public static ItemPredicate all(final ItemPredicate... predicates) {
+		return new ItemPredicate() {
+			@Override
+			public boolean matches(QueryItem item) throws PersistencyException {
+				for (ItemPredicate predicate : predicates)
+					if (!predicate.matches(item)) return false;
+				return true;
+			}
+		};
+	}
+
+	/** Matches Items that match any of the predicates, evaluated in order */
+	public static ItemPredicate any(final ItemPredicate... predicates) {
+		return new ItemPredicate() {
+			@Override
+			public boolean matches(QueryItem item) throws PersistencyException {
+				for (ItemPredicate predicate : predicates)
+					if (predicate.matches(item)) return true;
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.querying;
+
+import java.util.Iterator;
+
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Evaluates an {@link ItemPredicate} over many Items in parallel, reading
+ * their data directly from local storage.
+ * <p>
+ * Queries share the LocalQuery pool of {@link KernelExecutors}, sized by the
+ * property LocalQuery.threads (the number of processors by default). Each query
+ * uses at most LocalQuery.threadsPerQuery of them, and buffers at most
+ * LocalQuery.bufferSize matches that haven't been read yet.
+ * <pre>
+ * QueryResult result = query.run(Gateway.getLookup().search(new DomainPath("/batches"), ""),
+ *         ItemPredicate.outcome("Batch", "last", "/Batch/Status", "QA"));
+ * while (result.hasNext()) report(result.next());
+ * </pre>
+ */
+public class LocalQuery {
+
+	final ClusterStorageManager storage;
+	final int threadsPerQuery;
+	final int bufferSize;
+
+	public LocalQuery() {
+		this(Gateway.getStorage().getDb());
+	}
+
+	public LocalQuery(ClusterStorageManager storage) {
+		this(storage, Gateway.getProperties().getInt("LocalQuery.threads", Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param threads the number of pool threads each query runs on
+	 */
+	public LocalQuery(ClusterStorageManager storage, int threads) {
+		this.storage = storage;
+		threadsPerQuery = Math.min(threads, Gateway.getProperties().getInt("LocalQuery.threadsPerQuery", threads));
+		bufferSize = Gateway.getProperties().getInt("LocalQuery.bufferSize", 1000);
+	}
+
+	/**
+	 * Starts evaluating the predicate over the given Items, and returns at once. The source
+	 * iterator is read by the query threads, so should not be used by anyone else.
+	 */
+	public QueryResult run(Iterator<? extends Path> items, ItemPredicate predicate) {
+		Logger.msg(5, "LocalQuery.run() - evaluating "+predicate+" on "+threadsPerQuery+" threads");
+		QueryResult result = new QueryResult(items, threadsPerQuery, bufferSize);
+		for (int i = 0; i < threadsPerQuery; i++)
+			KernelExecutors.get(KernelExecutors.LOCAL_QUERY).execute(new Worker(result, predicate));
+		return result;
+	}
+
+	/**
+	 * @deprecated the query threads are pooled by {@link KernelExecutors}, which
+	 * stops them when the Gateway closes. Close each QueryResult instead.
+	 */
+	@Deprecated
+	public void shutdown() {
+	}
+
+	class Worker implements Runnable {
+		final QueryResult result;
+		final ItemPredicate predicate;
+
+		Worker(QueryResult result, ItemPredicate predicate) {
+			this.result = result;
+			this.predicate = predicate;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Path next;
+				while ((next = result.nextSource()) != null) {
+					result.scanned.incrementAndGet();
+					try {
+						ItemPath itemPath = next.getItemPath();
+						if (predicate.matches(new QueryItem(itemPath, storage)))
+							result.addMatch(itemPath);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (Exception ex) {
+						result.errors.incrementAndGet();
+						Logger.msg(3, "LocalQuery - skipping "+next+": "+ex.getMessage());
+					}
+				}
+			} finally {
+				result.workerFinished();
+			}
+		}
+	}
+}
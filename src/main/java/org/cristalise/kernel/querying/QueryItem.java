@@ -0,0 +1,121 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.querying;
+
+import java.util.HashMap;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.common.PersistencyException;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.property.Property;
+
+/**
+ * The data of one Item as seen by a query. Objects are read from storage
+ * without caching them there, but are kept here while the Item is evaluated,
+ * so predicates on the same Outcome only read and parse it once.
+ */
+public class QueryItem {
+
+	final ItemPath itemPath;
+	final ClusterStorageManager storage;
+	final HashMap<String, Object> read = new HashMap<String, Object>();
+	// private copies of the Outcomes read, by path
+	final HashMap<String, Outcome> outcomes = new HashMap<String, Outcome>();
+	static final Object NOT_FOUND = new Object();
+
+	public QueryItem(ItemPath itemPath, ClusterStorageManager storage) {
+		this.itemPath = itemPath;
+		this.storage = storage;
+	}
+
+	public ItemPath getItemPath() {
+		return itemPath;
+	}
+
+	private Object read(String path) throws PersistencyException {
+		Object obj = read.get(path);
+		if (obj == null) {
+			try {
+				obj = storage.peek(itemPath, path);
+			} catch (ObjectNotFoundException ex) {
+				obj = NOT_FOUND;
+			}
+			read.put(path, obj);
+		}
+		return obj == NOT_FOUND ? null : obj;
+	}
+
+	/**
+	 * @return the value of the Property, or null if the Item doesn't have it
+	 */
+	public String getProperty(String name) throws PersistencyException {
+		Property prop = (Property)read(ClusterStorage.PROPERTY+"/"+name);
+		return prop == null ? null : prop.getValue();
+	}
+
+	/**
+	 * @return the Viewpoint, or null if the Item doesn't have it
+	 */
+	public Viewpoint getViewpoint(String schemaName, String viewName) throws PersistencyException {
+		return (Viewpoint)read(ClusterStorage.VIEWPOINT+"/"+schemaName+"/"+viewName);
+	}
+
+	/**
+	 * @return the Outcome the Viewpoint points to, or null if there is none
+	 */
+	public Outcome getOutcome(String schemaName, String viewName) throws PersistencyException {
+		Viewpoint view = getViewpoint(schemaName, viewName);
+		if (view == null || view.getEventId() == Viewpoint.NONE) return null;
+		String path = ClusterStorage.OUTCOME+"/"+schemaName+"/"+view.getSchemaVersion()+"/"+view.getEventId();
+		Outcome outcome = outcomes.get(path);
+		if (outcome != null) return outcome;
+		Outcome stored = (Outcome)read(path);
+		if (stored == null) return null;
+		// always parse a private copy: the stored one may be shared with other threads, and its DOM is not safe to read concurrently
+		try {
+			outcome = new Outcome(stored.getID(), stored.getData(), stored.getSchemaType(), stored.getSchemaVersion());
+		} catch (InvalidDataException ex) {
+			throw new PersistencyException("Invalid outcome "+path+" in "+itemPath+": "+ex.getMessage());
+		}
+		outcomes.put(path, outcome);
+		return outcome;
+	}
+
+	/**
+	 * @return the value at the XPath in the Outcome of the Viewpoint, or null if there is none
+	 */
+	public String getOutcomeField(String schemaName, String viewName, String xpath) throws PersistencyException {
+		Outcome outcome = getOutcome(schemaName, viewName);
+		if (outcome == null) return null;
+		try {
+			return outcome.getFieldByXPath(xpath);
+		} catch (InvalidDataException ex) { // field not present
+			return null;
+		} catch (Exception ex) {
+			throw new PersistencyException("Could not evaluate "+xpath+" in "+schemaName+"/"+viewName+" of "+itemPath+": "+ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.querying;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+
+/**
+ * The matches of a running {@link LocalQuery}, returned as they are found.
+ * hasNext() blocks until another match is available or the query has
+ * finished. The buffer of matches is bounded, so the query threads wait for
+ * a slow reader rather than filling memory. Call close() to stop a query
+ * before reading all of its results.
+ */
+public class QueryResult implements Iterator<ItemPath> {
+
+	// marks the end of the results, put once by the last worker to finish
+	static final ItemPath END = new ItemPath();
+
+	final Iterator<? extends Path> source;
+	final BlockingQueue<ItemPath> matches;
+	final AtomicInteger runningWorkers;
+	final AtomicInteger scanned = new AtomicInteger();
+	final AtomicInteger errors = new AtomicInteger();
+	volatile boolean closed = false;
+	ItemPath next = null;
+	boolean finished = false;
+
+	QueryResult(Iterator<? extends Path> source, int workers, int bufferSize) {
+		this.source = source;
+		this.matches = new LinkedBlockingQueue<ItemPath>(bufferSize);
+		this.runningWorkers = new AtomicInteger(workers);
+	}
+
+	/**
+	 * Gives the next path to evaluate to a worker, or null when there are no more
+	 */
+	Path nextSource() {
+		if (closed) return null;
+		synchronized (source) {
+			return source.hasNext() ? source.next() : null;
+		}
+	}
+
+	void addMatch(ItemPath itemPath) throws InterruptedException {
+		while (!closed) {
+			if (matches.offer(itemPath, 100, TimeUnit.MILLISECONDS)) return;
+		}
+	}
+
+	void workerFinished() {
+		if (runningWorkers.decrementAndGet() == 0) {
+			try {
+				// if closed nobody is reading, so clear space for the end marker
+				if (closed) matches.clear();
+				matches.put(END);
+			} catch (InterruptedException e) {
+				matches.clear();
+				matches.offer(END);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean hasNext() {
+		if (next != null) return true;
+		if (finished) return false;
+		try {
+			next = matches.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			return false;
+		}
+		if (next == END) {
+			next = null;
+			finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized ItemPath next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		ItemPath result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the query. Items already being evaluated are finished, but their matches are discarded.
+	 */
+	public synchronized void close() {
+		closed = true;
+		matches.clear();
+		finished = true;
+		next = null;
+	}
+
+	/** @return the number of Items evaluated so far */
+	public int getScannedCount() {
+		return scanned.get();
+	}
+
+	/** @return the number of Items that could not be read or evaluated, and were skipped */
+	public int getErrorCount() {
+		return errors.get();
+	}
+
+	/** @return true once every Item has been evaluated */
+	public boolean isComplete() {
+		return runningWorkers.get() == 0;
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+/**
+ * A server-side query facility that finds Items by their data, for reporting
+ * workloads that would otherwise load each Item through its proxy in turn.
+ *
+ * <p>An {@link ItemPredicate} describes what to match: Property values,
+ * the presence of a Viewpoint, or the value of an XPath in the Outcome a
+ * Viewpoint points to, combined with all() and any(). A {@link LocalQuery}
+ * evaluates it over a set of Items, such as the result of a Lookup search, on
+ * a bounded pool of threads. Item data is read straight from the
+ * ClusterStorageManager without being added to its cache, and each Item's
+ * data is read at most once per evaluation through a {@link QueryItem}.
+ * Matching ItemPaths are streamed back through a {@link QueryResult} while the
+ * query is still running.
+ */
+package org.cristalise.kernel.querying;
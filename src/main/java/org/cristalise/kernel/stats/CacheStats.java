@@ -0,0 +1,68 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats implements CacheStatsMXBean {
+
+	final ConcurrentHashMap<String, AtomicLong[]> counters = new ConcurrentHashMap<String, AtomicLong[]>();
+
+	public void record(String cacheName, boolean hit) {
+		AtomicLong[] hitsAndMisses = counters.get(cacheName);
+		if (hitsAndMisses == null) {
+			hitsAndMisses = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+			AtomicLong[] existing = counters.putIfAbsent(cacheName, hitsAndMisses);
+			if (existing != null) hitsAndMisses = existing;
+		}
+		hitsAndMisses[hit ? 0 : 1].incrementAndGet();
+	}
+
+	private Map<String, Long> get(int pos) {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong[]> entry : counters.entrySet())
+			result.put(entry.getKey(), entry.getValue()[pos].get());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getHits() {
+		return get(0);
+	}
+
+	@Override
+	public Map<String, Long> getMisses() {
+		return get(1);
+	}
+
+	@Override
+	public Map<String, Double> getHitRatios() {
+		TreeMap<String, Double> result = new TreeMap<String, Double>();
+		for (Map.Entry<String, AtomicLong[]> entry : counters.entrySet()) {
+			long hits = entry.getValue()[0].get(), total = hits + entry.getValue()[1].get();
+			result.put(entry.getKey(), total == 0 ? 0 : (double)hits / total);
+		}
+		return result;
+	}
+}
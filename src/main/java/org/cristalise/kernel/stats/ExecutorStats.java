@@ -0,0 +1,78 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.process.KernelExecutors.ManagedExecutor;
+
+public class ExecutorStats implements ExecutorStatsMXBean {
+
+	@Override
+	public Map<String, String> getPools() {
+		TreeMap<String, String> result = new TreeMap<String, String>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().toString());
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getPoolSizes() {
+		TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().getPoolSize());
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getActiveThreads() {
+		TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().getActiveCount());
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getQueueDepths() {
+		TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().getQueue().size());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getCompletedTasks() {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().getCompletedTaskCount());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getRejectedTasks() {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, ManagedExecutor> entry : KernelExecutors.getExecutors().entrySet())
+			result.put(entry.getKey(), entry.getValue().getRejectedCount());
+		return result;
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.Map;
+
+/**
+ * Kernel thread pool statistics, published as org.cristalise.kernel:type=Executors
+ */
+public interface ExecutorStatsMXBean {
+
+	/** @return the configuration of each pool created so far */
+	public Map<String, String> getPools();
+
+	/** @return the threads each pool is running, busy or idle */
+	public Map<String, Integer> getPoolSizes();
+
+	/** @return the threads of each pool running a task */
+	public Map<String, Integer> getActiveThreads();
+
+	/** @return the tasks waiting for a thread in each pool */
+	public Map<String, Integer> getQueueDepths();
+
+	public Map<String, Long> getCompletedTasks();
+
+	/** @return the tasks refused by each pool because its threads and queue were full */
+	public Map<String, Long> getRejectedTasks();
+}
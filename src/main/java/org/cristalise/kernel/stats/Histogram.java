@@ -0,0 +1,106 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two buckets in microseconds.
+ * <p>
+ * Recording a sample is three atomic updates and a max check, with no
+ * allocation, so it is cheap enough for the hot paths of storage and
+ * transactions. Percentiles are reported as the upper bound of the bucket
+ * they fall in, so they are accurate to within a factor of two, which is
+ * enough to tell a cache hit from a disk read from a network stall.
+ */
+public class Histogram {
+
+	static final int BUCKETS = 40; // 2^39us is over 6 days
+
+	final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong totalMicros = new AtomicLong();
+	final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records a sample
+	 * @param nanos elapsed time in nanoseconds, as measured with System.nanoTime()
+	 */
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+		buckets.incrementAndGet(bucketOf(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros));
+	}
+
+	/** Bucket n holds samples below 2^n microseconds */
+	static int bucketOf(long micros) {
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKETS-1);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** @return the mean sample in microseconds */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double)totalMicros.get() / n;
+	}
+
+	/** @return the largest sample in microseconds */
+	public long getMax() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the upper bound in microseconds of the bucket containing that percentile
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long rank = (long)Math.ceil(fraction * n), seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) return Math.min(1L << i, getMax());
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count="+getCount()+" mean="+String.format("%.1f", getMean())+"us p50="+getPercentile(0.5)+
+				"us p99="+getPercentile(0.99)+"us max="+getMax()+"us";
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.cristalise.kernel.utils.Logger;
+
+/**
+ * Holds the kernel statistics, and registers them as platform MBeans.
+ * Statistics are always collected; registration is done by the Gateway when
+ * a server starts, unless 'JMX.enabled' is false.
+ */
+public class KernelStats {
+
+	public static final String DOMAIN = "org.cristalise.kernel";
+
+	public static final StorageStats storage = new StorageStats();
+	public static final TransactionStats transactions = new TransactionStats();
+	public static final ProxyStats proxy = new ProxyStats();
+	public static final CacheStats caches = new CacheStats();
+	public static final ExecutorStats executors = new ExecutorStats();
+
+	static final Object[][] beans = {
+		{ "Storage", storage },
+		{ "Transactions", transactions },
+		{ "Proxy", proxy },
+		{ "DescriptionCaches", caches },
+		{ "Executors", executors } };
+
+	public static ObjectName getObjectName(String type) throws Exception {
+		return new ObjectName(DOMAIN+":type="+type);
+	}
+
+	public static synchronized void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Object[] bean : beans) {
+			try {
+				ObjectName name = getObjectName((String)bean[0]);
+				if (!server.isRegistered(name)) server.registerMBean(bean[1], name);
+			} catch (Exception ex) {
+				Logger.error("KernelStats.register() - could not register "+bean[0]+" MBean: "+ex.getMessage());
+			}
+		}
+	}
+
+	public static synchronized void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Object[] bean : beans) {
+			try {
+				ObjectName name = getObjectName((String)bean[0]);
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+			} catch (Exception ex) {
+				Logger.error("KernelStats.unregister() - could not unregister "+bean[0]+" MBean: "+ex.getMessage());
+			}
+		}
+	}
+}
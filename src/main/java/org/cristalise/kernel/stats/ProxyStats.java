@@ -0,0 +1,165 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cristalise.kernel.entity.proxy.ProxyManager;
+import org.cristalise.kernel.entity.proxy.ProxyServer;
+import org.cristalise.kernel.process.Gateway;
+
+public class ProxyStats implements ProxyStatsMXBean {
+
+	final AtomicLong queued = new AtomicLong();
+	final AtomicLong envelopes = new AtomicLong();
+	final AtomicLong batchedEvents = new AtomicLong();
+	final AtomicLong batchedMessages = new AtomicLong();
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong overflows = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong coalesced = new AtomicLong();
+	final AtomicLong disconnected = new AtomicLong();
+	final Histogram dispatchLag = new Histogram();
+
+	public void recordQueued(int messages) {
+		envelopes.incrementAndGet();
+		queued.addAndGet(messages);
+	}
+
+	public void recordBatch(int events, int messages) {
+		batchedEvents.addAndGet(events);
+		batchedMessages.addAndGet(messages);
+	}
+
+	public void recordSent(int clients) {
+		sent.addAndGet(clients);
+	}
+
+	public void recordOverflow() {
+		overflows.incrementAndGet();
+	}
+
+	public void recordDropped(int messages) {
+		dropped.addAndGet(messages);
+	}
+
+	public void recordCoalesced(int messages) {
+		coalesced.addAndGet(messages);
+	}
+
+	public void recordDispatch(long lagNanos) {
+		dispatchLag.record(lagNanos);
+	}
+
+	public void recordSlowClientDisconnected() {
+		disconnected.incrementAndGet();
+	}
+
+	@Override
+	public int getConnectedClients() {
+		ProxyServer server = Gateway.getProxyServer();
+		return server == null ? 0 : server.getClientCount();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		ProxyServer server = Gateway.getProxyServer();
+		return server == null ? 0 : server.getQueueDepth();
+	}
+
+	@Override
+	public long getMessagesQueued() {
+		return queued.get();
+	}
+
+	@Override
+	public long getEnvelopesQueued() {
+		return envelopes.get();
+	}
+
+	@Override
+	public long getBatchedEvents() {
+		return batchedEvents.get();
+	}
+
+	@Override
+	public long getBatchedMessages() {
+		return batchedMessages.get();
+	}
+
+	@Override
+	public long getMessagesSent() {
+		return sent.get();
+	}
+
+	@Override
+	public int getClientQueueDepth() {
+		ProxyServer server = Gateway.getProxyServer();
+		return server == null ? 0 : server.getClientQueueDepth();
+	}
+
+	@Override
+	public int getMaxClientQueueDepth() {
+		ProxyServer server = Gateway.getProxyServer();
+		return server == null ? 0 : server.getMaxClientQueueDepth();
+	}
+
+	@Override
+	public long getQueueOverflows() {
+		return overflows.get();
+	}
+
+	@Override
+	public long getMessagesDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public long getMessagesCoalesced() {
+		return coalesced.get();
+	}
+
+	@Override
+	public long getSlowClientsDisconnected() {
+		return disconnected.get();
+	}
+
+	@Override
+	public long getEventsDispatched() {
+		return dispatchLag.getCount();
+	}
+
+	@Override
+	public String getDispatchLag() {
+		return dispatchLag.toString();
+	}
+
+	@Override
+	public long getDispatchLagP99Micros() {
+		return dispatchLag.getPercentile(0.99);
+	}
+
+	@Override
+	public int getDispatchQueueDepth() {
+		ProxyManager manager = Gateway.getProxyManager();
+		return manager == null ? 0 : manager.getDispatchQueueDepth();
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+/**
+ * Proxy server statistics, published as org.cristalise.kernel:type=Proxy
+ */
+public interface ProxyStatsMXBean {
+
+	public int getConnectedClients();
+
+	/** @return the number of proxy messages waiting to be sent to clients */
+	public int getQueueDepth();
+
+	public long getMessagesQueued();
+
+	/** @return the number of queue entries, each holding one message or the batch of one commit */
+	public long getEnvelopesQueued();
+
+	/** @return the storage changes of committed transactions, before de-duplication */
+	public long getBatchedEvents();
+
+	/** @return the messages the committed changes were reduced to */
+	public long getBatchedMessages();
+
+	public long getMessagesSent();
+
+	/** @return the number of messages waiting in the per-client outbound queues */
+	public int getClientQueueDepth();
+
+	/** @return the depth of the fullest per-client outbound queue */
+	public int getMaxClientQueueDepth();
+
+	/** @return how often a client's outbound queue reached its limit */
+	public long getQueueOverflows();
+
+	/** @return messages discarded from full client queues, to be replaced by a resync */
+	public long getMessagesDropped();
+
+	/** @return messages merged into another message for the same Item cluster or path */
+	public long getMessagesCoalesced();
+
+	/** @return clients disconnected by the DISCONNECT overflow policy */
+	public long getSlowClientsDisconnected();
+
+	/** @return the number of events received from proxy servers and dispatched to local proxies */
+	public long getEventsDispatched();
+
+	/** @return a summary of the time events waited before being dispatched */
+	public String getDispatchLag();
+
+	public long getDispatchLagP99Micros();
+
+	/** @return received events waiting for or being dispatched */
+	public int getDispatchQueueDepth();
+}
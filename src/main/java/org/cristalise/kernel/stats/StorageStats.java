@@ -0,0 +1,99 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StorageStats implements StorageStatsMXBean {
+
+	final ConcurrentHashMap<String, Histogram> operations = new ConcurrentHashMap<String, Histogram>();
+	final AtomicLong cacheHits = new AtomicLong();
+	final AtomicLong cacheMisses = new AtomicLong();
+
+	/**
+	 * Records the time taken by one storage operation
+	 * @param storeId the id of the ClusterStorage
+	 * @param clusterType the cluster type of the path
+	 * @param operation get, put or remove
+	 * @param nanos elapsed time
+	 */
+	public void record(String storeId, String clusterType, String operation, long nanos) {
+		String key = storeId+"/"+clusterType+"/"+operation;
+		Histogram histogram = operations.get(key);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = operations.putIfAbsent(key, histogram);
+			if (existing != null) histogram = existing;
+		}
+		histogram.record(nanos);
+	}
+
+	public void recordCacheHit(boolean hit) {
+		if (hit) cacheHits.incrementAndGet();
+		else cacheMisses.incrementAndGet();
+	}
+
+	public Histogram getHistogram(String storeId, String clusterType, String operation) {
+		return operations.get(storeId+"/"+clusterType+"/"+operation);
+	}
+
+	@Override
+	public Map<String, String> getOperations() {
+		TreeMap<String, String> result = new TreeMap<String, String>();
+		for (Map.Entry<String, Histogram> entry : operations.entrySet())
+			result.put(entry.getKey(), entry.getValue().toString());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getOperationCounts() {
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Histogram> entry : operations.entrySet())
+			result.put(entry.getKey(), entry.getValue().getCount());
+		return result;
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.get(), total = hits + cacheMisses.get();
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+	@Override
+	public void reset() {
+		operations.clear();
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+}
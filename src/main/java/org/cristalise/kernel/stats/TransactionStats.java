@@ -0,0 +1,89 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cristalise.kernel.persistency.TransactionManager;
+import org.cristalise.kernel.process.Gateway;
+
+public class TransactionStats implements TransactionStatsMXBean {
+
+	final Histogram commitTime = new Histogram();
+	final AtomicLong aborts = new AtomicLong();
+	final AtomicLong lockConflicts = new AtomicLong();
+
+	public void recordCommit(long nanos) {
+		commitTime.record(nanos);
+	}
+
+	public void recordAbort() {
+		aborts.incrementAndGet();
+	}
+
+	public void recordLockConflict() {
+		lockConflicts.incrementAndGet();
+	}
+
+	@Override
+	public long getCommits() {
+		return commitTime.getCount();
+	}
+
+	@Override
+	public String getCommitTime() {
+		return commitTime.toString();
+	}
+
+	@Override
+	public long getCommitP99Micros() {
+		return commitTime.getPercentile(0.99);
+	}
+
+	@Override
+	public long getAborts() {
+		return aborts.get();
+	}
+
+	@Override
+	public long getLockConflicts() {
+		return lockConflicts.get();
+	}
+
+	@Override
+	public int getOpenTransactions() {
+		TransactionManager storage = Gateway.getStorage();
+		return storage == null ? 0 : storage.getOpenTransactionCount();
+	}
+
+	@Override
+	public int getLockedItems() {
+		TransactionManager storage = Gateway.getStorage();
+		return storage == null ? 0 : storage.getLockedItemCount();
+	}
+
+	@Override
+	public void reset() {
+		commitTime.reset();
+		aborts.set(0);
+		lockConflicts.set(0);
+	}
+}
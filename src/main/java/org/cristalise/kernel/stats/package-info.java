@@ -0,0 +1,37 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+/**
+ * Live statistics of the kernel, published as platform MBeans under the
+ * 'org.cristalise.kernel' domain so they can be watched with JConsole or any
+ * JMX client.
+ *
+ * <p>The ClusterStorageManager records the latency of every get, put and
+ * remove per storage and cluster type, along with its memory cache hit rate.
+ * The TransactionManager records commit times, aborts and lock conflicts, and
+ * the description caches record their hits and misses. Proxy statistics show
+ * the connected clients and the depth of the outgoing message queue, and
+ * executor statistics show the size, queue and rejections of each
+ * {@link org.cristalise.kernel.process.KernelExecutors} pool.
+ * Latencies are kept in {@link Histogram}s, which cost a few atomic
+ * increments per sample so they can stay on in production.
+ * {@link KernelStats} holds the statistics and registers them.
+ */
+package org.cristalise.kernel.stats;
@@ -25,11 +25,8 @@ package org.cristalise.kernel.utils;
 
 import org.cristalise.kernel.common.InvalidDataException;
 import org.cristalise.kernel.common.ObjectNotFoundException;
-import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.proxy.ItemProxy;
 import org.cristalise.kernel.lifecycle.ActivityDef;
-import org.cristalise.kernel.persistency.ClusterStorage;
-import org.cristalise.kernel.persistency.outcome.Viewpoint;
 import org.cristalise.kernel.process.Gateway;
 
 
@@ -40,21 +37,17 @@ public class ActDefCache extends DescriptionObjectCache<ActivityDef> {
 	public String getDefRoot() {
 		return "/desc/ActivityDesc";
 	}
+
+	@Override
+	public String getSchemaName(ItemProxy proxy) throws ObjectNotFoundException {
+		return proxy.getProperty("Complexity") + "ActivityDef";
+	}
 	
 	@Override
-	public ActivityDef loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException, InvalidDataException {
+	public ActivityDef buildObject(String name, int version, String data) throws InvalidDataException {
 		ActivityDef thisActDef;
-        String actType = proxy.getProperty("Complexity");
-        Viewpoint actView = (Viewpoint)proxy.getObject(ClusterStorage.VIEWPOINT + "/" + actType + "ActivityDef/" + version);
-        String marshalledAct;
-		try {
-			marshalledAct = actView.getOutcome().getData();
-		} catch (PersistencyException ex) {
-			Logger.error(ex);
-			throw new ObjectNotFoundException("Problem loading "+name+" v"+version+": "+ex.getMessage());
-		}
 		try {
-			thisActDef = (ActivityDef)Gateway.getMarshaller().unmarshall(marshalledAct);
+			thisActDef = (ActivityDef)Gateway.getMarshaller().unmarshall(data);
 			thisActDef.getProperties().put("Version", version);
 		} catch (Exception ex) {
 			Logger.error(ex);
@@ -65,4 +58,4 @@ public class ActDefCache extends DescriptionObjectCache<ActivityDef> {
         return thisActDef;
 	}
 
-}
\ No newline at end of file
+}
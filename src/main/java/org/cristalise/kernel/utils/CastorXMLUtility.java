@@ -26,13 +26,20 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.entity.agent.JobMarshaller;
+import org.cristalise.kernel.events.EventMarshaller;
 import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.ViewpointMarshaller;
 import org.cristalise.kernel.process.resource.ResourceLoader;
+import org.cristalise.kernel.property.PropertyMarshaller;
 import org.exolab.castor.mapping.Mapping;
 import org.exolab.castor.mapping.MappingException;
 import org.exolab.castor.xml.MarshalException;
@@ -53,7 +60,11 @@ public class CastorXMLUtility
 {
 	
 	public static final String  CASTOR_XML_SERIALIZER_FACTORY = "org.exolab.castor.xml.serializer.factory";
+	public static final String  USE_STAX_MARSHALLERS = "XMLMarshaller.useStax";
     private XMLContext mappingContext;
+    // hand-written marshallers for the most heavily used mapped classes, keyed by class and root element
+    private HashMap<Class<?>, StaxMarshaller<?>> staxWriters = new HashMap<Class<?>, StaxMarshaller<?>>();
+    private HashMap<String, StaxMarshaller<?>> staxReaders = new HashMap<String, StaxMarshaller<?>>();
     
 	/**
 	 * Looks for a file called 'index.xml' at the given URL, and loads every
@@ -145,6 +156,32 @@ public class CastorXMLUtility
 		}
         
         Logger.msg(1, String.format("Loaded [%d] maps from [%s]", loadedMapURLs.size(), mapURL));
+
+        if (aAppProperties == null || !"false".equals(aAppProperties.getProperty(USE_STAX_MARSHALLERS))) {
+        	addStaxMarshaller(new PropertyMarshaller());
+        	addStaxMarshaller(new PropertyMarshaller.ListMarshaller());
+        	addStaxMarshaller(new EventMarshaller());
+        	addStaxMarshaller(new ViewpointMarshaller());
+        	addStaxMarshaller(new JobMarshaller());
+        	addStaxMarshaller(new JobMarshaller.ListMarshaller());
+        }
+    }
+
+   /**************************************************************************
+    * Registers a StaxMarshaller to be used in place of the Castor mapping for
+    * its class. Its output must be identical to Castor's.
+    **************************************************************************/
+    public void addStaxMarshaller(StaxMarshaller<?> marshaller) {
+    	Logger.msg(5, "CastorXMLUtility.addStaxMarshaller() - "+marshaller.getMappedClass().getName());
+    	staxWriters.put(marshaller.getMappedClass(), marshaller);
+    	staxReaders.put(marshaller.getRootElement(), marshaller);
+    }
+
+   /**************************************************************************
+    * The classes currently marshalled by a registered StaxMarshaller
+    **************************************************************************/
+    public Set<Class<?>> getStaxMarshalledClasses() {
+    	return Collections.unmodifiableSet(staxWriters.keySet());
     }
 
    /**************************************************************************
@@ -160,6 +197,16 @@ public class CastorXMLUtility
         if (obj == null) return "<NULL/>";
         if (obj instanceof Outcome)
             return ((Outcome)obj).getData();
+
+        StaxMarshaller<?> stax = staxWriters.get(obj.getClass());
+        if (stax != null) {
+        	try {
+        		return stax.marshall(obj);
+        	} catch (InvalidDataException ex) {
+        		Logger.msg(6, "CastorXMLUtility.marshall() - falling back to Castor: "+ex.getMessage());
+        	}
+        }
+
         StringWriter sWriter    = new StringWriter();
         Marshaller   marshaller = mappingContext.createMarshaller();
         
@@ -181,6 +228,19 @@ public class CastorXMLUtility
                ValidationException
     {
         if (data.equals("<NULL/>")) return null;
+
+        if (!staxReaders.isEmpty()) {
+        	String root = StaxMarshaller.getRootElementName(data);
+        	StaxMarshaller<?> stax = root == null ? null : staxReaders.get(root);
+        	if (stax != null) {
+        		try {
+        			return stax.unmarshall(data);
+        		} catch (InvalidDataException ex) {
+        			Logger.msg(6, "CastorXMLUtility.unmarshall() - falling back to Castor: "+ex.getMessage());
+        		}
+        	}
+        }
+
         StringReader sReader      = new StringReader( data );
         Unmarshaller unmarshaller = mappingContext.createUnmarshaller();
         return unmarshaller.unmarshal( sReader );
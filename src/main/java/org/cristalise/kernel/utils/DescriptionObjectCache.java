@@ -23,75 +23,238 @@
  */
 package org.cristalise.kernel.utils;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 import org.cristalise.kernel.common.InvalidDataException;
 import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.proxy.ItemProxy;
 import org.cristalise.kernel.entity.proxy.MemberSubscription;
 import org.cristalise.kernel.entity.proxy.ProxyObserver;
 import org.cristalise.kernel.persistency.ClusterStorage;
 import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.stats.KernelStats;
 
 
+/**
+ * Caches description objects by name and version, dropping them when their
+ * description Item changes.
+ * <p>
+ * Reads of cached objects do not lock. A miss starts a load that other
+ * threads asking for the same object wait for and share, while loads of
+ * other objects carry on in parallel.
+ */
 public abstract class DescriptionObjectCache<D extends DescriptionObject> {
 
-	SoftCache<String, CacheEntry<D>> cache = new SoftCache<String, CacheEntry<D>>();
-
-	public D get(String name, int version) throws ObjectNotFoundException, InvalidDataException {
-		D thisDef;
-		synchronized(cache) {
-			CacheEntry<D> thisDefEntry = cache.get(name+"_"+version);
-			if (thisDefEntry == null) {
-				Logger.msg(6, name+" v"+version+" not found in cache. Retrieving.");
-		        ItemProxy defItem = LocalObjectLoader.loadLocalObjectDef(getDefRoot(), name);
-		        thisDef = loadObject(name, version, defItem);
-		        cache.put(name+"_"+version, new CacheEntry<D>(thisDef, defItem, this));
+	SoftCache<CacheKey, CacheEntry<D>> cache = new SoftCache<CacheKey, CacheEntry<D>>();
+	// loads in progress, so that concurrent misses for the same object share one load
+	ConcurrentHashMap<CacheKey, FutureTask<CacheEntry<D>>> loading = new ConcurrentHashMap<CacheKey, FutureTask<CacheEntry<D>>>();
+
+	public D get(final String name, final int version) throws ObjectNotFoundException, InvalidDataException {
+		final CacheKey key = new CacheKey(name, version);
+		CacheEntry<D> thisDefEntry = cache.get(key);
+		KernelStats.caches.record(getDefRoot(), thisDefEntry != null);
+		if (thisDefEntry != null) {
+			Logger.msg(6, key+" found in cache.");
+			return thisDefEntry.def;
+		}
+		return load(key, new Callable<CacheEntry<D>>() {
+			@Override
+			public CacheEntry<D> call() throws Exception {
+				Logger.msg(6, key+" not found in cache. Retrieving.");
+				ItemProxy defItem = getDefItem(name);
+				return new CacheEntry<D>(key, loadObject(name, version, defItem), defItem, DescriptionObjectCache.this);
 			}
-			else {
-				Logger.msg(6, name+" v"+version+" found in cache.");
-				thisDef = thisDefEntry.def;
+		});
+	}
+
+	/**
+	 * Caches a description object built from data that has already been
+	 * retrieved, such as by the DescriptionPreloader, unless it is already
+	 * cached or being loaded.
+	 */
+	public D preload(final String name, final int version, final String data, final ItemProxy defItem)
+			throws ObjectNotFoundException, InvalidDataException {
+		final CacheKey key = new CacheKey(name, version);
+		CacheEntry<D> thisDefEntry = cache.get(key);
+		if (thisDefEntry != null) return thisDefEntry.def;
+		return load(key, new Callable<CacheEntry<D>>() {
+			@Override
+			public CacheEntry<D> call() throws Exception {
+				return new CacheEntry<D>(key, buildObject(name, version, data), defItem, DescriptionObjectCache.this);
 			}
+		});
+	}
+
+	/**
+	 * Runs the given load unless one is already running for the key, in
+	 * which case its result is awaited instead.
+	 */
+	private D load(CacheKey key, Callable<CacheEntry<D>> loader) throws ObjectNotFoundException, InvalidDataException {
+		CacheEntry<D> thisDefEntry = null;
+		FutureTask<CacheEntry<D>> load = new FutureTask<CacheEntry<D>>(loader);
+		FutureTask<CacheEntry<D>> running = loading.putIfAbsent(key, load);
+		if (running == null) { // we're loading it
+			running = load;
+			load.run();
 		}
-        return thisDef;
+		else
+			Logger.msg(6, key+" is already being loaded. Waiting.");
+
+		try {
+			thisDefEntry = running.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ObjectNotFoundException("Interrupted while loading "+key);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof ObjectNotFoundException) throw (ObjectNotFoundException)cause;
+			if (cause instanceof InvalidDataException) throw (InvalidDataException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new InvalidDataException("Could not load "+key+": "+cause.getMessage());
+		} finally {
+			if (running == load && thisDefEntry == null) loading.remove(key, load);
+		}
+
+		if (running == load) {
+			cache.put(key, thisDefEntry);
+			// if the object was invalidated while loading, don't keep what we loaded
+			if (!loading.remove(key, load) || thisDefEntry.isStale()) {
+				if (cache.get(key) == thisDefEntry) cache.remove(key);
+				thisDefEntry.destroy();
+			}
+		}
+		return thisDefEntry.def;
 	}
-	
+
+	/**
+	 * Finds the description Item of the named object.
+	 */
+	protected ItemProxy getDefItem(String name) throws ObjectNotFoundException {
+		return LocalObjectLoader.loadLocalObjectDef(getDefRoot(), name);
+	}
+
 	public abstract String getDefRoot();
 	
-	public abstract D loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException, InvalidDataException;
+	/**
+	 * @return the schema of the description's outcomes, whose viewpoints are named after their version
+	 */
+	public abstract String getSchemaName(ItemProxy proxy) throws ObjectNotFoundException;
 
-	public void removeObject(String id) {
-		synchronized(cache) {
-		if (cache.keySet().contains(id)) {
-			Logger.msg(7, "ActDefCache: Removing activity def "+id+" from cache");
-			cache.remove(id);
-			}
+	/**
+	 * Creates the description object from the XML of its outcome
+	 */
+	public abstract D buildObject(String name, int version, String data) throws InvalidDataException;
+
+	public D loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException, InvalidDataException {
+		Viewpoint view = (Viewpoint)proxy.getObject(ClusterStorage.VIEWPOINT + "/" + getSchemaName(proxy) + "/" + version);
+		String data;
+		try {
+			data = view.getOutcome().getData();
+		} catch (PersistencyException ex) {
+			Logger.error(ex);
+			throw new ObjectNotFoundException("Problem loading "+name+" v"+version+": "+ex.getMessage());
+		}
+		return buildObject(name, version, data);
+	}
+
+	/**
+	 * Drops the given version of a description object, and stops listening for changes to it.
+	 */
+	public void removeObject(String name, int version) {
+		CacheKey key = new CacheKey(name, version);
+		loading.remove(key);
+		CacheEntry<D> oldEntry = cache.remove(key);
+		if (oldEntry != null) {
+			Logger.msg(7, "DescriptionObjectCache: Removing "+key+" from cache");
+			oldEntry.destroy();
 		}
 	}
 
-	public class CacheEntry<E extends DescriptionObject> implements ProxyObserver<Viewpoint> {
-		public String id;
-		public ItemProxy proxy;
-		public E def;
-		public DescriptionObjectCache<E> parent;
-		public CacheEntry(E def, ItemProxy proxy, DescriptionObjectCache<E> parent) {
-			this.id = def.getName()+"_"+def.getVersion();
+	/**
+	 * Empties the cache, unsubscribing all entries from their description Items.
+	 */
+	public void clear() {
+		for (CacheKey key : cache.keySet()) {
+			CacheEntry<D> oldEntry = cache.remove(key);
+			if (oldEntry != null) oldEntry.destroy();
+		}
+	}
+
+	/**
+	 * Name and version of a cached description object
+	 */
+	public static final class CacheKey {
+		public final String name;
+		public final int version;
+
+		public CacheKey(String name, int version) {
+			this.name = name;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof CacheKey)) return false;
+			CacheKey otherKey = (CacheKey)other;
+			return version == otherKey.version && name.equals(otherKey.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31 + version;
+		}
+
+		@Override
+		public String toString() {
+			return name+" v"+version;
+		}
+	}
+
+	/**
+	 * A cached object, which listens to its description Item so it can be
+	 * dropped when a new viewpoint is written. The subscription is removed
+	 * by {@link #destroy()} when the entry leaves the cache.
+	 */
+	public static class CacheEntry<E extends DescriptionObject> implements ProxyObserver<Viewpoint> {
+		public final CacheKey id;
+		public final ItemProxy proxy;
+		public final E def;
+		public final DescriptionObjectCache<E> parent;
+		private volatile boolean stale = false;
+
+		public CacheEntry(CacheKey id, E def, ItemProxy proxy, DescriptionObjectCache<E> parent) {
+			this.id = id;
 			this.def = def;
 			this.parent = parent;
 			this.proxy = proxy;
-			proxy.subscribe(new MemberSubscription<Viewpoint>(this, ClusterStorage.VIEWPOINT, false));
+			if (proxy != null)
+				proxy.subscribe(new MemberSubscription<Viewpoint>(this, ClusterStorage.VIEWPOINT, false));
 		}
-		@Override
-		public void finalize() {
-			parent.removeObject(id);
-			proxy.unsubscribe(this);
+
+		/** Whether the description changed after this entry was loaded */
+		boolean isStale() {
+			return stale;
 		}
+
+		public void destroy() {
+			if (proxy != null) proxy.unsubscribe(this);
+		}
+
 		@Override
 		public void add(Viewpoint contents) {
-			parent.removeObject(id);
+			stale = true;
+			parent.removeObject(id.name, id.version);
 		}
 
 		@Override
 		public void remove(String oldId) {
-			parent.removeObject(oldId);
+			stale = true;
+			parent.removeObject(id.name, id.version);
 		}
 
 		@Override
@@ -102,4 +265,4 @@ public abstract class DescriptionObjectCache<D extends DescriptionObject> {
 		public void control(String control, String msg) {
 		}
 	}
-}
\ No newline at end of file
+}
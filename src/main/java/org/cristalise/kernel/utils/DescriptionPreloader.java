@@ -0,0 +1,158 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cristalise.kernel.entity.proxy.ItemProxy;
+import org.cristalise.kernel.lookup.DomainPath;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.property.Property;
+
+/**
+ * Loads every version of every activity definition, state machine, schema and
+ * script into the LocalObjectLoader caches at startup, so the first requests
+ * after a restart don't each pay for a load.
+ * <p>
+ * The description Items are found in the Lookup under the root of each cache,
+ * which covers both kernel and module descriptions once the modules have
+ * been imported. Items are loaded in parallel on the DescriptionPreloader pool of
+ * {@link KernelExecutors}, which has 'DescriptionPreloader.threads' threads (default 4).
+ * <p>
+ * If 'DescriptionPreloader.snapshot' names a file, the outcomes loaded are
+ * saved there as a {@link DescriptionSnapshot}. On the next start, a
+ * description whose viewpoint still points to the same event is built from the
+ * snapshot instead of having its outcome read from storage.
+ */
+public class DescriptionPreloader {
+
+	final DescriptionSnapshot oldSnapshot;
+	final DescriptionSnapshot newSnapshot = new DescriptionSnapshot();
+	final AtomicInteger loaded = new AtomicInteger(), fromSnapshot = new AtomicInteger(), failed = new AtomicInteger();
+
+	public DescriptionPreloader(DescriptionSnapshot oldSnapshot) {
+		this.oldSnapshot = oldSnapshot;
+	}
+
+	/**
+	 * Preloads all caches and updates the snapshot, as configured in the properties.
+	 * Errors are logged; the caches will load anything missed on demand.
+	 */
+	public static void run() {
+		String snapshotFile = Gateway.getProperties().getString("DescriptionPreloader.snapshot");
+		File file = snapshotFile == null || snapshotFile.length() == 0 ? null : new File(snapshotFile);
+		DescriptionPreloader preloader = new DescriptionPreloader(file == null ? new DescriptionSnapshot() : DescriptionSnapshot.read(file));
+
+		long then = System.currentTimeMillis();
+		try {
+			preloader.preload(KernelExecutors.get(KernelExecutors.DESCRIPTION_PRELOADER));
+		} catch (Exception ex) {
+			Logger.error("DescriptionPreloader.run() - preloading stopped early");
+			Logger.error(ex);
+			return;
+		}
+		Logger.msg("DescriptionPreloader.run() - loaded "+preloader.loaded+" description objects ("+preloader.fromSnapshot+
+				" from snapshot, "+preloader.failed+" failed) in "+(System.currentTimeMillis()-then)+"ms");
+
+		if (file != null) {
+			try {
+				preloader.newSnapshot.write(file);
+			} catch (IOException ex) {
+				Logger.error("DescriptionPreloader.run() - could not write snapshot "+file+": "+ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Loads all description Items on the given pool, and waits for them to finish
+	 */
+	public void preload(ExecutorService pool) throws InterruptedException, ExecutionException {
+		ArrayList<Future<?>> loads = new ArrayList<Future<?>>();
+		for (final DescriptionObjectCache<?> cache : LocalObjectLoader.getCaches()) {
+			Iterator<Path> defs = Gateway.getLookup().search(new DomainPath(cache.getDefRoot()), new Property[0]);
+			while (defs.hasNext()) {
+				final Path defPath = defs.next();
+				loads.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						preloadItem(cache, defPath);
+					}
+				}));
+			}
+		}
+		for (Future<?> load : loads)
+			load.get();
+	}
+
+	/**
+	 * Loads all versions of one description Item into its cache
+	 */
+	void preloadItem(DescriptionObjectCache<?> cache, Path defPath) {
+		ItemProxy proxy;
+		String name, schemaName;
+		String[] views;
+		try {
+			ItemPath itemPath = defPath.getItemPath();
+			proxy = Gateway.getProxyManager().getProxy(itemPath);
+			name = proxy.getName();
+			schemaName = cache.getSchemaName(proxy);
+			views = proxy.getContents(ClusterStorage.VIEWPOINT+"/"+schemaName);
+		} catch (Exception ex) { // a context rather than an item, or not a complete description
+			Logger.msg(5, "DescriptionPreloader.preloadItem() - skipping "+defPath+": "+ex.getMessage());
+			return;
+		}
+
+		for (String view : views) {
+			int version;
+			try {
+				version = Integer.parseInt(view);
+			} catch (NumberFormatException ex) {
+				continue; // 'last' etc.
+			}
+			try {
+				Viewpoint viewpoint = proxy.getViewpoint(schemaName, view);
+				String data = oldSnapshot.get(cache.getDefRoot(), name, version, viewpoint.getEventId());
+				if (data == null)
+					data = viewpoint.getOutcome().getData();
+				else
+					fromSnapshot.incrementAndGet();
+				cache.preload(name, version, data, proxy);
+				newSnapshot.put(cache.getDefRoot(), name, version, viewpoint.getEventId(), data);
+				loaded.incrementAndGet();
+			} catch (Exception ex) {
+				failed.incrementAndGet();
+				Logger.error("DescriptionPreloader.preloadItem() - could not load "+name+" v"+version+": "+ex.getMessage());
+			}
+		}
+	}
+}
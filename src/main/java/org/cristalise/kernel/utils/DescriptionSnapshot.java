@@ -0,0 +1,155 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local copy of the outcomes of description objects, used to warm the
+ * description caches at startup without reading every outcome from storage.
+ * <p>
+ * Each entry is stamped with the event ID of the viewpoint it was read from.
+ * At boot the current viewpoint is read, and the snapshot data is only used
+ * if the stamp still matches. The file is gzipped, and begins with a format
+ * version so that older files are ignored rather than misread.
+ */
+public class DescriptionSnapshot {
+
+	static final String MAGIC = "CRISTAL-iSE description snapshot";
+	static final int FORMAT_VERSION = 1;
+
+	HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	static class Entry {
+		final String root, name;
+		final int version, eventId;
+		final String data;
+
+		Entry(String root, String name, int version, int eventId, String data) {
+			this.root = root;
+			this.name = name;
+			this.version = version;
+			this.eventId = eventId;
+			this.data = data;
+		}
+	}
+
+	private static String key(String root, String name, int version) {
+		return root+"/"+name+"/"+version;
+	}
+
+	public synchronized void put(String root, String name, int version, int eventId, String data) {
+		entries.put(key(root, name, version), new Entry(root, name, version, eventId, data));
+	}
+
+	/**
+	 * @return the stored outcome data of the given description version, or
+	 * null if it is not in the snapshot or was taken from a different event
+	 */
+	public synchronized String get(String root, String name, int version, int eventId) {
+		Entry entry = entries.get(key(root, name, version));
+		if (entry == null || entry.eventId != eventId) return null;
+		return entry.data;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file which then replaces the given one,
+	 * so a crash while writing never leaves a truncated snapshot.
+	 */
+	public synchronized void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				out.writeUTF(entry.root);
+				out.writeUTF(entry.name);
+				out.writeInt(entry.version);
+				out.writeInt(entry.eventId);
+				writeLongString(out, entry.data);
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not replace "+file);
+		if (!tmpFile.renameTo(file))
+			throw new IOException("Could not rename "+tmpFile+" to "+file);
+	}
+
+	/**
+	 * Reads a snapshot file. A missing, unreadable or outdated file gives an
+	 * empty snapshot, so the caches are simply loaded from storage.
+	 */
+	public static DescriptionSnapshot read(File file) {
+		DescriptionSnapshot snapshot = new DescriptionSnapshot();
+		if (!file.exists()) return snapshot;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != FORMAT_VERSION) {
+				Logger.warning("DescriptionSnapshot.read() - "+file+" is not a current description snapshot. Ignoring.");
+				return snapshot;
+			}
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				String root = in.readUTF(), name = in.readUTF();
+				int version = in.readInt(), eventId = in.readInt();
+				snapshot.put(root, name, version, eventId, readLongString(in));
+			}
+		} catch (IOException ex) {
+			Logger.error("DescriptionSnapshot.read() - could not read "+file+": "+ex.getMessage());
+			return new DescriptionSnapshot();
+		} finally {
+			if (in != null) try { in.close(); } catch (IOException ex) { }
+		}
+		return snapshot;
+	}
+
+	// writeUTF is limited to 64k, which outcomes can exceed
+	private static void writeLongString(DataOutputStream out, String data) throws IOException {
+		byte[] bytes = data.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readLongString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
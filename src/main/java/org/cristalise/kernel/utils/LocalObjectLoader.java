@@ -19,26 +19,32 @@
  * http://www.fsf.org/licensing/licenses/lgpl.html
  */
 package org.cristalise.kernel.utils;
-
+
 import java.util.Iterator;
 
 import org.cristalise.kernel.common.InvalidDataException;
 import org.cristalise.kernel.common.ObjectNotFoundException;
-import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.proxy.ItemProxy;
 import org.cristalise.kernel.lifecycle.ActivityDef;
 import org.cristalise.kernel.lifecycle.instance.stateMachine.StateMachine;
 import org.cristalise.kernel.lookup.DomainPath;
 import org.cristalise.kernel.lookup.Path;
-import org.cristalise.kernel.persistency.ClusterStorage;
 import org.cristalise.kernel.persistency.outcome.Schema;
-import org.cristalise.kernel.persistency.outcome.Viewpoint;
 import org.cristalise.kernel.process.Gateway;
 
 
 public class LocalObjectLoader {
 	private static ActDefCache actCache = new ActDefCache();
 	private static StateMachineCache smCache = new StateMachineCache();
+	private static SchemaCache schemaCache = new SchemaCache();
+	private static ScriptCache scriptCache = new ScriptCache();
+
+	/**
+	 * @return all description caches, for the DescriptionPreloader
+	 */
+	static DescriptionObjectCache<?>[] getCaches() {
+		return new DescriptionObjectCache<?>[] { actCache, smCache, schemaCache, scriptCache };
+	}
 
 	static public ItemProxy loadLocalObjectDef(String root, String name)
 		throws ObjectNotFoundException
@@ -53,16 +59,14 @@ public class LocalObjectLoader {
 	    else {
 	    	throw new ObjectNotFoundException("No match for "+name+" in "+root);
 	    }
-
+
 	}
 
 	static public String getScript(String scriptName, int scriptVersion) throws ObjectNotFoundException {
 	    Logger.msg(5, "Loading script "+scriptName+" v"+scriptVersion);
 	    try {
-	    	ItemProxy script = loadLocalObjectDef("/desc/Script/", scriptName);
-   	        Viewpoint scriptView = (Viewpoint)script.getObject(ClusterStorage.VIEWPOINT + "/Script/" + scriptVersion);
-	    	return scriptView.getOutcome().getData();
-	    } catch (PersistencyException ex) {
+	    	return scriptCache.get(scriptName, scriptVersion).xml;
+	    } catch (InvalidDataException ex) {
 	    	Logger.error(ex);
 	        throw new ObjectNotFoundException("Error loading script " + scriptName + " version " + scriptVersion);
 	    }
@@ -71,24 +75,17 @@ public class LocalObjectLoader {
 
 	static public Schema getSchema(String schemaName, int schemaVersion) throws ObjectNotFoundException {
 		Logger.msg(5, "Loading schema "+schemaName+" v"+schemaVersion);
-	    
-	    String docType = schemaName;
-	    int docVersion = schemaVersion;
-	    String schemaData;
 
 	    // don't bother if this is the Schema schema - for bootstrap esp.
 	    if (schemaName.equals("Schema") && schemaVersion == 0)
-	        return new Schema(docType, docVersion, "");
+	        return new Schema(schemaName, schemaVersion, "");
 
-        ItemProxy schema = loadLocalObjectDef("/desc/OutcomeDesc/", schemaName);
-        Viewpoint schemaView = (Viewpoint)schema.getObject(ClusterStorage.VIEWPOINT + "/Schema/" + schemaVersion);
-        try {
-        	schemaData = schemaView.getOutcome().getData();
-        } catch (PersistencyException ex) {
-        	Logger.error(ex);
-        	throw new ObjectNotFoundException("Problem loading schema "+schemaName+" v"+schemaVersion+": "+ex.getMessage());
-        }
-	    return new Schema(docType, docVersion, schemaData);
+	    try {
+	    	return schemaCache.get(schemaName, schemaVersion);
+	    } catch (InvalidDataException ex) {
+	    	Logger.error(ex);
+	    	throw new ObjectNotFoundException("Problem loading schema "+schemaName+" v"+schemaVersion+": "+ex.getMessage());
+	    }
 	}
 
 	/**
@@ -0,0 +1,164 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*******************************************************************************
+ * Thread-safe base of the SoftCache and WeakCache. Values are held through
+ * references that the garbage collector may clear, in a ConcurrentHashMap so
+ * that reads never block.
+ * <p>
+ * The most recently used values can be held strongly in a 'hard cache' of
+ * minSize slots, so they are not reaped for a while. It is a ring buffer, so
+ * recording an access is a single slot write rather than a list update.
+ * <p>
+ * Cleared references are purged from the map in batches by whichever writer
+ * gets the purge lock. Reads skip cleared entries but never wait for a purge.
+ ******************************************************************************/
+public abstract class NonStrongRefCache<K, V> extends AbstractMap<K, V> {
+
+    private final ConcurrentHashMap<K, KeyedReference<K, V>> hash = new ConcurrentHashMap<K, KeyedReference<K, V>>();
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+    private final ReentrantLock purgeLock = new ReentrantLock();
+    private final int minSize;
+    private final AtomicReferenceArray<V> hardCache;
+    private final AtomicInteger hardCachePos = new AtomicInteger();
+
+    protected NonStrongRefCache(int minSize) {
+        this.minSize = minSize;
+        hardCache = minSize > 0 ? new AtomicReferenceArray<V>(minSize) : null;
+    }
+
+    /**
+     * The reference held in the map, which must remember its key so it can
+     * be removed from the map once cleared.
+     */
+    protected interface KeyedReference<K, V> {
+        public K getKey();
+        public V get();
+    }
+
+    /** Wraps a value in the reference type of this cache, registered with the given queue */
+    protected abstract KeyedReference<K, V> makeReference(K key, V value, ReferenceQueue<V> q);
+
+    @Override
+    public V get(Object key) {
+        if (key == null) return null;
+        KeyedReference<K, V> ref = hash.get(key);
+        if (ref == null) return null;
+        V result = ref.get();
+        if (result == null)
+            hash.remove(key, ref);
+        else
+            keep(result);
+        return result;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        processQueue();
+        keep(value);
+        hash.put(key, makeReference(key, value, queue));
+        return value;
+    }
+
+    @Override
+    public V remove(Object key) {
+        processQueue();
+        if (key == null) return null;
+        KeyedReference<K, V> ref = hash.remove(key);
+        return ref == null ? null : ref.get();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public void clear() {
+        if (hardCache != null)
+            for (int i = 0; i < minSize; i++) hardCache.set(i, null);
+        hash.clear();
+        processQueue();
+    }
+
+    @Override
+    public int size() {
+        processQueue();
+        return hash.size();
+    }
+
+    /**
+     * The keys of the cache. This is a live, weakly consistent view: it can be
+     * iterated while the cache is in use, and removing from it removes the
+     * entry from the cache.
+     */
+    @Override
+    public Set<K> keySet() {
+        processQueue();
+        return hash.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        // Would have to create another Map to do this - too expensive
+        // Throwing runtime expensive is dangerous, but better than nulls
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Holds a strong reference to a recently used value, replacing the oldest one
+     */
+    private void keep(V value) {
+        if (hardCache == null) return;
+        int pos = hardCachePos.getAndIncrement() % minSize;
+        if (pos < 0) pos += minSize; // counter wrapped
+        hardCache.lazySet(pos, value);
+    }
+
+    /**
+     * Look for values that have been reaped, and remove their keys from the cache.
+     * Only one thread purges at a time; the others carry on without waiting.
+     */
+    @SuppressWarnings("unchecked")
+    private void processQueue() {
+        if (!purgeLock.tryLock()) return;
+        try {
+            Reference<? extends V> ref;
+            while ((ref = queue.poll()) != null) {
+                KeyedReference<K, V> keyed = (KeyedReference<K, V>)ref;
+                hash.remove(keyed.getKey(), keyed);
+            }
+        } finally {
+            purgeLock.unlock();
+        }
+    }
+}
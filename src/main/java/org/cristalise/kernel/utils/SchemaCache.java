@@ -0,0 +1,71 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+/**
+ *
+ */
+package org.cristalise.kernel.utils;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.entity.proxy.ItemProxy;
+import org.cristalise.kernel.persistency.outcome.OutcomeValidator;
+import org.cristalise.kernel.persistency.outcome.Schema;
+
+
+public class SchemaCache extends DescriptionObjectCache<Schema> {
+
+	
+	@Override
+	public String getDefRoot() {
+		return "/desc/OutcomeDesc";
+	}
+	
+	@Override
+	public String getSchemaName(ItemProxy proxy) {
+		return "Schema";
+	}
+	
+	@Override
+	public Schema buildObject(String name, int version, String data) {
+        return new Schema(name, version, data);
+	}
+
+	/**
+	 * Returns a copy of the cached Schema, as its fields are public and parse()
+	 * replaces its som, so a caller changing it would change it for everyone.
+	 * The schema text is shared.
+	 */
+	@Override
+	public Schema get(String name, int version) throws ObjectNotFoundException, InvalidDataException {
+		Schema cached = super.get(name, version);
+		return new Schema(cached.docType, cached.docVersion, cached.schema);
+	}
+
+	/**
+	 * Also drops the compiled grammar of the schema, so validators pick up the new version
+	 */
+	@Override
+	public void removeObject(String name, int version) {
+		super.removeObject(name, version);
+		OutcomeValidator.invalidate(name, version);
+	}
+
+}
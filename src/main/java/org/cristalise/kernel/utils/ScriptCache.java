@@ -0,0 +1,82 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+/**
+ *
+ */
+package org.cristalise.kernel.utils;
+
+import org.cristalise.kernel.entity.proxy.ItemProxy;
+
+
+public class ScriptCache extends DescriptionObjectCache<ScriptCache.ScriptData> {
+
+	
+	@Override
+	public String getDefRoot() {
+		return "/desc/Script";
+	}
+	
+	@Override
+	public String getSchemaName(ItemProxy proxy) {
+		return "Script";
+	}
+	
+	@Override
+	public ScriptData buildObject(String name, int version, String data) {
+        return new ScriptData(name, version, data);
+	}
+
+	/**
+	 * The XML of a script version. Scripts themselves hold their execution state, so
+	 * each user parses its own Script from this.
+	 */
+	public static class ScriptData implements DescriptionObject {
+		String name;
+		int version;
+		public final String xml;
+
+		public ScriptData(String name, int version, String xml) {
+			this.name = name;
+			this.version = version;
+			this.xml = xml;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int getVersion() {
+			return version;
+		}
+
+		@Override
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void setVersion(int version) {
+			this.version = version;
+		}
+	}
+}
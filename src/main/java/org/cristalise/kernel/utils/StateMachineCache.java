@@ -24,12 +24,8 @@
 package org.cristalise.kernel.utils;
 
 import org.cristalise.kernel.common.InvalidDataException;
-import org.cristalise.kernel.common.ObjectNotFoundException;
-import org.cristalise.kernel.common.PersistencyException;
 import org.cristalise.kernel.entity.proxy.ItemProxy;
 import org.cristalise.kernel.lifecycle.instance.stateMachine.StateMachine;
-import org.cristalise.kernel.persistency.ClusterStorage;
-import org.cristalise.kernel.persistency.outcome.Viewpoint;
 import org.cristalise.kernel.process.Gateway;
 
 
@@ -40,20 +36,17 @@ public class StateMachineCache extends DescriptionObjectCache<StateMachine> {
 	public String getDefRoot() {
 		return "/desc/StateMachine";
 	}
+
+	@Override
+	public String getSchemaName(ItemProxy proxy) {
+		return "StateMachine";
+	}
 	
 	@Override
-	public StateMachine loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException, InvalidDataException {
+	public StateMachine buildObject(String name, int version, String data) throws InvalidDataException {
 		StateMachine thisStateMachine;
-        Viewpoint smView = (Viewpoint)proxy.getObject(ClusterStorage.VIEWPOINT + "/StateMachine/" + version);
-        String marshalledSM;
-		try {
-			marshalledSM = smView.getOutcome().getData();
-		} catch (PersistencyException ex) {
-			Logger.error(ex);
-			throw new ObjectNotFoundException("Problem loading State Machine "+name+" v"+version+": "+ex.getMessage());
-		}
 		try {
-			thisStateMachine = (StateMachine)Gateway.getMarshaller().unmarshall(marshalledSM);
+			thisStateMachine = (StateMachine)Gateway.getMarshaller().unmarshall(data);
 			thisStateMachine.validate();
 		} catch (Exception ex) {
 			Logger.error(ex);
@@ -64,4 +57,4 @@ public class StateMachineCache extends DescriptionObjectCache<StateMachine> {
         return thisStateMachine;
 	}
 
-}
\ No newline at end of file
+}
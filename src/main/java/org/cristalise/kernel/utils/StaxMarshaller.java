@@ -0,0 +1,211 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+package org.cristalise.kernel.utils;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cristalise.kernel.common.InvalidDataException;
+
+/**************************************************************************
+ * Straight-line StAX reader and string writer for a single class that is
+ * also described in the Castor map files. CastorXMLUtility will use a
+ * registered StaxMarshaller instead of the reflective Castor mapping for
+ * its class, so the XML produced here must be identical to Castor's: same
+ * attribute order, same escaping, and null fields left out.
+ *
+ * Writers throw InvalidDataException for any content they cannot render
+ * exactly as Castor would (e.g. surrogate pairs, which Castor writes as
+ * character references), and the caller then falls back to Castor.
+ **************************************************************************/
+public abstract class StaxMarshaller<T> {
+
+	static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+	static {
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	/** The class this marshaller handles. Subclasses of it are left to Castor. */
+	public abstract Class<T> getMappedClass();
+
+	/** The root element name given in the Castor map-to */
+	public abstract String getRootElement();
+
+	/** Appends the XML form of the object, without an XML declaration */
+	public abstract void write(T obj, StringBuilder out) throws InvalidDataException;
+
+	/**
+	 * Reads an object from the reader, which is positioned on its start element.
+	 * Must leave the reader on the matching end element.
+	 */
+	public abstract T read(XMLStreamReader reader) throws XMLStreamException, InvalidDataException;
+
+	public String marshall(Object obj) throws InvalidDataException {
+		StringBuilder out = new StringBuilder(256);
+		write(getMappedClass().cast(obj), out);
+		return out.toString();
+	}
+
+	public T unmarshall(String data) throws InvalidDataException {
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(new StringReader(data));
+			reader.nextTag();
+			checkElement(reader, getRootElement());
+			return read(reader);
+		} catch (XMLStreamException ex) {
+			throw new InvalidDataException(ex.getMessage());
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (XMLStreamException e) { }
+		}
+	}
+
+	/**
+	 * Finds the name of the root element of a document without parsing it,
+	 * skipping any XML declaration, processing instructions and comments.
+	 * @return the element name, or null if none could be found
+	 */
+	public static String getRootElementName(String xml) {
+		int pos = 0;
+		int len = xml.length();
+		while (pos < len) {
+			pos = xml.indexOf('<', pos);
+			if (pos == -1 || pos+1 >= len) return null;
+			char next = xml.charAt(pos+1);
+			if (next == '?') {
+				pos = xml.indexOf("?>", pos);
+				if (pos == -1) return null;
+			}
+			else if (next == '!') {
+				pos = xml.indexOf('>', pos);
+				if (pos == -1) return null;
+			}
+			else {
+				int end = pos+1;
+				while (end < len) {
+					char c = xml.charAt(end);
+					if (c == '>' || c == '/' || Character.isWhitespace(c)) break;
+					end++;
+				}
+				return xml.substring(pos+1, end);
+			}
+		}
+		return null;
+	}
+
+	protected static void checkElement(XMLStreamReader reader, String name) throws InvalidDataException {
+		if (reader.getEventType() != XMLStreamConstants.START_ELEMENT || !name.equals(reader.getLocalName()))
+			throw new InvalidDataException("Expected element "+name);
+	}
+
+	protected static String getString(XMLStreamReader reader, String name) {
+		return reader.getAttributeValue(null, name);
+	}
+
+	protected static Integer getInteger(XMLStreamReader reader, String name) throws InvalidDataException {
+		String value = reader.getAttributeValue(null, name);
+		if (value == null) return null;
+		try {
+			return Integer.valueOf(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new InvalidDataException("Attribute "+name+" is not an integer: "+value);
+		}
+	}
+
+	protected static int getInt(XMLStreamReader reader, String name, int defaultValue) throws InvalidDataException {
+		Integer value = getInteger(reader, name);
+		return value == null ? defaultValue : value.intValue();
+	}
+
+	protected static Boolean getBoolean(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		if (value == null) return null;
+		return Boolean.valueOf(value.trim());
+	}
+
+	/**
+	 * Reads the text content of the current element, leaving the reader on the
+	 * end element. Castor's handling of surrounding whitespace depends on how
+	 * the parser splits the text into chunks, so anything other than plain text
+	 * with internal spaces is refused and left to Castor. Empty text is null.
+	 */
+	protected static String getText(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		String text = reader.getElementText();
+		if (text.length() == 0) return null;
+		if (text.charAt(0) == ' ' || text.charAt(text.length()-1) == ' ' ||
+				text.indexOf('\t') > -1 || text.indexOf('\n') > -1 || text.indexOf('\r') > -1)
+			throw new InvalidDataException("Text with surrounding or non-space whitespace must be handled by Castor");
+		return text;
+	}
+
+	/** Skips to the end of the current element without reading any children */
+	protected static void skipEmptyElement(XMLStreamReader reader) throws XMLStreamException, InvalidDataException {
+		if (reader.nextTag() != XMLStreamConstants.END_ELEMENT)
+			throw new InvalidDataException("Unexpected child element "+reader.getLocalName());
+	}
+
+	protected static void appendAttribute(StringBuilder out, String name, Object value) throws InvalidDataException {
+		if (value == null) return;
+		out.append(' ').append(name).append("=\"");
+		appendEscaped(out, value.toString(), true);
+		out.append('"');
+	}
+
+	protected static void appendText(StringBuilder out, String text) throws InvalidDataException {
+		appendEscaped(out, text, false);
+	}
+
+	private static void appendEscaped(StringBuilder out, String value, boolean attribute) throws InvalidDataException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&': out.append("&amp;"); break;
+			case '<': out.append("&lt;"); break;
+			case '>':
+				if (attribute) out.append(c); else out.append("&gt;");
+				break;
+			case '"':
+				if (attribute) out.append("&quot;"); else out.append(c);
+				break;
+			case '\r': out.append("&#xd;"); break;
+			case '\n':
+				if (attribute) out.append("&#xa;"); else out.append(c);
+				break;
+			case '\t':
+				if (attribute) out.append("&#x9;"); else out.append(c);
+				break;
+			default:
+				if (c < 0x20 || Character.isSurrogate(c) || c == 0xFFFE || c == 0xFFFF)
+					throw new InvalidDataException("Character 0x"+Integer.toHexString(c)+" must be handled by Castor");
+				out.append(c);
+			}
+		}
+	}
+}
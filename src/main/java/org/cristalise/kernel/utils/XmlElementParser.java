@@ -21,105 +21,174 @@
 package org.cristalise.kernel.utils;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.Vector;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+/**
+ * Extracts values from XML by simple element paths such as
+ * <code>Batch/Status</code>. The last step of a path may name either an
+ * element, whose text is returned, or an attribute of the element before it.
+ * Paths match at any depth. Paths are compiled once and cached, and any
+ * number of them are evaluated in a single streaming pass over the document.
+ */
 public class XmlElementParser {
+	static final XMLInputFactory xmlInput = XMLInputFactory.newInstance();
+	static {
+		xmlInput.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInput.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	static final int PATH_CACHE_SIZE = 500;
+	static final Map<String, CompiledPath> pathCache = new LinkedHashMap<String, CompiledPath>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledPath> eldest) {
+			return size() > PATH_CACHE_SIZE;
+		}
+	};
+
 	public static String[] parse(String data, String xpath) {
-		Vector<String> returnData = new Vector<String>();
-		String[] returnArray;
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder;
-		try {
-			builder = factory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			Logger.error(e);
-			throw new RuntimeException("Could not create XML Document Builder");
+		return parse(data, new String[] { xpath })[0];
+	}
+
+	/**
+	 * Evaluates several paths over one parse of the data. Returns the values found
+	 * for each path in the same order as the paths, attribute values first.
+	 */
+	public static String[][] parse(String data, String[] xpaths) {
+		CompiledPath[] paths = new CompiledPath[xpaths.length];
+		for (int i = 0; i < xpaths.length; i++)
+			paths[i] = compile(xpaths[i]);
+
+		ArrayList<ArrayList<String>> attrValues = new ArrayList<ArrayList<String>>();
+		ArrayList<ArrayList<String>> elemValues = new ArrayList<ArrayList<String>>();
+		for (int i = 0; i < paths.length; i++) {
+			attrValues.add(new ArrayList<String>());
+			elemValues.add(new ArrayList<String>());
 		}
-		StringReader is = new StringReader(data);
-		Document doc;
+
+		ArrayList<String> elementStack = new ArrayList<String>();
+		ArrayList<Integer> collecting = new ArrayList<Integer>();
+		StringBuilder text = new StringBuilder();
 		try {
-			doc = builder.parse(new InputSource(is));
-		} catch (Exception e) {
+			XMLStreamReader reader = xmlInput.createXMLStreamReader(new StringReader(data));
+			try {
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+						if (!collecting.isEmpty()) text.append(reader.getText());
+						continue;
+					}
+					// any other event ends the leading text of the element being collected
+					if (!collecting.isEmpty()) {
+						if (text.length() > 0) {
+							String value = text.toString();
+							Logger.msg(6, "Found Element " + elementStack.get(elementStack.size()-1) + "=" + value);
+							for (Integer i : collecting) elemValues.get(i).add(value);
+						}
+						collecting.clear();
+						text.setLength(0);
+					}
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						elementStack.add(getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+						for (int i = 0; i < paths.length; i++) {
+							CompiledPath path = paths[i];
+							if (path.matchesAttribute(elementStack)) {
+								String value = getAttribute(reader, path.getLastStep());
+								if (value != null) {
+									Logger.msg(6, "Matching Attribute " + path.getLastStep() + "=" + value);
+									attrValues.get(i).add(value);
+								}
+							}
+							if (path.matchesElement(elementStack))
+								collecting.add(i);
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT)
+						elementStack.remove(elementStack.size()-1);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
 			Logger.error(e);
 			throw new RuntimeException("Parser malfunction");
-		} 
-		StringTokenizer pathTokens = new StringTokenizer(xpath, "/");
-		int taille = pathTokens.countTokens();
-		String[] pathElements = new String[taille];
-		int i = taille;
-		while (pathTokens.hasMoreElements())
-			pathElements[--i] = pathTokens.nextToken();
-
-		if (Logger.doLog(6)) {
-			Logger.msg(6, "Path elements:");
-			for (String pathElement : pathElements)
-				Logger.debug(6, pathElement);
 		}
 
-		Logger.msg(6, "Looking for attribute " + pathElements[0] + " in "
-				+ pathElements[1]);
-		NodeList nl = doc.getElementsByTagName(pathElements[1]);
-		for (int j = 0; j < nl.getLength(); j++) {
-			Logger.msg(6, "Found one");
-			Element e = (Element) nl.item(j);
-			boolean match = true;
-			Node child = e;
-			for (int k = 2; k < taille && match; k++) {
-				Logger.msg(6, "Checking parent " + pathElements[k]);
-				child = child.getParentNode();
-				if (!child.getNodeName().equals(pathElements[k])) {
-					Logger.msg(6, "No match for " + child.getNodeName());
-					match = false;
-				} else
-					Logger.msg(6, "Match");
-			}
-			if (match && e.hasAttribute(pathElements[0])) {
-				Logger.msg(
-						6,
-						"Matching Attribute " + pathElements[0] + "="
-								+ e.getAttribute(pathElements[0]));
-				returnData.add(e.getAttribute(pathElements[0]));
-			}
+		String[][] returnArrays = new String[paths.length][];
+		for (int i = 0; i < paths.length; i++) {
+			ArrayList<String> values = attrValues.get(i);
+			values.addAll(elemValues.get(i));
+			Logger.msg(3, values.size() + " values found for " + xpaths[i]);
+			returnArrays[i] = values.toArray(new String[values.size()]);
 		}
+		return returnArrays;
+	}
 
-		Logger.msg(6, "Looking for element " + pathElements[0]);
-		nl = doc.getElementsByTagName(pathElements[0]);
-		for (int j = 0; j < nl.getLength(); j++) {
-			Logger.msg(6, "Found one");
-			Element e = (Element) nl.item(j);
-			boolean match = true;
-			Node child = e;
-			for (int k = 1; k < taille && match; k++) {
-				Logger.msg(6, "Checking parent " + pathElements[k]);
-				child = child.getParentNode();
-				if (!child.getNodeName().equals(pathElements[k])) {
-					Logger.msg(6, "No match for " + child.getNodeName());
-					match = false;
-				} else
-					Logger.msg(6, "Match");
-			}
-			if (match) {
-				String s = e.getFirstChild().getNodeValue();
-				Logger.msg(6, "Found Element " + pathElements[0] + "=" + s);
-				if (s != null)
-					returnData.add(s);
+	private static String getQualifiedName(String prefix, String localName) {
+		return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+	}
+
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		for (int i = 0; i < reader.getAttributeCount(); i++)
+			if (name.equals(getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i))))
+				return reader.getAttributeValue(i);
+		return null;
+	}
+
+	public static CompiledPath compile(String xpath) {
+		synchronized (pathCache) {
+			CompiledPath path = pathCache.get(xpath);
+			if (path == null) {
+				path = new CompiledPath(xpath);
+				pathCache.put(xpath, path);
 			}
+			return path;
+		}
+	}
+
+	/**
+	 * The steps of a path, matched against the stack of open elements
+	 */
+	public static class CompiledPath {
+		final String[] steps;
+
+		CompiledPath(String xpath) {
+			StringTokenizer pathTokens = new StringTokenizer(xpath, "/");
+			steps = new String[pathTokens.countTokens()];
+			for (int i = 0; pathTokens.hasMoreTokens(); i++)
+				steps[i] = pathTokens.nextToken();
+			if (steps.length == 0)
+				throw new IllegalArgumentException("Empty path: '"+xpath+"'");
+		}
+
+		String getLastStep() {
+			return steps[steps.length-1];
+		}
+
+		/** True if the last step may be an attribute of the current element */
+		boolean matchesAttribute(ArrayList<String> elementStack) {
+			return steps.length > 1 && matchesStack(elementStack, steps.length-1);
+		}
+
+		/** True if the current element is the one named by the whole path */
+		boolean matchesElement(ArrayList<String> elementStack) {
+			return matchesStack(elementStack, steps.length);
+		}
+
+		private boolean matchesStack(ArrayList<String> elementStack, int stepCount) {
+			int depth = elementStack.size();
+			if (depth < stepCount) return false;
+			for (int i = 1; i <= stepCount; i++)
+				if (!steps[stepCount-i].equals(elementStack.get(depth-i))) return false;
+			return true;
 		}
-		Logger.msg(3, returnData.size() + " values found for " + xpath);
-		returnArray = new String[returnData.size()];
-		for (int j = 0; j < returnArray.length; j++)
-			returnArray[j] = returnData.get(j);
-		return returnArray;
 	}
 }
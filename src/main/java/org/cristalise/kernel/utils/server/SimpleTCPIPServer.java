@@ -26,7 +26,10 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.cristalise.kernel.process.KernelExecutors;
 import org.cristalise.kernel.utils.Logger;
 
 
@@ -35,7 +38,7 @@ public class SimpleTCPIPServer implements Runnable
 {
     int                 port            = 0;
     int                 maxConn         = 10;
-    Thread              listener        = null;
+    Future<?>           listener        = null;
     Class<?>               handlerClass    = null;
     ServerSocket        serverSocket    = null;
     boolean            keepListening   = true;
@@ -55,8 +58,7 @@ public class SimpleTCPIPServer implements Runnable
         if(listener != null) return;
         keepListening = true;
 
-        listener = new Thread(this);
-        listener.start();
+        listener = KernelExecutors.get(KernelExecutors.SERVICE).submit(this);
     }
 
     public void stopListening()
@@ -107,7 +109,13 @@ public class SimpleTCPIPServer implements Runnable
                         Logger.msg("SimpleTCPIPServer: Connection to "+freeHandler.getName()+" from "+
                             connectionSocket.getInetAddress());
                         freeHandler.setSocket(connectionSocket);
-                        new Thread(freeHandler).start();
+                        try {
+                            KernelExecutors.get(KernelExecutors.CONNECTION).execute(freeHandler);
+                        } catch (RejectedExecutionException ex) {
+                            Logger.warning("SimpleTCPIPServer: No connection threads left. Refusing connection from "+
+                                connectionSocket.getInetAddress());
+                            freeHandler.shutdown();
+                        }
                     }
                 } catch (InterruptedIOException ex1) { }// timeout just to check if we've been told to die
 
@@ -0,0 +1,204 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cristalise.kernel.utils.Logger;
+import org.cristalise.kernel.utils.SoftCache;
+import org.cristalise.kernel.utils.WeakCache;
+
+
+public class CacheTest {
+
+	static final int KEYS = 1000;
+	static final String[] values = new String[KEYS];
+	static {
+		for (int i=0; i<KEYS; i++) values[i] = "value"+i;
+	}
+
+	public CacheTest() {
+		Logger.addLogStream(System.out, 1);
+	}
+
+	/**
+	 * Hammers a cache from several threads with a mixed workload of 90% reads,
+	 * checking that every hit returns the value stored for its key.
+	 * @return total operations per millisecond
+	 */
+	private static double runWorkload(final Map<Integer, String> cache, int threads, final int opsPerThread) throws Exception {
+		final AtomicInteger errors = new AtomicInteger();
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for (int t=0; t<threads; t++) {
+			final int seed = t;
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random(seed);
+					for (int i=0; i<opsPerThread; i++) {
+						int key = rand.nextInt(KEYS);
+						int op = rand.nextInt(100);
+						try {
+							if (op < 90) {
+								String value = cache.get(key);
+								if (value != null && value != values[key]) errors.incrementAndGet();
+							}
+							else if (op < 98)
+								cache.put(key, values[key]);
+							else
+								cache.remove(key);
+						} catch (Exception ex) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		long then = System.nanoTime();
+		for (Thread worker : workers) worker.start();
+		for (Thread worker : workers) worker.join();
+		long time = System.nanoTime()-then;
+		assert errors.get() == 0 : errors.get()+" cache operations failed or returned the wrong value";
+		return (double)threads*opsPerThread*1000000/Math.max(time, 1);
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		runWorkload(new SoftCache<Integer, String>(50), 4, 200000);
+		runWorkload(new WeakCache<Integer, String>(50), 4, 200000);
+		WeakCache<Integer, String> cache = new WeakCache<Integer, String>(50);
+		for (int i=0; i<KEYS; i++) cache.put(i, values[i]);
+		int count = 0;
+		for (Integer key : cache.keySet()) {
+			if (count++ % 2 == 0) cache.remove(key); // the key set can be iterated while the cache changes
+		}
+		assert cache.size() == KEYS/2 : "Cache had "+cache.size()+" entries after removing half";
+	}
+
+	public void testReaping() throws Exception {
+		WeakCache<Integer, Object> cache = new WeakCache<Integer, Object>(10);
+		for (int i=0; i<1000; i++) cache.put(i, new Object());
+		for (int i=0; i<20 && cache.size() > 10; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assert cache.size() == 10 : "Weak values were not reaped, size is "+cache.size();
+		for (int i=990; i<1000; i++)
+			assert cache.get(i) != null : "Value "+i+" in the hard cache was reaped";
+	}
+
+	/**
+	 * Compares the cache with the previous unsynchronized SoftCache, which had
+	 * to be wrapped in a lock to be shared. Each case is run for a number of
+	 * warmup iterations before the measured ones, as JMH would.
+	 */
+	public void testThroughput() throws Exception {
+		int warmups = 3, iterations = 5, ops = 200000;
+		for (int threads : new int[] { 1, 4 }) {
+			double legacy = 0, current = 0;
+			for (int i=0; i<warmups+iterations; i++) {
+				final LegacySoftCache<Integer, String> legacyCache = new LegacySoftCache<Integer, String>(50);
+				double legacyOps = runWorkload(new LockedMap<Integer, String>(legacyCache), threads, ops/threads);
+				double currentOps = runWorkload(new SoftCache<Integer, String>(50), threads, ops/threads);
+				if (i >= warmups) {
+					legacy += legacyOps/iterations;
+					current += currentOps/iterations;
+				}
+			}
+			Logger.msg("Cache throughput on "+threads+" threads: legacy "+String.format("%.0f", legacy)+
+					" ops/ms, concurrent "+String.format("%.0f", current)+" ops/ms");
+		}
+	}
+
+	/** Serializes every call, as callers of the old cache had to */
+	static class LockedMap<K, V> extends java.util.AbstractMap<K, V> {
+		final Map<K, V> map;
+		LockedMap(Map<K, V> map) { this.map = map; }
+		@Override public synchronized V get(Object key) { return map.get(key); }
+		@Override public synchronized V put(K key, V value) { return map.put(key, value); }
+		@Override public synchronized V remove(Object key) { return map.remove(key); }
+		@Override public java.util.Set<Map.Entry<K, V>> entrySet() { throw new UnsupportedOperationException(); }
+	}
+
+	/** The previous SoftCache implementation, as a baseline */
+	static class LegacySoftCache<K, V> extends java.util.AbstractMap<K, V> {
+		private final Map<K, SoftValue<V>> hash = new HashMap<K, SoftValue<V>>();
+		private final int minSize;
+		private final LinkedList<V> hardCache = new LinkedList<V>();
+		private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+		LegacySoftCache(int minSize) { this.minSize = minSize; }
+
+		@Override
+		public V get(Object key) {
+			V result = null;
+			SoftValue<V> ref = hash.get(key);
+			if (ref != null) {
+				result = ref.get();
+				if (result == null) hash.remove(key);
+				else if (minSize > 0) {
+					hardCache.addFirst(result);
+					if (hardCache.size() > minSize) hardCache.removeLast();
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			processQueue();
+			if (minSize > 0) {
+				hardCache.addFirst(value);
+				if (hardCache.size() > minSize) hardCache.removeLast();
+			}
+			hash.put(key, new SoftValue<V>(key, value, queue));
+			return value;
+		}
+
+		@Override
+		public V remove(Object key) {
+			processQueue();
+			if (hash.containsKey(key)) return hash.remove(key).get();
+			return null;
+		}
+
+		@Override
+		public java.util.Set<Map.Entry<K, V>> entrySet() { throw new UnsupportedOperationException(); }
+
+		@SuppressWarnings("unchecked")
+		private void processQueue() {
+			SoftValue<V> sv;
+			while ((sv = (SoftValue<V>) queue.poll()) != null) hash.remove(sv.key);
+		}
+
+		private static class SoftValue<V> extends SoftReference<V> {
+			private final Object key;
+			private SoftValue(Object key, V value, ReferenceQueue<V> q) {
+				super(value, q);
+				this.key = key;
+			}
+		}
+	}
+}
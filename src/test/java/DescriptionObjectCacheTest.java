@@ -0,0 +1,217 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cristalise.kernel.common.InvalidDataException;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.entity.proxy.ItemProxy;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.outcome.OutcomeValidator;
+import org.cristalise.kernel.persistency.outcome.Schema;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.utils.DescriptionObjectCache;
+import org.cristalise.kernel.utils.DescriptionObjectCache.CacheEntry;
+import org.cristalise.kernel.utils.DescriptionObjectCache.CacheKey;
+import org.cristalise.kernel.utils.DescriptionSnapshot;
+import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.Logger;
+import org.cristalise.kernel.utils.SchemaCache;
+import org.cristalise.kernel.utils.ScriptCache.ScriptData;
+
+
+public class DescriptionObjectCacheTest {
+
+	/** Loads descriptions without a Lookup, counting loads and letting tests hold them up */
+	static class TestCache extends DescriptionObjectCache<ScriptData> {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch bStarted = new CountDownLatch(1);
+		volatile boolean aWaitedForB = false;
+
+		@Override
+		protected ItemProxy getDefItem(String name) {
+			return null;
+		}
+
+		@Override
+		public String getDefRoot() {
+			return "/desc/Test";
+		}
+
+		@Override
+		public String getSchemaName(ItemProxy proxy) {
+			return "Test";
+		}
+
+		@Override
+		public ScriptData buildObject(String name, int version, String data) {
+			return new ScriptData(name, version, data);
+		}
+
+		@Override
+		public ScriptData loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException, InvalidDataException {
+			loads.incrementAndGet();
+			if (name.equals("missing")) throw new ObjectNotFoundException(name+" not found");
+			try {
+				if (name.equals("A")) aWaitedForB = bStarted.await(5, TimeUnit.SECONDS);
+				else if (name.equals("B")) bStarted.countDown();
+				else Thread.sleep(200);
+			} catch (InterruptedException ex) {
+				throw new ObjectNotFoundException("Interrupted");
+			}
+			return new ScriptData(name, version, "<"+name+"/>");
+		}
+	}
+
+	/** A SchemaCache loading a test schema without a Lookup */
+	static class TestSchemaCache extends SchemaCache {
+		final AtomicInteger loads = new AtomicInteger();
+
+		@Override
+		protected ItemProxy getDefItem(String name) {
+			return null;
+		}
+
+		@Override
+		public Schema loadObject(String name, int version, ItemProxy proxy) throws ObjectNotFoundException {
+			loads.incrementAndGet();
+			try {
+				return buildObject(name, version, FileStringUtility.url2String(DescriptionObjectCacheTest.class.getResource("outcomeTest.xsd")));
+			} catch (Exception ex) {
+				throw new ObjectNotFoundException(ex.getMessage());
+			}
+		}
+	}
+
+	private static ArrayList<Thread> startGets(final TestCache cache, final ScriptData[] results, final String... names) {
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i=0; i<names.length; i++) {
+			final int pos = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[pos] = cache.get(names[pos], 0);
+					} catch (Exception ex) {
+						Logger.error(ex);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		return threads;
+	}
+
+	public void testSingleFlight() throws Exception {
+		TestCache cache = new TestCache();
+		ScriptData[] results = new ScriptData[8];
+		for (Thread thread : startGets(cache, results, "C", "C", "C", "C", "C", "C", "C", "C")) thread.join();
+		assert cache.loads.get() == 1 : "Concurrent misses caused "+cache.loads.get()+" loads";
+		for (ScriptData result : results)
+			assert result == results[0] : "Threads received different objects";
+		assert cache.get("C", 0) == results[0] && cache.loads.get() == 1 : "Loaded object was not cached";
+
+		cache.removeObject("C", 0);
+		assert cache.get("C", 0) != results[0] && cache.loads.get() == 2 : "Removed object was not reloaded";
+		assert cache.get("C", 1) != null && cache.loads.get() == 3 : "Versions share a cache entry";
+	}
+
+	public void testParallelLoads() throws Exception {
+		TestCache cache = new TestCache();
+		ScriptData[] results = new ScriptData[2];
+		for (Thread thread : startGets(cache, results, "A", "B")) thread.join();
+		assert cache.aWaitedForB : "Load of B was blocked by the load of A";
+		assert results[0].getName().equals("A") && results[1].getName().equals("B") : "Wrong objects loaded";
+	}
+
+	public void testFailedLoad() throws Exception {
+		TestCache cache = new TestCache();
+		for (int i=1; i<=2; i++) {
+			try {
+				cache.get("missing", 0);
+				assert false : "Missing object was returned";
+			} catch (ObjectNotFoundException ex) { }
+			assert cache.loads.get() == i : "Failed load was cached";
+		}
+	}
+
+	public void testPreload() throws Exception {
+		TestCache cache = new TestCache();
+		ScriptData preloaded = cache.preload("D", 0, "<D/>", null);
+		assert cache.get("D", 0) == preloaded && cache.loads.get() == 0 : "Preloaded object was not used";
+		assert cache.preload("D", 0, "<Other/>", null) == preloaded : "Preload replaced a cached object";
+	}
+
+	public void testSchemaCache() throws Exception {
+		TestSchemaCache cache = new TestSchemaCache();
+		Schema first = cache.get("CachedSchema", 0);
+		Schema second = cache.get("CachedSchema", 0);
+		assert cache.loads.get() == 1 : "Schema was loaded "+cache.loads.get()+" times";
+		assert second.docType.equals("CachedSchema") && second.docVersion == 0 && second.schema == first.schema : "Cache hit returned another schema";
+		cache.get("CachedSchema", 1);
+		assert cache.loads.get() == 2 : "Versions share a cache entry";
+
+		// callers get their own copy, so changing one leaves the cache intact
+		assert first != second : "Cached Schema instance was handed out";
+		first.setName("Changed");
+		first.parse(null);
+		Schema third = cache.get("CachedSchema", 0);
+		assert third.getName().equals("CachedSchema") && third.som == null : "A caller's change reached the cache";
+
+		// a new viewpoint of the description drops the schema and its compiled grammar
+		new OutcomeValidator(third);
+		assert OutcomeValidator.isGrammarCached("CachedSchema", 0);
+		CacheEntry<Schema> entry = new CacheEntry<Schema>(new CacheKey("CachedSchema", 0), third, null, cache);
+		entry.add(new Viewpoint(new ItemPath(), "Schema", "0", 0, 1));
+		assert !OutcomeValidator.isGrammarCached("CachedSchema", 0) : "Compiled grammar kept after the schema changed";
+		cache.get("CachedSchema", 0);
+		assert cache.loads.get() == 3 : "Changed schema was not reloaded";
+		cache.get("CachedSchema", 1);
+		assert cache.loads.get() == 3 : "Other versions were dropped too";
+	}
+
+	public void testSnapshot() throws Exception {
+		DescriptionSnapshot snapshot = new DescriptionSnapshot();
+		StringBuilder big = new StringBuilder("<Big>");
+		for (int i=0; i<20000; i++) big.append("<Element>\u00e9</Element>");
+		big.append("</Big>");
+		snapshot.put("/desc/Script", "Small", 0, 12, "<Small/>");
+		snapshot.put("/desc/Script", "Big", 3, 40, big.toString());
+
+		File file = File.createTempFile("descSnapshot", ".gz");
+		try {
+			snapshot.write(file);
+			DescriptionSnapshot read = DescriptionSnapshot.read(file);
+			assert read.size() == 2 : "Read "+read.size()+" entries";
+			assert "<Small/>".equals(read.get("/desc/Script", "Small", 0, 12)) : "Entry not read back";
+			assert big.toString().equals(read.get("/desc/Script", "Big", 3, 40)) : "Large entry not read back intact";
+			assert read.get("/desc/Script", "Small", 0, 13) == null : "Entry with an old event stamp was returned";
+			assert read.get("/desc/Schema", "Small", 0, 12) == null : "Entry returned for the wrong description type";
+		} finally {
+			file.delete();
+		}
+		assert DescriptionSnapshot.read(new File(file.getPath()+".missing")).size() == 0 : "Missing file gave entries";
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.cristalise.kernel.common.GTimeStamp;
+import org.cristalise.kernel.common.ObjectNotFoundException;
+import org.cristalise.kernel.events.Event;
+import org.cristalise.kernel.events.EventIndex;
+import org.cristalise.kernel.events.EventIndexEntry;
+import org.cristalise.kernel.lookup.AgentPath;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.persistency.TransactionManager;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.persistency.outcome.ViewpointHistory;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.utils.FileStringUtility;
+
+
+public class EventIndexTest {
+
+	public EventIndexTest() throws Exception {
+		Properties props = FileStringUtility.loadConfigFile(EventIndexTest.class.getResource("server.conf").getPath());
+		props.put("History.indexEvents", "true");
+		Gateway.init(props);
+	}
+
+	private static Event makeEvent(int id, String stepPath, AgentPath agent, int minute) {
+		Event ev = new Event();
+		ev.setID(id);
+		ev.setItemPath(new ItemPath());
+		ev.setStepPath(stepPath);
+		ev.setAgentPath(agent);
+		ev.setTimeStamp(new GTimeStamp(2015, 3, 1, 12, minute, 0, 0));
+		return ev;
+	}
+
+	private static long millis(int minute) {
+		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		cal.clear();
+		cal.set(2015, 2, 1, 12, minute, 0);
+		return cal.getTimeInMillis();
+	}
+
+	private static EventIndex buildIndex() {
+		AgentPath alice = new AgentPath(new ItemPath(), "alice");
+		AgentPath bob = new AgentPath(new ItemPath(), "bob");
+		ArrayList<Event> events = new ArrayList<Event>();
+		for (int i=0; i<60; i++)
+			events.add(makeEvent(i, "workflow/domain/Step"+(i%3), i%2==0?alice:bob, i));
+		EventIndex index = new EventIndex();
+		return index.add(events);
+	}
+
+	public void testQueries() throws Exception {
+		EventIndex index = buildIndex();
+		assert index.getLastEventId() == 59 : "Last event id was "+index.getLastEventId();
+
+		List<Integer> step1 = index.getEventIdsForStep("workflow/domain/Step1");
+		assert step1.size() == 20 && step1.get(0) == 1 && step1.get(19) == 58 : "Step query returned "+step1;
+		assert index.getEventIdsForStep("workflow/domain/Other").isEmpty() : "Unknown step returned events";
+
+		String agentUUID = index.getEntries().get(1).getAgentUUID();
+		List<Integer> byAgent = index.getEventIdsForAgent(agentUUID);
+		assert byAgent.size() == 30 && byAgent.get(0) == 1 : "Agent query returned "+byAgent;
+
+		List<Integer> window = index.getEventIdsBetween(millis(10), millis(19));
+		assert window.size() == 10 && window.get(0) == 10 && window.get(9) == 19 : "Time query returned "+window;
+		assert index.getEventIdsBetween(millis(30), Long.MAX_VALUE).size() == 30 : "Open time range failed";
+
+		// adding returns a new index and leaves the original untouched
+		ArrayList<Event> more = new ArrayList<Event>();
+		more.add(makeEvent(59, "workflow/domain/Step1", null, 59)); // already indexed, skipped
+		more.add(makeEvent(60, "workflow/domain/Step1", null, 60));
+		EventIndex newIndex = index.add(more);
+		assert newIndex.getEventIdsForStep("workflow/domain/Step1").size() == 21 : "New event was not indexed";
+		assert index.getEventIdsForStep("workflow/domain/Step1").size() == 20 : "Original index was modified";
+		assert newIndex.getLastEventId() == 60 : "Last event id not updated";
+	}
+
+	public void testTimeOffset() throws Exception {
+		assert EventIndexEntry.toMillis(new GTimeStamp(2015, 3, 1, 12, 0, 0, 0)) == millis(0) : "UTC timestamp converted wrongly";
+		assert EventIndexEntry.toMillis(new GTimeStamp(2015, 3, 1, 13, 0, 0, 3600000)) == millis(0) : "Offset of +1h not applied";
+		assert EventIndexEntry.toMillis(new GTimeStamp(2015, 3, 1, 7, 0, 0, -5*3600000)) == millis(0) : "Offset of -5h not applied";
+		// a timestamp recorded by this server is read in its own zone
+		Event now = new Event();
+		now.setTimeStamp(Event.getGMT());
+		long diff = System.currentTimeMillis() - EventIndexEntry.toMillis(now.getTimeStamp());
+		assert diff >= 0 && diff < 2000 : "Local timestamp was converted "+diff+"ms out";
+	}
+
+	public void testChunks() throws Exception {
+		AgentPath alice = new AgentPath(new ItemPath(), "alice");
+		ArrayList<Event> events = new ArrayList<Event>();
+		for (int i=0; i<250; i++)
+			events.add(makeEvent(i, "workflow/domain/Step"+(i%3), alice, i%60));
+		EventIndex index = new EventIndex().add(events);
+		assert EventIndex.getChunkNumber(249) == 2 : "Event 249 is in chunk "+EventIndex.getChunkNumber(249);
+
+		ArrayList<EventIndex> chunks = new ArrayList<EventIndex>();
+		for (int chunk=2; chunk>=0; chunk--) {
+			EventIndex part = index.getChunk(chunk);
+			assert part.getName().equals("AuditTrail/"+chunk) : "Chunk named "+part.getName();
+			assert part.getEntries().size() == (chunk==2?50:100) : "Chunk "+chunk+" had "+part.getEntries().size()+" entries";
+			assert part.getEntries().get(0).getEventId() == chunk*100 : "Chunk "+chunk+" starts at the wrong event";
+			// as stored and read back
+			chunks.add((EventIndex)Gateway.getMarshaller().unmarshall(Gateway.getMarshaller().marshall(part)));
+		}
+		assert index.getChunk(3).getEntries().isEmpty() : "Chunk past the end was not empty";
+
+		EventIndex merged = EventIndex.merge(chunks);
+		assert merged.getLastEventId() == 249 : "Merged index ends at "+merged.getLastEventId();
+		assert merged.getEventIdsForStep("workflow/domain/Step1").equals(index.getEventIdsForStep("workflow/domain/Step1")) :
+			"Merged index answers differently";
+	}
+
+	public void testMarshalling() throws Exception {
+		EventIndex index = buildIndex();
+		String xml = Gateway.getMarshaller().marshall(index);
+		EventIndex copy = (EventIndex)Gateway.getMarshaller().unmarshall(xml);
+		assert copy.getEntries().size() == 60 : "Unmarshalled index had "+copy.getEntries().size()+" entries";
+		EventIndexEntry entry = copy.getEntries().get(7);
+		assert entry.getEventId() == 7 && entry.getTime() == millis(7) : "Entry fields were not preserved";
+		assert copy.getEventIdsForStep("workflow/domain/Step1").equals(index.getEventIdsForStep("workflow/domain/Step1")) :
+			"Unmarshalled index answers differently";
+	}
+
+	public void testViewpointHistory() throws Exception {
+		ItemPath item = new ItemPath();
+		ViewpointHistory viewHistory = new ViewpointHistory("Batch", "last");
+		for (int i=0; i<100; i++)
+			viewHistory = viewHistory.record(new Viewpoint(item, "Batch", "last", i<50?0:1, i*2), millis(i));
+		assert viewHistory.record(new Viewpoint(item, "Batch", "last", 1, 198), millis(100)) == viewHistory :
+			"Unchanged viewpoint was recorded";
+
+		assert viewHistory.getViewpointAt(item, millis(0)-1) == null : "Viewpoint found before it was written";
+		Viewpoint view = viewHistory.getViewpointAt(item, millis(10)+30000);
+		assert view.getEventId() == 20 && view.getSchemaVersion() == 0 : "Found event "+view.getEventId()+" at minute 10";
+		view = viewHistory.getViewpointAt(item, millis(75));
+		assert view.getEventId() == 150 && view.getSchemaVersion() == 1 : "Found event "+view.getEventId()+" at minute 75";
+		assert viewHistory.getViewpointAt(item, Long.MAX_VALUE).getEventId() == 198 : "Latest state not found";
+
+		String xml = Gateway.getMarshaller().marshall(viewHistory);
+		ViewpointHistory copy = (ViewpointHistory)Gateway.getMarshaller().unmarshall(xml);
+		assert copy.getEntries().size() == 100 : "Unmarshalled history had "+copy.getEntries().size()+" entries";
+		assert copy.getViewpointAt(item, millis(75)).getEventId() == 150 : "Unmarshalled history answers differently";
+	}
+
+	public void testViewpointHistoryChunks() throws Exception {
+		ItemPath item = new ItemPath();
+		ViewpointHistory current = new ViewpointHistory("Batch", "last");
+		ArrayList<ViewpointHistory> archives = new ArrayList<ViewpointHistory>();
+		for (int i=0; i<250; i++) {
+			ViewpointHistory next = current.record(new Viewpoint(item, "Batch", "last", 0, i), millis(i));
+			if (next.getArchivedChunks() > current.getArchivedChunks()) archives.add(current.getArchive());
+			current = next;
+		}
+		assert current.getArchivedChunks() == 2 && archives.size() == 2 : "Archived "+archives.size()+" chunks instead of 2";
+		assert current.getEntries().size() == 50 : "Current history holds "+current.getEntries().size()+" states";
+		assert ClusterStorage.getPath(current).equals("EventIndex/ViewPoint/Batch/last") : "Current history stored at "+ClusterStorage.getPath(current);
+		assert ClusterStorage.getPath(archives.get(1)).equals("EventIndex/ViewPoint/Batch/last/1") : "Archive stored at "+ClusterStorage.getPath(archives.get(1));
+		assert current.getStartTime() == millis(200) : "Current history starts at the wrong time";
+		assert archives.get(1).getViewpointAt(item, millis(150)).getEventId() == 150 : "Archived state not found";
+
+		ViewpointHistory copy = (ViewpointHistory)Gateway.getMarshaller().unmarshall(Gateway.getMarshaller().marshall(archives.get(1)));
+		assert copy.getChunk() == 1 && copy.getEntries().size() == 100 : "Archive fields were not preserved";
+	}
+
+	public void testViewpointHistoryRecordedOnPut() throws Exception {
+		TransactionManager storage = new TransactionManager(null);
+		ItemPath item = new ItemPath();
+		Object locker = new Object();
+		for (int i=0; i<3; i++) {
+			Event ev = makeEvent(i, "workflow/domain/Step", null, i*10);
+			ev.setItemPath(item);
+			storage.put(item, ev, locker);
+			storage.put(item, new Viewpoint(item, "Batch", "last", 0, i), locker);
+		}
+		// recorded in the same transaction as the viewpoints
+		ViewpointHistory viewHistory = (ViewpointHistory)storage.get(item, "EventIndex/ViewPoint/Batch/last", locker);
+		assert viewHistory.getEntries().size() == 3 : "Recorded "+viewHistory.getEntries().size()+" states instead of 3";
+		storage.abort(locker);
+		try {
+			storage.get(item, "EventIndex/ViewPoint/Batch/last", null);
+			assert false : "History of an aborted transaction was stored";
+		} catch (ObjectNotFoundException ex) { }
+
+		for (int i=0; i<3; i++) {
+			Event ev = makeEvent(i, "workflow/domain/Step", null, i*10);
+			ev.setItemPath(item);
+			storage.put(item, ev, locker);
+			storage.put(item, new Viewpoint(item, "Batch", "last", 0, i), locker);
+		}
+		storage.commit(locker);
+		viewHistory = (ViewpointHistory)storage.get(item, "EventIndex/ViewPoint/Batch/last", null);
+		assert viewHistory.getStartTime() == millis(0) : "Recorded time is not that of the event";
+		assert viewHistory.getViewpointAt(item, millis(15)).getEventId() == 1 : "State at the second event's time is wrong";
+		assert viewHistory.getViewpointAt(item, System.currentTimeMillis()).getEventId() == 2 : "Current state is wrong";
+	}
+
+	public void testLastEventForView() throws Exception {
+		ArrayList<Event> events = new ArrayList<Event>();
+		for (int i=0; i<30; i++) {
+			Event ev = makeEvent(i, "workflow/domain/Step", null, i);
+			if (i%3 != 0) { // every third event stores no outcome
+				ev.setSchemaName(i%3 == 1 ? "Batch" : "Other");
+				ev.setSchemaVersion(0);
+				ev.setViewName(i%2 == 0 ? "even" : "last");
+			}
+			events.add(ev);
+		}
+		EventIndex index = new EventIndex().add(events);
+		assert index.getLastEventIdForView("Batch", "last", millis(29)) == 28 : "Last Batch event was "+index.getLastEventIdForView("Batch", "last", millis(29));
+		assert index.getLastEventIdForView("Batch", "last", millis(12)) == 10 : "Batch event at minute 12 was "+index.getLastEventIdForView("Batch", "last", millis(12));
+		assert index.getLastEventIdForView("Batch", "even", millis(12)) == 10 : "Batch 'even' event at minute 12 was "+index.getLastEventIdForView("Batch", "even", millis(12));
+		assert index.getLastEventIdForView("Other", "even", millis(12)) == 8 : "Other 'even' event at minute 12 was "+index.getLastEventIdForView("Other", "even", millis(12));
+		assert index.getLastEventIdForView("Batch", "last", millis(0)) == -1 : "Batch event found before the first one";
+		assert index.getLastEventIdForView("Missing", "last", millis(29)) == -1 : "Unknown schema found";
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.process.KernelExecutors.ManagedExecutor;
+import org.cristalise.kernel.process.KernelExecutors.Rejection;
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.FileStringUtility;
+
+
+public class KernelExecutorsTest {
+
+	public KernelExecutorsTest() throws Exception {
+		Properties props = FileStringUtility.loadConfigFile(KernelExecutorsTest.class.getResource("server.conf").getPath());
+		props.put("Executor.Test.threads", "2");
+		props.put("Executor.Test.queue", "3");
+		props.put("Executor.Test.rejection", "discard");
+		Gateway.init(props);
+	}
+
+	/**
+	 * Fills the pool with tasks that wait for the latch
+	 */
+	static void block(ManagedExecutor pool, int tasks, final CountDownLatch release) {
+		for (int i=0; i<tasks; i++)
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try { release.await(); } catch (InterruptedException e) { }
+				}
+			});
+	}
+
+	public void testConfiguredPool() throws Exception {
+		ManagedExecutor pool = KernelExecutors.get("Test");
+		try {
+			assert KernelExecutors.get("Test") == pool : "Pool was created twice";
+			assert pool.getMaximumPoolSize() == 2 : "Pool has "+pool.getMaximumPoolSize()+" threads";
+			assert KernelStats.executors.getPools().containsKey("Test") : "Pool not in the statistics";
+
+			// two running, three queued, the rest discarded
+			CountDownLatch release = new CountDownLatch(1);
+			block(pool, 7, release);
+			assert pool.getQueue().size() == 3 : "Queue holds "+pool.getQueue().size()+" tasks";
+			assert pool.getRejectedCount() == 2 : pool.getRejectedCount()+" tasks rejected";
+			assert KernelStats.executors.getRejectedTasks().get("Test") == 2;
+			release.countDown();
+		} finally {
+			KernelExecutors.shutdown();
+		}
+		assert pool.isShutdown() : "Pool still running after shutdown";
+		assert KernelExecutors.get("Test") != pool : "Shut down pool was handed out again";
+		KernelExecutors.shutdown();
+	}
+
+	public void testRejectionPolicies() throws Exception {
+		ManagedExecutor abort = KernelExecutors.newExecutor("Abort", 1, 0, Rejection.ABORT, true, false);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			block(abort, 1, release);
+			try {
+				abort.execute(new Runnable() { @Override public void run() { } });
+				assert false : "Full pool accepted a task";
+			} catch (RejectedExecutionException ex) { }
+			assert abort.getRejectedCount() == 1;
+		} finally {
+			release.countDown();
+			abort.shutdownNow();
+		}
+
+		// a task run by the caller does not rename it
+		ManagedExecutor callerRuns = KernelExecutors.newExecutor("CallerRuns", 1, 1, Rejection.CALLER_RUNS, true, false);
+		release = new CountDownLatch(1);
+		try {
+			block(callerRuns, 2, release);
+			final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+			String name = Thread.currentThread().getName();
+			callerRuns.execute(new Runnable() {
+				@Override
+				public void run() {
+					ranOn.set(Thread.currentThread());
+					Thread.currentThread().setName("renamed");
+				}
+			});
+			assert ranOn.get() == Thread.currentThread() : "Rejected task did not run in the caller";
+			assert Thread.currentThread().getName().equals(name) : "Caller left named "+Thread.currentThread().getName();
+			assert callerRuns.getRejectedCount() == 1;
+		} finally {
+			release.countDown();
+			callerRuns.shutdownNow();
+		}
+		// once shut down, the task is refused rather than silently dropped
+		try {
+			callerRuns.execute(new Runnable() { @Override public void run() { } });
+			assert false : "Shut down pool accepted a task";
+		} catch (RejectedExecutionException ex) { }
+	}
+
+	public void testThreadNames() throws Exception {
+		ManagedExecutor pool = KernelExecutors.newExecutor("Names", 1, 10, Rejection.ABORT, true, false);
+		try {
+			final AtomicReference<String> name = new AtomicReference<String>();
+			final CountDownLatch done = new CountDownLatch(2);
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Thread.currentThread().setName("Task that renames its thread");
+					done.countDown();
+				}
+			});
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					name.set(Thread.currentThread().getName());
+					done.countDown();
+				}
+			});
+			assert done.await(10, TimeUnit.SECONDS);
+			assert name.get().equals("Names-1") : "Thread was still named "+name.get();
+
+			// execute() names the thread for the task
+			final CountDownLatch named = new CountDownLatch(1);
+			KernelExecutors.execute("Test", "Named task", new Runnable() {
+				@Override
+				public void run() {
+					name.set(Thread.currentThread().getName());
+					named.countDown();
+				}
+			});
+			assert named.await(10, TimeUnit.SECONDS);
+			assert name.get().equals("Named task") : "Task ran on "+name.get();
+		} finally {
+			pool.shutdownNow();
+			KernelExecutors.shutdown();
+		}
+	}
+
+	public void testVirtualThreads() throws Exception {
+		boolean available;
+		try {
+			Thread.class.getMethod("ofVirtual");
+			available = true;
+		} catch (NoSuchMethodException ex) {
+			available = false;
+		}
+		// falls back to platform threads on older runtimes
+		ManagedExecutor pool = KernelExecutors.newExecutor("Virtual", 4, 100, Rejection.ABORT, true, true);
+		try {
+			assert pool.isVirtual() == available : "Virtual threads "+(available ? "not used" : "used without runtime support");
+			final AtomicReference<Boolean> ranVirtual = new AtomicReference<Boolean>();
+			final CountDownLatch done = new CountDownLatch(1);
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ranVirtual.set((Boolean)Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+					} catch (Exception ex) {
+						ranVirtual.set(false);
+					}
+					done.countDown();
+				}
+			});
+			assert done.await(10, TimeUnit.SECONDS);
+			assert ranVirtual.get() == available : "Task ran on the wrong kind of thread";
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.ClusterStorage;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.property.Property;
+import org.cristalise.kernel.querying.ItemPredicate;
+import org.cristalise.kernel.querying.LocalQuery;
+import org.cristalise.kernel.querying.QueryItem;
+import org.cristalise.kernel.querying.QueryResult;
+import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.Logger;
+import org.cristalise.storage.MemoryOnlyClusterStorage;
+
+
+public class LocalQueryTest {
+
+	static final int ITEMS = 100000;
+	// the synthetic store is shared by all the tests, as it takes a while to build
+	static MemoryOnlyClusterStorage store;
+	static ArrayList<ItemPath> items;
+	ClusterStorageManager storage;
+
+	public LocalQueryTest() throws Exception {
+		if (store == null) createStore();
+		ArrayList<ClusterStorage> stores = new ArrayList<ClusterStorage>();
+		stores.add(store);
+		Properties props = FileStringUtility.loadConfigFile(LocalQueryTest.class.getResource("server.conf").getPath());
+		props.put("ClusterStorage", stores);
+		// enough pool threads for the scaling test
+		props.put("LocalQuery.threads", "4");
+		Gateway.init(props);
+		storage = new ClusterStorageManager(null);
+	}
+
+	private static void createStore() throws Exception {
+		// fill the store directly, so nothing is in the storage manager's cache
+		store = new MemoryOnlyClusterStorage();
+		items = new ArrayList<ItemPath>();
+		for (int i=0; i<ITEMS; i++) {
+			ItemPath item = new ItemPath();
+			items.add(item);
+			store.put(item, new Property("Type", i%2==0?"Batch":"Sample"));
+			if (i%2==0) {
+				store.put(item, new Outcome(0, "<Batch><Status>"+(i%10==0?"QA":"Open")+"</Status></Batch>", "Batch", 0));
+				store.put(item, new Viewpoint(item, "Batch", "last", 0, 0));
+			}
+		}
+	}
+
+	private HashSet<ItemPath> runQuery(LocalQuery query, ItemPredicate predicate, int expected) {
+		HashSet<ItemPath> found = new HashSet<ItemPath>();
+		QueryResult result = query.run(items.iterator(), predicate);
+		while (result.hasNext())
+			assert found.add(result.next()) : "Item returned twice";
+		assert result.isComplete() : "Results ended before query completed";
+		assert result.getScannedCount() == ITEMS : "Only "+result.getScannedCount()+" items scanned";
+		assert result.getErrorCount() == 0 : result.getErrorCount()+" items could not be evaluated";
+		assert found.size() == expected : "Query found "+found.size()+" items instead of "+expected;
+		return found;
+	}
+
+	public void testPrivateOutcome() throws Exception {
+		ItemPath item = items.get(0);
+		// an Outcome already parsed by someone else, e.g. held in a cache
+		Outcome stored = (Outcome)storage.peek(item, ClusterStorage.OUTCOME+"/Batch/0/0");
+		assert "QA".equals(stored.getFieldByXPath("/Batch/Status"));
+		assert stored.isParsed();
+
+		QueryItem queried = new QueryItem(item, storage);
+		Outcome outcome = queried.getOutcome("Batch", "last");
+		assert outcome != stored : "Query was given the shared Outcome and its DOM";
+		assert queried.getOutcome("Batch", "last") == outcome : "Private copy was parsed twice";
+		assert "QA".equals(queried.getOutcomeField("Batch", "last", "/Batch/Status"));
+	}
+
+	public void testQueries() throws Exception {
+		LocalQuery query = new LocalQuery(storage, 4);
+		HashSet<ItemPath> batches = runQuery(query, ItemPredicate.property("Type", "Batch"), ITEMS/2);
+		assert batches.contains(items.get(0)) && !batches.contains(items.get(1)) : "Property query returned the wrong items";
+		runQuery(query, ItemPredicate.viewpoint("Batch", "last"), ITEMS/2);
+		HashSet<ItemPath> qa = runQuery(query, ItemPredicate.all(ItemPredicate.property("Type", "Batch"),
+				ItemPredicate.outcome("Batch", "last", "/Batch/Status", "QA")), ITEMS/10);
+		assert qa.contains(items.get(10)) && !qa.contains(items.get(2)) : "Outcome query returned the wrong items";
+		runQuery(query, ItemPredicate.any(ItemPredicate.property("Type", "Sample"),
+				ItemPredicate.outcome("Batch", "last", "/Batch/Status", "QA")), ITEMS/2+ITEMS/10);
+
+		// stop reading part way through
+		QueryResult result = query.run(items.iterator(), ItemPredicate.property("Type", "Batch"));
+		for (int i=0; i<10; i++) result.next();
+		result.close();
+		assert !result.hasNext() : "Closed query still returned results";
+	}
+
+	public void testScaling() throws Exception {
+		ItemPredicate predicate = ItemPredicate.outcome("Batch", "last", "/Batch/Status", "QA");
+		long singleTime = 0;
+		for (int threads : new int[] { 1, 2, 4 }) {
+			LocalQuery query = new LocalQuery(storage, threads);
+			long then = System.currentTimeMillis();
+			runQuery(query, predicate, ITEMS/10);
+			long time = System.currentTimeMillis()-then;
+			if (threads == 1) singleTime = time;
+			Logger.msg("Outcome query over "+ITEMS+" items on "+threads+" threads took "+time+"ms"+
+					(threads > 1 ? ", speedup "+String.format("%.1f", (double)singleTime/Math.max(time, 1)) : ""));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.cristalise.kernel.entity.C2KLocalObject;
+import org.cristalise.kernel.entity.proxy.MemberSubscription;
+import org.cristalise.kernel.entity.proxy.MemberSubscriptionTrie;
+import org.cristalise.kernel.entity.proxy.ProxyObserver;
+import org.cristalise.kernel.utils.Logger;
+
+
+public class MemberSubscriptionTrieTest {
+
+	/**
+	 * @return the subscriptions concerned by the path, found by checking every one
+	 */
+	static HashSet<MemberSubscription<?>> relevant(List<MemberSubscription<C2KLocalObject>> subs, String path) {
+		HashSet<MemberSubscription<?>> result = new HashSet<MemberSubscription<?>>();
+		for (MemberSubscription<?> sub : subs)
+			if (sub.isRelevant(path)) result.add(sub);
+		return result;
+	}
+
+	public void testMemberSubscriptionTrie() throws Exception {
+		ProxyObserver<C2KLocalObject> observer = new ProxyObserver<C2KLocalObject>() {
+			@Override public void add(C2KLocalObject contents) { }
+			@Override public void remove(String id) { }
+			@Override public void control(String control, String msg) { }
+		};
+		MemberSubscriptionTrie trie = new MemberSubscriptionTrie();
+		ArrayList<MemberSubscription<C2KLocalObject>> subs = new ArrayList<MemberSubscription<C2KLocalObject>>();
+		String[] clusters = { "", "Property", "Property/", "Viewpoint/Schema", "Outcome/Schema", "Job" };
+		for (String cluster : clusters) subs.add(new MemberSubscription<C2KLocalObject>(observer, cluster, false));
+		for (int i=0; i<5000; i++)
+			subs.add(new MemberSubscription<C2KLocalObject>(observer, clusters[i%clusters.length]+"/"+(i%1000), false));
+		for (MemberSubscription<?> sub : subs) trie.add(sub);
+		assert trie.size() == subs.size();
+
+		String[] paths = { "Property/Name", "Property/", "Viewpoint/Schema/17/last", "Outcome/Schema/999/3",
+				"Outcome/Schema/5/0", "Job/12", "Workflow/workflow/domain", "/42", "" };
+		for (String path : paths) {
+			HashSet<MemberSubscription<?>> matched = new HashSet<MemberSubscription<?>>(trie.match(path));
+			assert matched.equals(relevant(subs, path)) : "Wrong subscriptions matched for '"+path+"'";
+		}
+		List<MemberSubscription<?>> outcome = trie.match("Outcome/Schema/10/0");
+		assert outcome.size() == 4 : outcome.size()+" matches"; // "", the cluster and both copies of its /10
+		assert outcome.get(0).isRelevant("") : "Shortest interest was not first";
+
+		// removing prunes the trie, leaving the other subscriptions
+		for (int i=0; i<subs.size(); i+=2) assert trie.remove(subs.get(i));
+		assert !trie.remove(subs.get(0)) : "Subscription removed twice";
+		ArrayList<MemberSubscription<C2KLocalObject>> left = new ArrayList<MemberSubscription<C2KLocalObject>>();
+		for (int i=1; i<subs.size(); i+=2) left.add(subs.get(i));
+		assert trie.size() == left.size();
+		for (String path : paths)
+			assert new HashSet<MemberSubscription<?>>(trie.match(path)).equals(relevant(left, path)) : "Wrong match after removal for "+path;
+
+		// the cost of a notification follows the matches, not the subscriptions
+		long then = System.nanoTime();
+		for (int i=0; i<100000; i++) trie.match("Job/"+(i%1000));
+		long trieTime = System.nanoTime()-then;
+		then = System.nanoTime();
+		for (int i=0; i<1000; i++) relevant(left, "Job/"+i);
+		long scanTime = (System.nanoTime()-then)*100;
+		Logger.msg("Matched 100000 paths against "+left.size()+" subscriptions in "+trieTime/1000000+"ms, where checking each would take about "+
+				scanTime/1000000+"ms");
+	}
+}
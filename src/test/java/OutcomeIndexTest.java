@@ -0,0 +1,122 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.cristalise.kernel.common.PersistencyException;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.persistency.OutcomeIndex;
+import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.Logger;
+
+
+public class OutcomeIndexTest {
+
+	ClusterStorageManager storage;
+	OutcomeIndex index;
+
+	public OutcomeIndexTest() throws Exception {
+		Properties props = FileStringUtility.loadConfigFile(OutcomeIndexTest.class.getResource("server.conf").getPath());
+		props.put("OutcomeIndex.Batch.status", "/Batch/Status");
+		props.put("OutcomeIndex.Batch.weight", "number:/Batch/@weight");
+		Gateway.init(props);
+		storage = new ClusterStorageManager(null);
+		index = storage.getOutcomeIndex();
+	}
+
+	private void storeBatch(ItemPath item, int eventId, String status, int weight) throws Exception {
+		String xml = "<Batch weight=\""+weight+"\"><Status>"+status+"</Status></Batch>";
+		storage.put(item, new Outcome(eventId, xml, "Batch", 0));
+		storage.put(item, new Viewpoint(item, "Batch", "last", 0, eventId));
+	}
+
+	public void testEqualityAndRange() throws Exception {
+		ItemPath[] items = new ItemPath[100];
+		for (int i=0; i<items.length; i++) {
+			items[i] = new ItemPath();
+			storeBatch(items[i], 0, i%4==0?"QA":"Open", i);
+		}
+		List<ItemPath> qa = index.find("Batch", "last", "status", "QA");
+		assert qa.size() == 25 : "Equality query returned "+qa.size()+" items instead of 25";
+		assert qa.contains(items[0]) && !qa.contains(items[1]) : "Equality query returned the wrong items";
+
+		// numeric range, inclusive, so 9 must not sort after 10
+		List<ItemPath> range = index.findRange("Batch", "last", "weight", "9", "20");
+		assert range.size() == 12 : "Range query returned "+range.size()+" items instead of 12";
+		assert index.findRange("Batch", "last", "weight", "95", null).size() == 5 : "Open range query failed";
+
+		// a new outcome for the view replaces the indexed value
+		storeBatch(items[1], 1, "QA", 1);
+		assert index.find("Batch", "last", "status", "QA").size() == 26 : "Index was not updated when the viewpoint moved";
+		assert index.find("Batch", "last", "status", "Open").size() == 74 : "Old value was not removed from the index";
+
+		storage.remove(items[0], "ViewPoint/Batch/last");
+		assert !index.find("Batch", "last", "status", "QA").contains(items[0]) : "Removed viewpoint is still indexed";
+		assert index.find("Batch", "other", "status", "QA").isEmpty() : "Unwritten view returned results";
+	}
+
+	public void testRebuild() throws Exception {
+		ArrayList<Path> items = new ArrayList<Path>();
+		for (int i=0; i<20; i++) {
+			ItemPath item = new ItemPath();
+			items.add(item);
+			storeBatch(item, 0, i%2==0?"Rebuilt":"Open", i);
+		}
+		// a fresh index, as after a restart
+		OutcomeIndex restarted = new OutcomeIndex(Gateway.getProperties());
+		restarted.setRebuilding();
+		assert !restarted.isReady() : "Index was ready before its rebuild";
+		try {
+			restarted.find("Batch", "last", "status", "Rebuilt");
+			assert false : "Index answered a query before its rebuild";
+		} catch (PersistencyException ex) { }
+
+		// an outcome indexed while the rebuild is pending must not be overwritten by it
+		restarted.viewpointStored((ItemPath)items.get(0), new Viewpoint((ItemPath)items.get(0), "Batch", "last", 0, 1),
+				new Outcome(1, "<Batch weight=\"0\"><Status>Live</Status></Batch>", "Batch", 0));
+
+		int views = restarted.rebuild(items.iterator(), storage);
+		assert views == 19 : "Rebuild indexed "+views+" viewpoints instead of 19";
+		assert restarted.isReady() : "Index was not ready after its rebuild";
+		assert restarted.find("Batch", "last", "status", "Rebuilt").size() == 9 : "Rebuilt index returned the wrong items";
+		assert restarted.find("Batch", "last", "status", "Live").size() == 1 : "Rebuild overwrote a newer value";
+		assert restarted.findRange("Batch", "last", "weight", "10", null).size() == 10 : "Rebuilt numeric index returned the wrong items";
+	}
+
+	public void testIndexSpeed() throws Exception {
+		int count = 20000;
+		for (int i=0; i<count; i++)
+			storeBatch(new ItemPath(), 0, "S"+(i%100), i);
+		long then = System.currentTimeMillis();
+		int found = 0;
+		for (int i=0; i<1000; i++)
+			found += index.find("Batch", "last", "status", "S"+(i%100)).size();
+		long now = System.currentTimeMillis();
+		assert found == 1000*count/100 : "Wrong number of items found: "+found;
+		Logger.msg("1000 index queries over "+count+" items took "+(now-then)+"ms");
+	}
+}
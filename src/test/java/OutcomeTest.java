@@ -18,8 +18,21 @@
  *
  * http://www.fsf.org/licensing/licenses/lgpl.html
  */
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cristalise.kernel.common.InvalidDataException;
 import org.cristalise.kernel.persistency.outcome.Outcome;
+import org.cristalise.kernel.persistency.outcome.OutcomeValidator;
+import org.cristalise.kernel.persistency.outcome.Schema;
 import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.Logger;
+import org.cristalise.kernel.utils.XmlElementParser;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -28,9 +41,10 @@ import org.w3c.dom.NodeList;
 public class OutcomeTest {
 
 	Outcome testOc;
+	String ocData;
 	
 	public OutcomeTest() throws Exception {
-		String ocData = FileStringUtility.url2String(OutcomeTest.class.getResource("outcomeTest.xml"));
+		ocData = FileStringUtility.url2String(OutcomeTest.class.getResource("outcomeTest.xml"));
 		testOc = new Outcome("/Outcome/Test/0/0", ocData); 
 	}
 
@@ -54,4 +68,132 @@ public class OutcomeTest {
 		assert field3nodes.getLength()==2 : "getNodesByXPath returned wrong number of nodes";
 		
 	}
+
+	public void testLazyParsing() throws Exception {
+		Outcome oc = new Outcome("/Outcome/Test/0/1", ocData);
+		assert !oc.isParsed() : "Outcome was parsed on construction";
+		assert oc.getData() == ocData : "Unparsed outcome did not return its original data";
+		assert "Field1contents".equals(oc.getField("Field1")) : "getField() failed on lazily parsed outcome";
+		assert oc.isParsed() : "Outcome was not parsed by getField()";
+		assert oc.getData() == ocData : "Read-only access discarded the original data";
+		oc.setFieldByXPath("//Field1", "Changed");
+		assert oc.getData().contains("<Field1>Changed</Field1>") : "Modified outcome did not serialize its DOM";
+	}
+
+	public void testMalformedRejected() throws Exception {
+		String malformed = ocData.replace("</Field1>", "");
+		try {
+			new Outcome("/Outcome/Test/0/2", malformed);
+			assert false : "Malformed outcome was accepted by the constructor";
+		} catch (InvalidDataException ex) { }
+		try {
+			new Outcome(2, malformed, "Test", 0);
+			assert false : "Malformed outcome was accepted by the constructor";
+		} catch (InvalidDataException ex) { }
+		Outcome oc = new Outcome("/Outcome/Test/0/2", ocData);
+		try {
+			oc.setData(malformed);
+			assert false : "Malformed outcome was accepted by setData()";
+		} catch (InvalidDataException ex) { }
+		assert oc.getData() == ocData : "Rejected data replaced the outcome's data";
+		assert !oc.isParsed() : "Well-formedness check built the DOM";
+	}
+
+	public void testConcurrentParsing() throws Exception {
+		final int threads = 8, iterations = 500;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		long then = System.currentTimeMillis();
+		for (int i=0; i<threads; i++) {
+			results.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int done = 0;
+					for (int j=0; j<iterations; j++) {
+						Outcome oc = new Outcome("/Outcome/Test/0/"+j, ocData);
+						assert "Field1contents".equals(oc.getFieldByXPath("//Field1")) : "getFieldByXPath failed under concurrency";
+						assert "attribute".equals(oc.getNodeByXPath("//Field2/@attr").getNodeValue()) : "Attribute XPath failed under concurrency";
+						assert oc.getNodesByXPath("//Field3").getLength()==2 : "getNodesByXPath failed under concurrency";
+						oc.setFieldByXPath("//Field2", "Thread"+j);
+						assert ("Thread"+j).equals(oc.getFieldByXPath("//Field2")) : "setFieldByXPath failed under concurrency";
+						done++;
+					}
+					return done;
+				}
+			}));
+		}
+		int total = 0;
+		for (Future<Integer> result : results) total += result.get();
+		pool.shutdown();
+		long now = System.currentTimeMillis();
+		assert total == threads*iterations : "Not all parses completed";
+		Logger.msg(total+" outcome parses with 4 XPath queries each on "+threads+" threads took "+(now-then)+"ms");
+	}
+
+	public void testConcurrentValidation() throws Exception {
+		final Schema schema = new Schema("TestOutcome", 0, FileStringUtility.url2String(OutcomeTest.class.getResource("outcomeTest.xsd")));
+		final String invalid = ocData.replace("<Field1>Field1contents</Field1>", "");
+		final int threads = 8, iterations = 200;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		long then = System.currentTimeMillis();
+		for (int i=0; i<threads; i++) {
+			results.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int done = 0;
+					for (int j=0; j<iterations; j++) {
+						// a new validator each time, which should reuse the cached grammar
+						OutcomeValidator validator = OutcomeValidator.getValidator(schema);
+						String errors = validator.validate(ocData);
+						assert errors.length() == 0 : "Valid outcome failed validation: "+errors;
+						assert validator.validate(invalid).length() > 0 : "Invalid outcome passed validation";
+						done++;
+					}
+					return done;
+				}
+			}));
+		}
+		int total = 0;
+		for (Future<Integer> result : results) total += result.get();
+		pool.shutdown();
+		long now = System.currentTimeMillis();
+		assert total == threads*iterations : "Not all validations completed";
+		Logger.msg(total+" validator creations with two validations each on "+threads+" threads took "+(now-then)+"ms");
+
+		OutcomeValidator.invalidate("TestOutcome", 0);
+		assert OutcomeValidator.getValidator(schema).validate(ocData).length() == 0 : "Validation failed after grammar invalidation";
+	}
+
+	public void testStreamingValidation() throws Exception {
+		Schema schema = new Schema("TestOutcome", 0, FileStringUtility.url2String(OutcomeTest.class.getResource("outcomeTest.xsd")));
+		OutcomeValidator validator = OutcomeValidator.getValidator(schema);
+		InputStream stream = OutcomeTest.class.getResourceAsStream("outcomeTest.xml");
+		try {
+			String errors = validator.validate(stream);
+			assert errors.length() == 0 : "Streamed outcome failed validation: "+errors;
+		} finally {
+			stream.close();
+		}
+		// a large outcome, validated without building a DOM
+		StringBuilder big = new StringBuilder("<TestOutcome><Field1>big</Field1><Field2 attr=\"a\"/>");
+		for (int i=0; i<200000; i++) big.append("<Field3>repeating element ").append(i).append("</Field3>");
+		big.append("</TestOutcome>");
+		long then = System.currentTimeMillis();
+		String errors = validator.validate(new StringReader(big.toString()));
+		assert errors.length() == 0 : "Large outcome failed validation: "+errors;
+		Logger.msg("Streaming validation of "+big.length()+" chars took "+(System.currentTimeMillis()-then)+"ms");
+		assert validator.validate(new StringReader("<TestOutcome><Field2/></TestOutcome>")).length() > 0 : "Invalid streamed outcome passed validation";
+	}
+
+	public void testElementParser() throws Exception {
+		String[] field1 = XmlElementParser.parse(ocData, "TestOutcome/Field1");
+		assert field1.length == 1 && field1[0].equals("Field1contents") : "Element path failed";
+		assert XmlElementParser.parse(ocData, "Other/Field1").length == 0 : "Path matched the wrong parent";
+		String[][] values = XmlElementParser.parse(ocData, new String[] { "Field2/attr", "Field3", "TestOutcome/Field3", "Field1" });
+		assert values[0].length == 1 && values[0][0].equals("attribute") : "Attribute path failed";
+		assert values[1].length == 2 && values[1][0].equals("repeating") && values[1][1].equals("element") : "Repeating element path failed";
+		assert values[2].length == 2 : "Rooted repeating element path failed";
+		assert values[3].length == 1 && values[3][0].equals("Field1contents") : "Single step path failed";
+	}
 }
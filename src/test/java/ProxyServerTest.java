@@ -0,0 +1,708 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.Properties;
+
+import org.cristalise.kernel.entity.proxy.ProxyClientQueue;
+import org.cristalise.kernel.entity.proxy.ProxyEventDispatcher;
+import org.cristalise.kernel.entity.proxy.ProxyFrameCodec;
+import org.cristalise.kernel.entity.proxy.ProxyFrameReader;
+import org.cristalise.kernel.entity.proxy.ProxyClientQueue.OverflowPolicy;
+import org.cristalise.kernel.entity.proxy.ProxyMessage;
+import org.cristalise.kernel.entity.proxy.ProxyMessageBatch;
+import org.cristalise.kernel.entity.proxy.ProxyServer;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.TransactionManager;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.process.KernelExecutors;
+import org.cristalise.kernel.process.KernelExecutors.ManagedExecutor;
+import org.cristalise.kernel.process.KernelExecutors.Rejection;
+import org.cristalise.kernel.property.Property;
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.Logger;
+
+
+public class ProxyServerTest {
+
+	static final int CLIENTS = 2000;
+	static final int ITEMS = 10;
+
+	public ProxyServerTest() throws Exception {
+		Properties props = FileStringUtility.loadConfigFile(ProxyServerTest.class.getResource("server.conf").getPath());
+		props.put("ItemServer.Proxy.ioThreads", "2");
+		Gateway.init(props);
+	}
+
+	static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	/**
+	 * A client talking the line protocol with blocking streams, as ProxyServerConnection does
+	 */
+	static class LineClient {
+		Socket socket;
+		PrintWriter out;
+		BufferedReader in;
+
+		LineClient(int port) throws Exception {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setSoTimeout(10000);
+			out = new PrintWriter(socket.getOutputStream(), true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+		}
+
+		void send(ProxyMessage message) {
+			out.println(message);
+		}
+
+		String read() throws Exception {
+			return in.readLine();
+		}
+
+		void close() throws Exception {
+			socket.close();
+		}
+	}
+
+	static void waitForClients(ProxyServer server, int count) throws Exception {
+		for (int i=0; i<200 && server.getClientCount() != count; i++) Thread.sleep(50);
+		assert server.getClientCount() == count : "Expected "+count+" proxy clients, server has "+server.getClientCount();
+	}
+
+	public void testThousandsOfConnections() throws Exception {
+		ProxyServer server = new ProxyServer("test", freePort());
+		ArrayList<LineClient> clients = new ArrayList<LineClient>();
+		try {
+			ItemPath[] items = new ItemPath[ITEMS];
+			for (int i=0; i<ITEMS; i++) items[i] = new ItemPath();
+
+			long start = System.currentTimeMillis();
+			for (int i=0; i<CLIENTS; i++) {
+				LineClient client = new LineClient(server.getPort());
+				client.send(new ProxyMessage(items[i % ITEMS], ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+				client.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+				clients.add(client);
+			}
+			// the ping is answered after the subscription has been processed
+			for (LineClient client : clients) {
+				String reply = client.read();
+				assert "tree:ping".equals(reply) : "Unexpected ping reply "+reply;
+			}
+			Logger.msg("Connected and subscribed "+CLIENTS+" clients in "+(System.currentTimeMillis()-start)+"ms");
+			waitForClients(server, CLIENTS);
+
+			// item event reaches only the subscribers, tree event reaches everyone
+			server.sendProxyEvent(new ProxyMessage(items[3], "Property/Name", ProxyMessage.ADDED));
+			server.sendProxyEvent(new ProxyMessage(null, "/test/proxy", ProxyMessage.DELETED));
+			int received = 0;
+			for (int i=0; i<CLIENTS; i++) {
+				LineClient client = clients.get(i);
+				String line = client.read();
+				if (i % ITEMS == 3) {
+					assert (items[3].getUUID()+":Property/Name").equals(line) : "Subscriber "+i+" received "+line;
+					received++;
+					line = client.read();
+				}
+				assert "tree:-/test/proxy".equals(line) : "Client "+i+" received "+line;
+			}
+			assert received == CLIENTS / ITEMS : "Only "+received+" subscribers notified";
+
+			// unsubscribed clients are no longer notified
+			LineClient first = clients.get(3);
+			first.send(new ProxyMessage(items[3], ProxyMessage.DELPATH, ProxyMessage.ADDED));
+			first.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(first.read());
+			server.sendProxyEvent(new ProxyMessage(items[3], "Property/Type", ProxyMessage.ADDED));
+			assert (items[3].getUUID()+":Property/Type").equals(clients.get(13).read());
+			first.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(first.read()) : "Unsubscribed client still received item events";
+
+			// closed and departing clients are unregistered
+			for (int i=0; i<CLIENTS/2; i++) {
+				if (i % 2 == 0) clients.get(i).close();
+				else clients.get(i).send(new ProxyMessage(null, ProxyMessage.BYEPATH, ProxyMessage.ADDED));
+			}
+			waitForClients(server, CLIENTS - CLIENTS/2);
+		} finally {
+			for (LineClient client : clients) client.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testTreeMessagesWhileConnecting() throws Exception {
+		final ProxyServer server = new ProxyServer("test", freePort());
+		final CountDownLatch stop = new CountDownLatch(1);
+		ArrayList<LineClient> clients = new ArrayList<LineClient>();
+		// tree changes go to every registered client, so they race with clients still being set up
+		Thread flood = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0; stop.getCount() > 0; i++) {
+						server.sendProxyEvent(new ProxyMessage(null, "/test/connecting/"+i, ProxyMessage.ADDED));
+						if (i % 50 == 0) Thread.sleep(1);
+					}
+				} catch (InterruptedException e) { }
+			}
+		};
+		flood.start();
+		try {
+			for (int i=0; i<300; i++) {
+				LineClient client = new LineClient(server.getPort());
+				client.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+				clients.add(client);
+			}
+			stop.countDown();
+			flood.join();
+			// every worker must still be serving its clients
+			for (int i=0; i<clients.size(); i++) {
+				String line;
+				do {
+					line = clients.get(i).read();
+					assert line != null : "Client "+i+" was disconnected";
+				} while (!"tree:ping".equals(line));
+			}
+			waitForClients(server, clients.size());
+			server.sendProxyEvent(new ProxyMessage(null, "/test/connected", ProxyMessage.DELETED));
+			for (int i=0; i<clients.size(); i++) {
+				String line;
+				do {
+					line = clients.get(i).read();
+					assert line != null : "Client "+i+" was disconnected";
+				} while (!"tree:-/test/connected".equals(line));
+			}
+		} catch (SocketTimeoutException ex) {
+			assert false : "A client stopped being served while others connected";
+		} finally {
+			stop.countDown();
+			for (LineClient client : clients) client.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testSlowReaderDoesNotBlockOthers() throws Exception {
+		ProxyServer server = new ProxyServer("test", freePort());
+		LineClient stalled = new LineClient(server.getPort());
+		LineClient active = new LineClient(server.getPort());
+		try {
+			waitForClients(server, 2);
+			// the stalled client never reads; send far more than its socket buffers can hold
+			StringBuilder padding = new StringBuilder();
+			for (int i=0; i<50; i++) padding.append("/padding");
+			for (int i=0; i<20000; i+=1000) {
+				for (int j=i; j<i+1000; j++)
+					server.sendProxyEvent(new ProxyMessage(null, "/test/flood/"+j+padding, ProxyMessage.ADDED));
+				for (int j=i; j<i+1000; j++) {
+					String line = active.read();
+					assert ("tree:/test/flood/"+j+padding).equals(line) : "Active client received "+line;
+				}
+			}
+			active.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(active.read());
+		} catch (SocketTimeoutException ex) {
+			assert false : "Active client was held up by the stalled one";
+		} finally {
+			stalled.close();
+			active.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testSubscriptionIndex() throws Exception {
+		ProxyServer server = new ProxyServer("test", freePort());
+		LineClient wildcard = new LineClient(server.getPort());
+		LineClient single = new LineClient(server.getPort());
+		try {
+			ItemPath[] items = new ItemPath[1000];
+			for (int i=0; i<items.length; i++) {
+				items[i] = new ItemPath();
+				single.send(new ProxyMessage(items[i], ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+			}
+			wildcard.send(new ProxyMessage(null, ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+			wildcard.send(new ProxyMessage(items[0], ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+			wildcard.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			single.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(wildcard.read());
+			assert "tree:ping".equals(single.read());
+			assert server.getSubscribedItemCount() == items.length : "Index holds "+server.getSubscribedItemCount()+" items";
+
+			// the wildcard subscriber gets everything, and only once even if also subscribed to the item
+			ItemPath other = new ItemPath();
+			server.sendProxyEvent(new ProxyMessage(items[0], "Property/Name", ProxyMessage.ADDED));
+			server.sendProxyEvent(new ProxyMessage(other, "Property/Name", ProxyMessage.ADDED));
+			server.sendProxyEvent(new ProxyMessage(items[999], "Property/Name", ProxyMessage.ADDED));
+			assert (items[0].getUUID()+":Property/Name").equals(wildcard.read());
+			assert (other.getUUID()+":Property/Name").equals(wildcard.read());
+			assert (items[999].getUUID()+":Property/Name").equals(wildcard.read());
+			assert (items[0].getUUID()+":Property/Name").equals(single.read());
+			assert (items[999].getUUID()+":Property/Name").equals(single.read());
+
+			// a disconnecting client leaves nothing behind in the index
+			single.close();
+			waitForClients(server, 1);
+			assert server.getSubscribedItemCount() == 1 : "Index still holds "+server.getSubscribedItemCount()+" items";
+			wildcard.send(new ProxyMessage(items[0], ProxyMessage.DELPATH, ProxyMessage.ADDED));
+			wildcard.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(wildcard.read());
+			assert server.getSubscribedItemCount() == 0 : "Index still holds "+server.getSubscribedItemCount()+" items";
+		} finally {
+			wildcard.close();
+			server.shutdownServer();
+		}
+	}
+
+	static String padding(int length) {
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < length) padding.append("/padding");
+		return padding.toString();
+	}
+
+	public void testQueuePolicies() throws Exception {
+		ItemPath item = new ItemPath();
+
+		ProxyClientQueue disconnect = new ProxyClientQueue(3, OverflowPolicy.DISCONNECT);
+		for (int i=0; i<3; i++) assert disconnect.offer(new ProxyMessage(item, "Property/P"+i, ProxyMessage.ADDED));
+		assert !disconnect.offer(new ProxyMessage(item, "Property/P3", ProxyMessage.ADDED)) : "Overflow did not request disconnection";
+
+		// repeated changes to a cluster merge into a refresh of that cluster, single changes are kept as they are
+		ProxyClientQueue coalesce = new ProxyClientQueue(4, OverflowPolicy.COALESCE);
+		coalesce.offer(new ProxyMessage(item, "Property/Name", ProxyMessage.ADDED));
+		coalesce.offer(new ProxyMessage(item, "Property/Type", ProxyMessage.DELETED));
+		coalesce.offer(new ProxyMessage(null, "/test/a", ProxyMessage.ADDED));
+		coalesce.offer(new ProxyMessage(item, "Workflow/workflow", ProxyMessage.ADDED));
+		assert coalesce.offer(new ProxyMessage(item, "AuditTrail/1", ProxyMessage.ADDED));
+		assert coalesce.size() == 4 : "Coalesced queue holds "+coalesce.size();
+		assert coalesce.poll().toString().equals(item.getUUID()+":Property");
+		assert coalesce.poll().toString().equals("tree:/test/a");
+		assert coalesce.poll().toString().equals(item.getUUID()+":Workflow/workflow");
+		assert coalesce.poll().toString().equals(item.getUUID()+":AuditTrail/1");
+		assert coalesce.poll() == null;
+
+		// overflow drops the queue; refreshes are released once the client has caught up
+		ProxyClientQueue resync = new ProxyClientQueue(3, OverflowPolicy.RESYNC);
+		resync.offer(new ProxyMessage(item, "Property/Name", ProxyMessage.ADDED));
+		resync.offer(new ProxyMessage(item, "Collection/Layout/last", ProxyMessage.ADDED));
+		resync.offer(new ProxyMessage(null, "/test/a", ProxyMessage.DELETED));
+		resync.offer(new ProxyMessage(item, "Property/Type", ProxyMessage.ADDED));
+		assert resync.isResyncing();
+		for (int i=0; i<1000; i++) resync.offer(new ProxyMessage(item, "Property/P"+i, ProxyMessage.ADDED));
+		assert resync.size() == 3 : "Resync state holds "+resync.size()+" entries";
+		assert resync.poll().toString().equals(item.getUUID()+":Collection");
+		assert resync.poll().toString().equals("tree:-/test/a");
+		assert resync.poll().toString().equals(item.getUUID()+":Property");
+		assert resync.poll() == null;
+		assert !resync.isResyncing();
+	}
+
+	public void testStalledClientIsResynced() throws Exception {
+		Gateway.getProperties().put("ItemServer.Proxy.queueLimit", "100");
+		ProxyServer server = new ProxyServer("test", freePort());
+		LineClient stalled = new LineClient(server.getPort());
+		LineClient active = new LineClient(server.getPort());
+		try {
+			ItemPath item = new ItemPath();
+			for (LineClient client : new LineClient[] { stalled, active }) {
+				client.send(new ProxyMessage(item, ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+				client.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+				assert "tree:ping".equals(client.read());
+			}
+			long overflows = KernelStats.proxy.getQueueOverflows();
+			String padding = padding(4000);
+			int count = 5000;
+			// send in rounds the active client keeps up with, while the stalled one falls behind
+			for (int i=0; i<count; i+=50) {
+				for (int j=i; j<i+50; j++)
+					server.sendProxyEvent(new ProxyMessage(item, "Property/"+j+padding, ProxyMessage.ADDED));
+				for (int j=i; j<i+50; j++)
+					assert (item.getUUID()+":Property/"+j+padding).equals(active.read()) : "Active client missed message "+j;
+			}
+
+			assert KernelStats.proxy.getQueueOverflows() > overflows : "Stalled client queue never overflowed";
+			assert server.getMaxClientQueueDepth() <= 100 : "Client queue grew to "+server.getMaxClientQueueDepth();
+
+			// once it reads again, the stalled client gets what its socket held and refreshes for what was dropped,
+			// ending either with a refresh or with the last change if it caught up after its last resync
+			stalled.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			String line, last = null; int received = 0; boolean refreshed = false;
+			while (!(line = stalled.read()).equals("tree:ping")) {
+				last = line;
+				refreshed |= line.equals(item.getUUID()+":Property");
+				received++;
+			}
+			assert refreshed : "Stalled client was not sent a refresh";
+			assert last.equals(item.getUUID()+":Property") || last.equals(item.getUUID()+":Property/"+(count-1)+padding) :
+				"Stalled client did not end up in sync: "+last;
+			assert received < count : "Stalled client received all "+received+" messages";
+			assert server.getClientQueueDepth() == 0 : "Client queues still hold "+server.getClientQueueDepth()+" messages, received "+received;
+		} finally {
+			Gateway.getProperties().remove("ItemServer.Proxy.queueLimit");
+			stalled.close();
+			active.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testStalledClientIsDisconnected() throws Exception {
+		Gateway.getProperties().put("ItemServer.Proxy.queueLimit", "100");
+		Gateway.getProperties().put("ItemServer.Proxy.overflowPolicy", "DISCONNECT");
+		ProxyServer server = new ProxyServer("test", freePort());
+		LineClient stalled = new LineClient(server.getPort());
+		LineClient active = new LineClient(server.getPort());
+		try {
+			waitForClients(server, 2);
+			long disconnected = KernelStats.proxy.getSlowClientsDisconnected();
+			String padding = padding(4000);
+			for (int i=0; i<5000; i+=50) {
+				for (int j=i; j<i+50; j++)
+					server.sendProxyEvent(new ProxyMessage(null, "/test/flood/"+j+padding, ProxyMessage.ADDED));
+				for (int j=i; j<i+50; j++)
+					assert ("tree:/test/flood/"+j+padding).equals(active.read()) : "Active client missed message "+j;
+			}
+			waitForClients(server, 1);
+			assert KernelStats.proxy.getSlowClientsDisconnected() == disconnected + 1;
+			String line;
+			do { line = stalled.read(); } while (line != null);
+		} finally {
+			Gateway.getProperties().remove("ItemServer.Proxy.queueLimit");
+			Gateway.getProperties().remove("ItemServer.Proxy.overflowPolicy");
+			stalled.close();
+			active.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testCommitBatching() throws Exception {
+		TransactionManager storage = new TransactionManager(null);
+		long events = KernelStats.proxy.getBatchedEvents(), messages = KernelStats.proxy.getBatchedMessages();
+		int commits = 1000, changesPerCommit = 0;
+		long start = System.currentTimeMillis();
+		for (int i=0; i<commits; i++) {
+			// the writes of a typical activity execution
+			ItemPath item = new ItemPath();
+			Object locker = new Object();
+			storage.put(item, new Property("State", "Step "+i), locker);
+			storage.put(item, new Property("Modified", String.valueOf(i)), locker);
+			storage.put(item, new Viewpoint(item, "Batch", "last", 0, i), locker);
+			storage.put(item, new Viewpoint(item, "Batch", String.valueOf(i), 0, i), locker);
+			storage.put(item, new Property("Job", "next"), locker);
+			storage.remove(item, "Property/Job", locker);
+			storage.commit(locker);
+			if (i == 0) changesPerCommit = (int)(KernelStats.proxy.getBatchedEvents() - events);
+		}
+		events = KernelStats.proxy.getBatchedEvents() - events;
+		messages = KernelStats.proxy.getBatchedMessages() - messages;
+		Logger.msg(commits+" commits in "+(System.currentTimeMillis()-start)+"ms generated "+events+" proxy messages, queued as "+
+				commits+" envelopes (reduction of "+(events-commits)*100/events+"% in queue entries and socket writes)");
+		assert changesPerCommit >= 5 : "Only "+changesPerCommit+" changes per commit";
+		assert events == (long)commits*changesPerCommit : events+" events recorded";
+		assert messages == events : "Distinct paths were merged";
+
+		// a batch is delivered as one envelope, in order, with repeated paths reduced to the last change
+		ProxyServer server = new ProxyServer("test", freePort());
+		LineClient client = new LineClient(server.getPort());
+		try {
+			ItemPath item = new ItemPath();
+			client.send(new ProxyMessage(item, ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+			client.send(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(client.read());
+			ProxyMessageBatch batch = new ProxyMessageBatch();
+			batch.add(new ProxyMessage(item, "Property/Job", ProxyMessage.ADDED));
+			batch.add(new ProxyMessage(item, "AuditTrail/0", ProxyMessage.ADDED));
+			batch.add(new ProxyMessage(item, "ViewPoint/Batch/last", ProxyMessage.ADDED));
+			batch.add(new ProxyMessage(item, "Property/Job", ProxyMessage.DELETED));
+			assert batch.size() == 3 && batch.getEventCount() == 4;
+			long envelopes = KernelStats.proxy.getEnvelopesQueued();
+			server.sendProxyEvents(batch);
+			assert KernelStats.proxy.getEnvelopesQueued() == envelopes + 1;
+			assert (item.getUUID()+":AuditTrail/0").equals(client.read());
+			assert (item.getUUID()+":ViewPoint/Batch/last").equals(client.read());
+			assert (item.getUUID()+":-Property/Job").equals(client.read());
+		} finally {
+			client.close();
+			server.shutdownServer();
+		}
+	}
+
+	static ArrayList<ProxyMessage> sampleCommit(ItemPath item, int eventId) {
+		ArrayList<ProxyMessage> commit = new ArrayList<ProxyMessage>();
+		commit.add(new ProxyMessage(item, "AuditTrail/"+eventId, ProxyMessage.ADDED));
+		commit.add(new ProxyMessage(item, "Outcome/PatientDetails/0/"+eventId, ProxyMessage.ADDED));
+		commit.add(new ProxyMessage(item, "ViewPoint/PatientDetails/last", ProxyMessage.ADDED));
+		commit.add(new ProxyMessage(item, "Workflow/workflow", ProxyMessage.ADDED));
+		commit.add(new ProxyMessage(item, "Job/"+eventId, ProxyMessage.DELETED));
+		commit.add(new ProxyMessage(item, "Job/"+(eventId+1), ProxyMessage.ADDED));
+		return commit;
+	}
+
+	static void assertSame(List<ProxyMessage> expected, List<ProxyMessage> actual) {
+		assert expected.size() == actual.size() : "Expected "+expected.size()+" messages, got "+actual.size();
+		for (int i=0; i<expected.size(); i++)
+			assert expected.get(i).toString().equals(actual.get(i).toString()) : "Expected "+expected.get(i)+" got "+actual.get(i);
+	}
+
+	public void testBinaryFrames() throws Exception {
+		ProxyFrameCodec.Encoder encoder = new ProxyFrameCodec.Encoder();
+		ProxyFrameCodec.Decoder decoder = new ProxyFrameCodec.Decoder();
+		ItemPath[] items = new ItemPath[100];
+		for (int i=0; i<items.length; i++) items[i] = new ItemPath();
+		ArrayList<ArrayList<ProxyMessage>> commits = new ArrayList<ArrayList<ProxyMessage>>();
+		for (int i=0; i<20000; i++) commits.add(sampleCommit(items[i % items.length], i));
+		commits.get(0).add(new ProxyMessage(null, "/domain/Patients/p1", ProxyMessage.DELETED));
+		commits.get(0).add(new ProxyMessage(items[0], "Name", ProxyMessage.ADDED));
+
+		// round trip, with the path table carried across frames
+		for (ArrayList<ProxyMessage> commit : commits) {
+			ByteBuffer frame = encoder.encode(commit);
+			assert frame.getInt(0) == frame.limit() - 4;
+			assertSame(commit, decoder.decode(Arrays.copyOfRange(frame.array(), 4, frame.limit())));
+		}
+
+		long textBytes = 0, binaryBytes = 0, events = 0;
+		for (int round=0; round<3; round++) { // warm up, then measure
+			ProxyFrameCodec.Encoder benchEncoder = new ProxyFrameCodec.Encoder();
+			ProxyFrameCodec.Decoder benchDecoder = new ProxyFrameCodec.Decoder();
+			ArrayList<String> lines = new ArrayList<String>();
+			ArrayList<byte[]> frames = new ArrayList<byte[]>();
+			textBytes = 0; binaryBytes = 0; events = 0;
+
+			long start = System.nanoTime();
+			for (ArrayList<ProxyMessage> commit : commits)
+				for (ProxyMessage message : commit) {
+					String line = message.toString();
+					lines.add(line);
+					textBytes += line.getBytes("UTF-8").length + 1;
+					events++;
+				}
+			long textEncode = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (String line : lines) new ProxyMessage(line);
+			long textDecode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (ArrayList<ProxyMessage> commit : commits) {
+				ByteBuffer frame = benchEncoder.encode(commit);
+				frames.add(Arrays.copyOfRange(frame.array(), 4, frame.limit()));
+				binaryBytes += frame.limit();
+			}
+			long binaryEncode = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (byte[] frame : frames) benchDecoder.decode(frame);
+			long binaryDecode = System.nanoTime() - start;
+
+			if (round == 2) {
+				Logger.msg("Proxy frames, "+events+" events in batches of "+commits.get(1).size()+":");
+				Logger.msg(String.format("  text:   %.1f bytes/event, encode %d ns/event, decode %d ns/event",
+						(double)textBytes/events, textEncode/events, textDecode/events));
+				Logger.msg(String.format("  binary: %.1f bytes/event, encode %d ns/event, decode %d ns/event",
+						(double)binaryBytes/events, binaryEncode/events, binaryDecode/events));
+			}
+		}
+		assert binaryBytes * 2 < textBytes : "Binary frames ("+binaryBytes+" bytes) are not much smaller than text ("+textBytes+" bytes)";
+
+		// negotiated over a socket: ack in text, then frames
+		ProxyServer server = new ProxyServer("test", freePort());
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			ProxyFrameReader reader = new ProxyFrameReader(new BufferedInputStream(socket.getInputStream()));
+			out.println(new ProxyMessage(items[0], ProxyMessage.ADDPATH, ProxyMessage.ADDED));
+			out.println(new ProxyMessage(null, ProxyMessage.BINARYPATH, ProxyMessage.ADDED));
+			assert reader.read().isEmpty() && reader.isBinary() : "Server did not acknowledge binary frames";
+
+			ProxyMessageBatch batch = new ProxyMessageBatch();
+			for (ProxyMessage message : commits.get(0)) batch.add(message);
+			server.sendProxyEvents(batch);
+			ArrayList<ProxyMessage> received = new ArrayList<ProxyMessage>();
+			while (received.size() < commits.get(0).size()) received.addAll(reader.read());
+			assertSame(commits.get(0), received);
+
+			out.println(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(reader.read().get(0).toString());
+		} finally {
+			socket.close();
+			server.shutdownServer();
+		}
+
+		// a server with binary frames disabled leaves the client on text
+		Gateway.getProperties().put("ItemServer.Proxy.binary", "false");
+		server = new ProxyServer("test", freePort());
+		socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			ProxyFrameReader reader = new ProxyFrameReader(new BufferedInputStream(socket.getInputStream()));
+			out.println(new ProxyMessage(null, ProxyMessage.BINARYPATH, ProxyMessage.ADDED));
+			out.println(new ProxyMessage(null, ProxyMessage.PINGPATH, ProxyMessage.ADDED));
+			assert "tree:ping".equals(reader.read().get(0).toString());
+			assert !reader.isBinary();
+		} finally {
+			Gateway.getProperties().remove("ItemServer.Proxy.binary");
+			socket.close();
+			server.shutdownServer();
+		}
+	}
+
+	public void testEventDispatcher() throws Exception {
+		ManagedExecutor pool = KernelExecutors.newExecutor("Test Dispatcher", 4, 100, Rejection.ABORT, true, false);
+		ProxyEventDispatcher dispatcher = new ProxyEventDispatcher(pool, 100);
+		try {
+			// events of one item are processed in order
+			final ArrayList<List<Integer>> seen = new ArrayList<List<Integer>>();
+			long dispatched = KernelStats.proxy.getEventsDispatched();
+			for (int key=0; key<5; key++) seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+			for (int i=0; i<2000; i++) {
+				final int key = i % 5, seq = i / 5;
+				dispatcher.dispatch("item"+key, new Runnable() {
+					@Override
+					public void run() { seen.get(key).add(seq); }
+				});
+			}
+			for (int i=0; i<200 && dispatcher.getQueueDepth() > 0; i++) Thread.sleep(20);
+			for (List<Integer> list : seen) {
+				assert list.size() == 400 : "Only "+list.size()+" events processed";
+				for (int i=0; i<400; i++) assert list.get(i) == i : "Event "+list.get(i)+" processed in position "+i;
+			}
+			assert KernelStats.proxy.getEventsDispatched() - dispatched == 2000;
+
+			// a slow observer only holds up its own item
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch otherDone = new CountDownLatch(50);
+			dispatcher.dispatch("slow", new Runnable() {
+				@Override
+				public void run() {
+					try { release.await(); } catch (InterruptedException e) { }
+				}
+			});
+			for (int i=0; i<50; i++)
+				dispatcher.dispatch("other"+(i%3), new Runnable() {
+					@Override
+					public void run() { otherDone.countDown(); }
+				});
+			assert otherDone.await(10, TimeUnit.SECONDS) : "Events of other items waited for the slow observer";
+
+			// the dispatcher is bounded: once the limit is reached, the reader is held back
+			for (int i=0; i<99; i++)
+				dispatcher.dispatch("slow", new Runnable() { @Override public void run() { } });
+			assert dispatcher.getQueueDepth() == 100 : "Queue depth "+dispatcher.getQueueDepth();
+			final CountDownLatch dispatchedOverLimit = new CountDownLatch(1);
+			final ProxyEventDispatcher full = dispatcher;
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					try {
+						full.dispatch("other", new Runnable() { @Override public void run() { } });
+						dispatchedOverLimit.countDown();
+					} catch (InterruptedException e) { }
+				}
+			};
+			reader.start();
+			assert !dispatchedOverLimit.await(200, TimeUnit.MILLISECONDS) : "Dispatch over the limit did not block";
+			release.countDown();
+			assert dispatchedOverLimit.await(10, TimeUnit.SECONDS) : "Blocked dispatch was not released";
+			assert KernelStats.proxy.getDispatchLagP99Micros() > 0;
+		} finally {
+			dispatcher.shutdown();
+			pool.shutdownNow();
+		}
+	}
+
+	public void testEventDispatcherRejection() throws Exception {
+		// one thread and one queued task, so most keys are rejected by the pool
+		ManagedExecutor pool = KernelExecutors.newExecutor("Test Rejection", 1, 1, Rejection.ABORT, true, false);
+		ProxyEventDispatcher dispatcher = new ProxyEventDispatcher(pool, 100);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			final Thread caller = Thread.currentThread();
+			final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+			dispatcher.dispatch("blocked", new Runnable() {
+				@Override
+				public void run() {
+					try { release.await(); } catch (InterruptedException e) { }
+				}
+			});
+			for (int i=0; i<20; i++) {
+				final String key = "item"+(i%10);
+				dispatcher.dispatch(key, new Runnable() {
+					@Override
+					public void run() {
+						assert Thread.currentThread() != caller : "Task ran in the dispatching thread";
+						ran.add(key);
+					}
+				});
+			}
+			assert pool.getRejectedCount() > 0 : "The pool did not reject any key";
+			assert ran.isEmpty() : "Rejected work ran while the pool was busy";
+			release.countDown();
+			for (int i=0; i<200 && dispatcher.getQueueDepth() > 0; i++) Thread.sleep(20);
+			assert ran.size() == 20 : "Only "+ran.size()+" of 20 re-queued tasks ran";
+		} finally {
+			dispatcher.shutdown();
+			pool.shutdownNow();
+		}
+	}
+
+	public void testEventDispatcherPoolShutdown() throws Exception {
+		ManagedExecutor pool = KernelExecutors.newExecutor("Test Shutdown", 1, 1, Rejection.CALLER_RUNS, true, false);
+		pool.shutdown();
+		final ProxyEventDispatcher dispatcher = new ProxyEventDispatcher(pool, 100);
+		final CountDownLatch done = new CountDownLatch(1);
+		// more keys than the limit: each refused key must give back its permit
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0; i<250; i++)
+						dispatcher.dispatch("item"+i, new Runnable() { @Override public void run() { } });
+					done.countDown();
+				} catch (InterruptedException e) { }
+			}
+		};
+		reader.start();
+		try {
+			assert done.await(10, TimeUnit.SECONDS) : "Dispatch blocked on the permits of dropped events";
+			assert dispatcher.getQueueDepth() == 0 : "Queue depth "+dispatcher.getQueueDepth();
+		} finally {
+			reader.interrupt();
+			dispatcher.shutdown();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.property.Property;
+import org.cristalise.kernel.stats.Histogram;
+import org.cristalise.kernel.stats.KernelStats;
+import org.cristalise.kernel.utils.FileStringUtility;
+
+
+public class StatsTest {
+
+	public StatsTest() throws Exception {
+		Properties props = FileStringUtility.loadConfigFile(StatsTest.class.getResource("server.conf").getPath());
+		Gateway.init(props);
+	}
+
+	public void testHistogram() throws Exception {
+		Histogram histogram = new Histogram();
+		for (int i=1; i<=1000; i++) histogram.record(i*1000L); // 1us to 1000us
+		assert histogram.getCount() == 1000 : "Count was "+histogram.getCount();
+		assert Math.abs(histogram.getMean() - 500.5) < 0.01 : "Mean was "+histogram.getMean();
+		assert histogram.getMax() == 1000 : "Max was "+histogram.getMax();
+		long p50 = histogram.getPercentile(0.5), p99 = histogram.getPercentile(0.99);
+		assert p50 >= 500 && p50 <= 1024 : "Median "+p50+" is not within a factor of two";
+		assert p99 >= 990 && p99 <= 1000 : "99th percentile "+p99+" is above the max or too low";
+
+		final Histogram shared = new Histogram();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i=0; i<100000; i++) shared.record(i);
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) thread.join();
+		assert shared.getCount() == 400000 : "Concurrent samples were lost: "+shared.getCount();
+	}
+
+	public void testStorageStats() throws Exception {
+		KernelStats.storage.reset();
+		ClusterStorageManager storage = new ClusterStorageManager(null);
+		ItemPath item = new ItemPath();
+		storage.put(item, new Property("Name", "stats"));
+		storage.get(item, "Property/Name");
+		storage.clearCache(item, "Property/Name");
+		storage.get(item, "Property/Name");
+		storage.remove(item, "Property/Name");
+
+		assert KernelStats.storage.getHistogram("Memory Cache", "Property", "put").getCount() == 1 : "Put not recorded";
+		assert KernelStats.storage.getHistogram("Memory Cache", "Property", "get").getCount() == 1 : "Storage get not recorded";
+		assert KernelStats.storage.getHistogram("Memory Cache", "Property", "remove").getCount() == 1 : "Remove not recorded";
+		assert KernelStats.storage.getCacheHits() == 1 && KernelStats.storage.getCacheMisses() == 1 :
+			"Cache hits "+KernelStats.storage.getCacheHits()+", misses "+KernelStats.storage.getCacheMisses();
+	}
+
+	public void testMBeans() throws Exception {
+		KernelStats.register();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (String type : new String[] { "Storage", "Transactions", "Proxy", "DescriptionCaches" })
+				assert server.isRegistered(KernelStats.getObjectName(type)) : type+" MBean not registered";
+			KernelStats.transactions.recordCommit(2000000);
+			Object commits = server.getAttribute(KernelStats.getObjectName("Transactions"), "Commits");
+			assert ((Long)commits) >= 1 : "Commit count not published";
+			assert server.getAttribute(KernelStats.getObjectName("Storage"), "Operations") != null : "Operations not published";
+			assert ((Integer)server.getAttribute(KernelStats.getObjectName("Proxy"), "ConnectedClients")) == 0 : "Clients without a server";
+		} finally {
+			KernelStats.unregister();
+		}
+		assert !ManagementFactory.getPlatformMBeanServer().isRegistered(KernelStats.getObjectName("Storage")) : "MBean not unregistered";
+	}
+}
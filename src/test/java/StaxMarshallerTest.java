@@ -0,0 +1,301 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.cristalise.kernel.entity.agent.Job;
+import org.cristalise.kernel.entity.agent.JobArrayList;
+import org.cristalise.kernel.events.Event;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.Transition;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.TransitionOutcome;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.TransitionScript;
+import org.cristalise.kernel.lookup.AgentPath;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.persistency.outcome.Viewpoint;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.property.Property;
+import org.cristalise.kernel.property.PropertyArrayList;
+import org.cristalise.kernel.utils.CastorXMLUtility;
+import org.cristalise.kernel.utils.FileStringUtility;
+import org.cristalise.kernel.utils.KeyValuePair;
+import org.cristalise.kernel.utils.Logger;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+
+public class StaxMarshallerTest {
+
+	CastorXMLUtility castor;
+	CastorXMLUtility stax;
+
+	public StaxMarshallerTest() throws Exception {
+		Logger.addLogStream(System.out, 1);
+		Properties props = FileStringUtility.loadConfigFile(StaxMarshallerTest.class.getResource("server.conf").getPath());
+		Gateway.init(props);
+		props.put(CastorXMLUtility.USE_STAX_MARSHALLERS, "false");
+		castor = new CastorXMLUtility(Gateway.getResource(), props, Gateway.getResource().getKernelResourceURL("mapFiles/"));
+		props.remove(CastorXMLUtility.USE_STAX_MARSHALLERS);
+		stax = new CastorXMLUtility(Gateway.getResource(), props, Gateway.getResource().getKernelResourceURL("mapFiles/"));
+	}
+
+	private void roundTrip(Object obj) throws Exception {
+		String castorXml = castor.marshall(obj);
+		String staxXml = stax.marshall(obj);
+		assert castorXml.equals(staxXml) : "Marshalled form differs from Castor.\nCastor: "+castorXml+"\nStAX:   "+staxXml;
+
+		Object castorObj = castor.unmarshall(castorXml);
+		Object staxObj = stax.unmarshall(castorXml);
+		assert staxObj.getClass() == obj.getClass() : "Unmarshalled to wrong class "+staxObj.getClass().getName();
+		assert castor.marshall(castorObj).equals(castor.marshall(staxObj)) : "Unmarshalled object differs from Castor's: "+castor.marshall(staxObj);
+	}
+
+	private static Event fullEvent() throws Exception {
+		Event ev = new Event();
+		ev.setItemPath(new ItemPath());
+		ev.setAgentPath(new AgentPath(new ItemPath(), "agent"));
+		ev.setID(42);
+		ev.setStepName("Edit <Definition>");
+		ev.setStepPath("workflow/domain/Edit");
+		ev.setStepType("ActivityDef");
+		ev.setSchemaName("Test");
+		ev.setSchemaVersion(2);
+		ev.setStateMachineName("Default");
+		ev.setStateMachineVersion(0);
+		ev.setViewName("last");
+		ev.setOriginState(1);
+		ev.setTargetState(2);
+		ev.setTransition(3);
+		ev.setAgentRole("Admin");
+		ev.setTimeStamp(Event.getGMT());
+		return ev;
+	}
+
+	private static Job fullJob(boolean withAgent) throws Exception {
+		Job job = new Job();
+		job.setId(3);
+		job.setItemPath(new ItemPath());
+		job.setStepName("Step & <Name>");
+		job.setStepType("ActivityDef");
+		job.setStepPath("workflow/domain/Step");
+		if (withAgent) job.setAgentPath(new AgentPath(new ItemPath(), "agent"));
+		job.setOriginStateName("");
+		job.setTargetStateName("Finished");
+		job.setAgentRole("Admin");
+		Transition trans = new Transition(1, "Done", 0, 2);
+		trans.setEnabledProp("Enabled");
+		trans.setRoleOverride("Role");
+		trans.setReservation("set");
+		TransitionOutcome outcome = new TransitionOutcome();
+		outcome.setSchemaName("Schema");
+		outcome.setSchemaVersion("1");
+		outcome.setRequired(true);
+		trans.setOutcome(outcome);
+		TransitionScript script = new TransitionScript();
+		script.setScriptName("Script");
+		script.setScriptVersion("0");
+		trans.setScript(script);
+		job.setTransition(trans);
+		job.setKeyValuePairs(new KeyValuePair[] {
+				new KeyValuePair("StateMachineName", "Default", false),
+				new KeyValuePair("StateMachineVersion", 0, false),
+				new KeyValuePair("Float", 1.5d, true),
+				new KeyValuePair("BigFloat", 1.0e10d, false),
+				new KeyValuePair("Boolean", true, false),
+				new KeyValuePair("Null", null, false) });
+		return job;
+	}
+
+	public void testProperty() throws Exception {
+		roundTrip(new Property("Name", "Value", false));
+		roundTrip(new Property("Empty", "", true));
+		roundTrip(new Property("Null", null, true));
+		roundTrip(new Property("Esc&<>\"'\t\n\r", "  <&>\"'\t\r\n text é中 ", true));
+		roundTrip(new Property("Surrogate", "😀", true));
+	}
+
+	public void testPropertyList() throws Exception {
+		roundTrip(new PropertyArrayList());
+		ArrayList<Property> props = new ArrayList<Property>();
+		props.add(new Property("Type", "Item", false));
+		props.add(new Property("Name", "Test & test", true));
+		roundTrip(new PropertyArrayList(props));
+	}
+
+	public void testEvent() throws Exception {
+		Event ev = new Event();
+		ev.setItemPath(new ItemPath());
+		roundTrip(ev);
+		ev.setID(42);
+		ev.setStepName("Edit <Definition>");
+		ev.setStepPath("workflow/domain/Edit");
+		ev.setStepType("ActivityDef");
+		ev.setSchemaName("Test");
+		ev.setSchemaVersion(2);
+		ev.setStateMachineName("Default");
+		ev.setStateMachineVersion(0);
+		ev.setViewName("last");
+		ev.setOriginState(1);
+		ev.setTargetState(2);
+		ev.setTransition(3);
+		ev.setAgentRole("Admin");
+		ev.setTimeStamp(Event.getGMT());
+		roundTrip(ev);
+	}
+
+	public void testViewpoint() throws Exception {
+		roundTrip(new Viewpoint(new ItemPath(), "Schema", "last", 0, 12));
+		roundTrip(new Viewpoint(new ItemPath(), "Schema", "\"quoted\"", Viewpoint.NONE, Viewpoint.NONE));
+	}
+
+	public void testJob() throws Exception {
+		Job job = new Job();
+		job.setItemPath(new ItemPath());
+		roundTrip(job);
+		roundTrip(fullJob(false));
+		// AgentUUID is resolved through the Lookup on unmarshall, so only compare the output
+		Job agentJob = fullJob(true);
+		assert castor.marshall(agentJob).equals(stax.marshall(agentJob)) : "Marshalled form differs from Castor: "+stax.marshall(agentJob);
+		Job noTransition = fullJob(false);
+		noTransition.setTransition(null);
+		roundTrip(noTransition);
+	}
+
+	public void testJobList() throws Exception {
+		roundTrip(new JobArrayList());
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		jobs.add(fullJob(false));
+		Job job = new Job();
+		job.setItemPath(new ItemPath());
+		jobs.add(job);
+		roundTrip(new JobArrayList(jobs));
+	}
+
+	/**
+	 * Checks every class with a StAX marshaller against the Castor mapping
+	 * files: a fully populated sample must produce every attribute, element
+	 * and text node bound in the mapping (recursing into mapped field types),
+	 * and the StAX output must be identical to Castor's. A field added to a
+	 * mapping but not to its StaxMarshaller fails here.
+	 */
+	public void testMappingCoverage() throws Exception {
+		HashMap<Class<?>, Object> samples = new HashMap<Class<?>, Object>();
+		samples.put(Property.class, new Property("Name", "Value", true));
+		ArrayList<Property> props = new ArrayList<Property>();
+		props.add(new Property("Name", "Value", true));
+		samples.put(PropertyArrayList.class, new PropertyArrayList(props));
+		samples.put(Event.class, fullEvent());
+		samples.put(Viewpoint.class, new Viewpoint(new ItemPath(), "Schema", "last", 0, 12));
+		samples.put(Job.class, fullJob(true));
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		jobs.add(fullJob(true));
+		samples.put(JobArrayList.class, new JobArrayList(jobs));
+
+		HashMap<String, Element> mappings = loadMappings();
+		for (Class<?> mapped : stax.getStaxMarshalledClasses()) {
+			Object sample = samples.get(mapped);
+			assert sample != null : "No fully populated sample for StAX marshalled class "+mapped.getName();
+			String castorXml = castor.marshall(sample);
+			String staxXml = stax.marshall(sample);
+			assert castorXml.equals(staxXml) : "Marshalled form of "+mapped.getName()+" differs from Castor.\nCastor: "+castorXml+"\nStAX:   "+staxXml;
+
+			HashSet<String> bound = new HashSet<String>();
+			collectBindings(mapped.getName(), mappings, bound, new HashSet<String>());
+			assert !bound.isEmpty() : "No mapping found for "+mapped.getName();
+			HashSet<String> written = new HashSet<String>();
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(castorXml)));
+			collectNodes(doc.getDocumentElement(), written);
+			for (String binding : bound)
+				assert written.contains(binding) : "Mapped "+binding+" of "+mapped.getName()+" is not covered by the sample: "+castorXml;
+		}
+	}
+
+	private static HashMap<String, Element> loadMappings() throws Exception {
+		HashMap<String, Element> mappings = new HashMap<String, Element>();
+		URL mapURL = Gateway.getResource().getKernelResourceURL("mapFiles/");
+		StringTokenizer index = new StringTokenizer(FileStringUtility.url2String(new URL(mapURL, "index")));
+		while (index.hasMoreTokens()) {
+			Document mapFile = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new URL(mapURL, index.nextToken()).toString());
+			NodeList classes = mapFile.getElementsByTagName("class");
+			for (int i=0; i<classes.getLength(); i++) {
+				Element classMap = (Element)classes.item(i);
+				mappings.put(classMap.getAttribute("name"), classMap);
+			}
+		}
+		return mappings;
+	}
+
+	private static void collectBindings(String className, HashMap<String, Element> mappings, HashSet<String> bound, HashSet<String> visited) {
+		Element classMap = mappings.get(className);
+		if (classMap == null || !visited.add(className)) return;
+		NodeList fields = classMap.getElementsByTagName("field");
+		for (int i=0; i<fields.getLength(); i++) {
+			Element field = (Element)fields.item(i);
+			NodeList binds = field.getElementsByTagName("bind-xml");
+			if (binds.getLength() > 0) {
+				Element bind = (Element)binds.item(0);
+				String node = bind.getAttribute("node");
+				if ("attribute".equals(node)) bound.add("@"+bind.getAttribute("name"));
+				else if ("text".equals(node)) bound.add("#text");
+				else bound.add("<"+bind.getAttribute("name")+">");
+			}
+			collectBindings(field.getAttribute("type"), mappings, bound, visited);
+		}
+	}
+
+	private static void collectNodes(Element elem, HashSet<String> written) {
+		written.add("<"+elem.getTagName()+">");
+		NamedNodeMap attrs = elem.getAttributes();
+		for (int i=0; i<attrs.getLength(); i++) written.add("@"+((Attr)attrs.item(i)).getName());
+		for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element) collectNodes((Element)child, written);
+			else if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().length() > 0) written.add("#text");
+		}
+	}
+
+	public void testSpeed() throws Exception {
+		Event ev = new Event();
+		ev.setItemPath(new ItemPath());
+		ev.setID(1);
+		ev.setStepName("Step");
+		ev.setTimeStamp(Event.getGMT());
+		String xml = castor.marshall(ev);
+		int count = 5000;
+		long then = System.currentTimeMillis();
+		for (int i=0; i<count; i++) castor.unmarshall(castor.marshall(ev));
+		long castorTime = System.currentTimeMillis()-then;
+		then = System.currentTimeMillis();
+		for (int i=0; i<count; i++) stax.unmarshall(stax.marshall(ev));
+		long staxTime = System.currentTimeMillis()-then;
+		Logger.msg(count+" Event round trips: Castor "+castorTime+"ms, StAX "+staxTime+"ms ("+xml.length()+" chars)");
+	}
+}
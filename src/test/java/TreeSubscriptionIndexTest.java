@@ -0,0 +1,99 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cristalise.kernel.entity.proxy.DomainPathSubscriber;
+import org.cristalise.kernel.entity.proxy.ProxyMessage;
+import org.cristalise.kernel.entity.proxy.TreeSubscriptionIndex;
+import org.cristalise.kernel.lookup.DomainPath;
+import org.cristalise.kernel.utils.Logger;
+
+
+public class TreeSubscriptionIndexTest {
+
+	static class TreeListener implements DomainPathSubscriber {
+		final ArrayList<String> added = new ArrayList<String>(), removed = new ArrayList<String>();
+		@Override public void pathAdded(DomainPath path) { added.add(path.toString()); }
+		@Override public void pathRemoved(DomainPath path) { removed.add(path.toString()); }
+	}
+
+	public void testTreeSubscriptionIndex() throws Exception {
+		TreeSubscriptionIndex index = new TreeSubscriptionIndex();
+		ArrayList<TreeListener> listeners = new ArrayList<TreeListener>();
+		for (int i=0; i<10000; i++) {
+			TreeListener listener = new TreeListener();
+			listeners.add(listener);
+			index.subscribe(listener, new DomainPath("/batches/b"+(i%1000)));
+		}
+		TreeListener batches = new TreeListener(), root = new TreeListener();
+		index.subscribe(batches, new DomainPath("/batches"));
+		index.subscribe(root, new DomainPath(""));
+		assert index.size() == 10002;
+
+		// an addition is reported to the subscribers of every ancestor
+		index.inform(ProxyMessage.ADDED, "/batches/b5/s1");
+		for (int i=0; i<listeners.size(); i++) {
+			List<String> added = listeners.get(i).added;
+			if (i%1000 == 5)
+				assert added.equals(Arrays.asList(new DomainPath("/batches/b5/s1").toString())) : "Listener "+i+" got "+added;
+			else
+				assert added.isEmpty() : "Listener "+i+" on another path got "+added;
+		}
+		assert batches.added.equals(Arrays.asList(new DomainPath("/batches/b5").toString())) : batches.added.toString();
+		assert root.added.equals(Arrays.asList(new DomainPath("/batches").toString())) : root.added.toString();
+
+		// a removal only to the subscribers of the parent
+		index.inform(ProxyMessage.DELETED, "/batches/b5/s1");
+		assert listeners.get(5).removed.size() == 1 && listeners.get(1005).removed.size() == 1;
+		assert batches.removed.isEmpty() && root.removed.isEmpty() : "Removal reported above the parent";
+
+		// subscribing again moves the subscription, and unsubscribing drops it
+		index.subscribe(listeners.get(5), new DomainPath("/batches/b6"));
+		index.unsubscribe(listeners.get(1005));
+		index.unsubscribe(listeners.get(1005));
+		assert index.size() == 10001;
+		index.inform(ProxyMessage.ADDED, "/batches/b5/s2");
+		assert listeners.get(5).added.size() == 1 && listeners.get(1005).added.size() == 1 : "Moved subscriptions still informed";
+		assert listeners.get(2005).added.size() == 2;
+		index.inform(ProxyMessage.ADDED, "/batches/b6/s2");
+		assert listeners.get(5).added.size() == 2 : "Moved subscription not informed of its new path";
+
+		// a subscriber may unsubscribe another from its callback
+		final TreeSubscriptionIndex shared = index;
+		final TreeListener victim = new TreeListener();
+		index.subscribe(victim, new DomainPath("/other"));
+		index.subscribe(new DomainPathSubscriber() {
+			@Override public void pathAdded(DomainPath path) { shared.unsubscribe(victim); }
+			@Override public void pathRemoved(DomainPath path) { }
+		}, new DomainPath("/other"));
+		index.inform(ProxyMessage.ADDED, "/other/x");
+		assert index.size() == 10002;
+
+		// the cost follows the subscribers informed, not the subscriptions held
+		long then = System.currentTimeMillis();
+		for (int i=0; i<100000; i++) index.inform(ProxyMessage.ADDED, "/elsewhere/a/b"+i);
+		long time = System.currentTimeMillis()-then;
+		Logger.msg("Informed "+index.size()+" tree subscriptions of 100000 unwatched changes in "+time+"ms");
+		assert root.added.size() > 100000 : "Root subscriber missed changes";
+	}
+}
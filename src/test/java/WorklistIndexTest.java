@@ -0,0 +1,207 @@
+/**
+ * This file is part of the CRISTAL-iSE kernel.
+ * Copyright (c) 2001-2014 The CRISTAL Consortium. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.
+ *
+ * http://www.fsf.org/licensing/licenses/lgpl.html
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cristalise.kernel.graph.model.GraphPoint;
+import org.cristalise.kernel.lifecycle.instance.Activity;
+import org.cristalise.kernel.lifecycle.instance.CompositeActivity;
+import org.cristalise.kernel.lifecycle.instance.Workflow;
+import org.cristalise.kernel.lifecycle.instance.WorklistIndex;
+import org.cristalise.kernel.lifecycle.instance.WorklistIndex.WorkItem;
+import org.cristalise.kernel.lifecycle.instance.predefined.item.ItemPredefinedStepContainer;
+import org.cristalise.kernel.lifecycle.instance.stateMachine.StateMachine;
+import org.cristalise.kernel.lookup.AgentPath;
+import org.cristalise.kernel.lookup.ItemPath;
+import org.cristalise.kernel.lookup.Path;
+import org.cristalise.kernel.lookup.RolePath;
+import org.cristalise.kernel.persistency.ClusterStorageManager;
+import org.cristalise.kernel.process.Gateway;
+import org.cristalise.kernel.utils.FileStringUtility;
+
+
+public class WorklistIndexTest {
+
+	// states of TestStateMachine.xml
+	static final int WAITING = 0, STARTED = 1, FINISHED = 2, SUSPENDED = 3;
+
+	StateMachine sm;
+	WorklistIndex index = new WorklistIndex();
+
+	public WorklistIndexTest() throws Exception {
+		Gateway.init(FileStringUtility.loadConfigFile(WorklistIndexTest.class.getResource("server.conf").getPath()));
+		sm = (StateMachine)Gateway.getMarshaller().unmarshall(FileStringUtility.url2String(WorklistIndexTest.class.getResource("TestStateMachine.xml")));
+		sm.validate();
+	}
+
+	/** An activity using the test state machine, which would otherwise be loaded through the Lookup */
+	class TestActivity extends Activity {
+		@Override
+		public StateMachine getStateMachine() {
+			return sm;
+		}
+	}
+
+	/** An agent with fixed roles, as there is no Lookup to ask */
+	static class TestAgent extends AgentPath {
+		final RolePath[] roles;
+		TestAgent(String name, String... roleNames) {
+			super(new ItemPath(), name);
+			roles = new RolePath[roleNames.length];
+			for (int i=0; i<roleNames.length; i++) roles[i] = new RolePath(new RolePath(), roleNames[i]);
+		}
+		@Override
+		public RolePath[] getRoles() {
+			return roles;
+		}
+	}
+
+	/**
+	 * @return a workflow with a domain step per name, all active and waiting for the role
+	 */
+	Workflow makeWorkflow(String role, String... steps) {
+		CompositeActivity domain = new CompositeActivity();
+		Workflow wf = new Workflow(domain, new ItemPredefinedStepContainer());
+		for (int i=0; i<steps.length; i++) {
+			TestActivity act = new TestActivity();
+			act.setName(steps[i]);
+			act.setActive(true);
+			act.setState(WAITING);
+			act.getProperties().put("Agent Role", role);
+			domain.initChild(act, i == 0, new GraphPoint(100*i, 100));
+		}
+		return wf;
+	}
+
+	static Activity step(Workflow wf, String name) {
+		return (Activity)wf.search("workflow/domain/"+name);
+	}
+
+	public void testStateChanges() throws Exception {
+		ItemPath item = new ItemPath();
+		Workflow wf = makeWorkflow("Operator", "Check");
+		Activity check = step(wf, "Check");
+		index.update(item, check);
+		List<WorkItem> work = index.getWorklist("Operator");
+		assert work.size() == 1 : work.size()+" work items for the waiting step";
+		assert work.get(0).itemPath.equals(item) && work.get(0).stepPath.equals("workflow/domain/Check");
+		assert work.get(0).stateName.equals("Waiting") && work.get(0).transitions.contains("Start") : "Wrong work: "+work.get(0);
+
+		check.setState(STARTED);
+		index.update(item, check);
+		work = index.getWorklist("Operator");
+		assert work.size() == 1 && work.get(0).stateName.equals("Started") : "Started step indexed as "+work;
+		assert !work.get(0).transitions.contains("Start") : "Transitions of the previous state still listed";
+		assert !work.get(0).transitions.contains("Ignore") : "Transition disabled by its property listed";
+
+		// inactive steps offer no work
+		check.setActive(false);
+		index.update(item, check);
+		assert index.getWorklist("Operator").isEmpty() : "Inactive step still listed";
+
+		check.setActive(true);
+		check.setState(FINISHED);
+		index.update(item, check);
+		assert index.getWorklist("Operator").isEmpty() : "Finished step still listed";
+	}
+
+	public void testRoleOverride() throws Exception {
+		ItemPath item = new ItemPath();
+		Workflow wf = makeWorkflow("Operator", "Check");
+		Activity check = step(wf, "Check");
+		check.setState(SUSPENDED);
+		index.update(item, check);
+		// Retry may only be performed by the Admin role, whatever the step's role
+		assert index.getWorklist("Operator").isEmpty() : "Overridden transition listed under the step's role";
+		List<WorkItem> work = index.getWorklist("Admin");
+		assert work.size() == 1 && work.get(0).transitions.contains("Retry") : "Admin work was "+work;
+
+		// the step's own role comes back once out of the overridden state
+		check.setState(STARTED);
+		index.update(item, check);
+		assert index.getWorklist("Admin").isEmpty() : "Admin role still listed";
+		assert index.getWorklist("Operator").size() == 1;
+	}
+
+	public void testRemoveItem() throws Exception {
+		ItemPath first = new ItemPath(), second = new ItemPath();
+		index.indexWorkflow(first, makeWorkflow("Operator", "Check", "Pack"));
+		index.indexWorkflow(second, makeWorkflow("Operator", "Check", "Pack"));
+		assert index.getWorklist("Operator").size() == 4;
+		index.removeItem(first);
+		List<WorkItem> work = index.getWorklist("Operator");
+		assert work.size() == 2 : work.size()+" work items left";
+		for (WorkItem item : work) assert item.itemPath.equals(second) : "Removed item still listed";
+	}
+
+	public void testAgentWorklist() throws Exception {
+		ItemPath item = new ItemPath();
+		Workflow wf = makeWorkflow("Operator", "Free", "Mine", "Theirs", "Admin");
+		step(wf, "Mine").getProperties().put("Agent Name", "me");
+		step(wf, "Theirs").getProperties().put("Agent Name", "them");
+		step(wf, "Admin").getProperties().put("Agent Role", "Admin");
+		index.indexWorkflow(item, wf);
+
+		ArrayList<String> mine = new ArrayList<String>();
+		for (WorkItem work : index.getWorklist(new TestAgent("me", "Operator"))) mine.add(work.stepName);
+		assert mine.size() == 2 && mine.contains("Free") && mine.contains("Mine") : "Agent was offered "+mine;
+
+		ArrayList<String> theirs = new ArrayList<String>();
+		for (WorkItem work : index.getWorklist(new TestAgent("them", "Operator", "Admin"))) theirs.add(work.stepName);
+		assert theirs.size() == 3 && !theirs.contains("Mine") : "Agent with two roles was offered "+theirs;
+	}
+
+	public void testRebuildKeepsLiveUpdates() throws Exception {
+		ClusterStorageManager storage = new ClusterStorageManager(null);
+		ArrayList<Path> items = new ArrayList<Path>();
+		for (int i=0; i<3; i++) {
+			ItemPath item = new ItemPath();
+			items.add(item);
+			storage.put(item, makeWorkflow("Operator", "Check", "Pack"));
+		}
+		// as after a restart, with the items serving requests before the rebuild reads them
+		WorklistIndex restarted = new WorklistIndex();
+		restarted.setRebuilding();
+		ItemPath first = (ItemPath)items.get(0), second = (ItemPath)items.get(1);
+		Activity started = step(makeWorkflow("Operator", "Check", "Pack"), "Check");
+		started.setState(STARTED);
+		restarted.update(first, started);
+		restarted.indexWorkflow(second, makeWorkflow("Packer", "Pack"));
+
+		assert restarted.rebuild(items.iterator(), storage) == 3;
+		int waiting = 0;
+		for (WorkItem work : restarted.getWorklist("Operator")) {
+			assert !work.itemPath.equals(second) : "Rebuild overwrote a replaced workflow";
+			if (work.itemPath.equals(first) && work.stepName.equals("Check"))
+				assert work.stateName.equals("Started") : "Rebuild overwrote a newer state with "+work.stateName;
+			else
+				waiting++;
+		}
+		assert waiting == 3 : waiting+" waiting steps rebuilt instead of 3";
+		assert restarted.getWorklist("Packer").size() == 1;
+
+		// once rebuilt, updates are no longer recorded
+		Activity pack = step(makeWorkflow("Operator", "Pack"), "Pack");
+		pack.setState(FINISHED);
+		restarted.update(first, pack);
+		assert restarted.getWorklist("Operator").size() == 3;
+	}
+}